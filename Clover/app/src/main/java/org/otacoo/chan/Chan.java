@@ -35,6 +35,9 @@ import androidx.webkit.ProxyController;
 import androidx.webkit.WebViewFeature;
 
 import org.codejargon.feather.Feather;
+import org.otacoo.chan.core.cache.IconCache;
+import org.otacoo.chan.core.cache.ImagePipeline;
+import org.otacoo.chan.core.cache.MemoryPolicy;
 import org.otacoo.chan.core.database.DatabaseManager;
 import org.otacoo.chan.core.di.AppModule;
 import org.otacoo.chan.core.di.NetModule;
@@ -45,6 +48,7 @@ import org.otacoo.chan.core.site.SiteService;
 import org.otacoo.chan.ui.activity.ActivityResultHelper;
 import org.otacoo.chan.ui.activity.RuntimePermissionsHelper;
 import org.otacoo.chan.ui.activity.StartActivity;
+import org.otacoo.chan.ui.text.FastTextView;
 import org.otacoo.chan.utils.AndroidUtils;
 import org.otacoo.chan.utils.Logger;
 import org.otacoo.chan.utils.Time;
@@ -243,6 +247,32 @@ public class Chan extends Application implements
         }
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (feather == null) {
+            return;
+        }
+
+        float retained = MemoryPolicy.getRetainedFraction(level);
+        Logger.i(TAG, "Trim memory level " + level + ", keeping " + retained + " of the caches");
+
+        // From cheapest to most expensive to get back: text layouts are quickly laid out again,
+        // the decoded images come from disk or the network, the views reload their images.
+        FastTextView.trimMemory(retained);
+        feather.instance(ImagePipeline.class).trimMemory(retained);
+        feather.instance(IconCache.class).trimMemory(retained);
+        EventBus.getDefault().post(new TrimMemoryMessage(level));
+    }
+
+    public static class TrimMemoryMessage {
+        public final int level;
+
+        public TrimMemoryMessage(int level) {
+            this.level = level;
+        }
+    }
+
     private String createUserAgent() {
         String customUserAgent = ChanSettings.customUserAgent.get();
         if (!customUserAgent.isEmpty()) {
@@ -0,0 +1,137 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.otacoo.chan.core.cache;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.AnyThread;
+
+import org.otacoo.chan.utils.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Bitmaps that are no longer displayed or cached, kept to decode new bitmaps into with
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} instead of allocating.
+ * <p>
+ * Bitmaps are bucketed by their allocation size. A request takes the smallest pooled bitmap that
+ * is large enough, but not one that is more than twice the size needed, to not waste memory.
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+    private static final int LOG_INTERVAL = 200;
+
+    private final long maxBytes;
+
+    // Guarded by this.
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+    private long bytes;
+    private int hits;
+    private int misses;
+
+    /**
+     * @param maxBytes the memory the pooled bitmaps may take together.
+     */
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Take a bitmap that can hold the pixels of an image of this size.
+     *
+     * @return a bitmap with unspecified contents, or null if none is pooled.
+     */
+    @AnyThread
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        long needed = (long) width * height * bytesPerPixel(config);
+        Bitmap bitmap = null;
+        if (needed > 0 && needed <= Integer.MAX_VALUE) {
+            Map.Entry<Integer, ArrayDeque<Bitmap>> bucket = buckets.ceilingEntry((int) needed);
+            if (bucket != null && bucket.getKey() <= needed * 2) {
+                bitmap = bucket.getValue().poll();
+                if (bucket.getValue().isEmpty()) {
+                    buckets.remove(bucket.getKey());
+                }
+                bytes -= bucket.getKey();
+            }
+        }
+
+        if (bitmap != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        if ((hits + misses) % LOG_INTERVAL == 0) {
+            Logger.d(TAG, "reused " + hits + ", allocated " + misses + ", pooled " + (bytes / 1024) + "KB");
+        }
+        return bitmap;
+    }
+
+    /**
+     * Give a bitmap to the pool. The caller must not use it anymore.
+     */
+    @AnyThread
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+
+        int size = bitmap.getAllocationByteCount();
+        if (size > maxBytes) {
+            return;
+        }
+
+        // Make room by dropping the largest bitmaps, they are the least likely to fit a request.
+        while (bytes + size > maxBytes && !buckets.isEmpty()) {
+            Map.Entry<Integer, ArrayDeque<Bitmap>> largest = buckets.lastEntry();
+            largest.getValue().poll();
+            if (largest.getValue().isEmpty()) {
+                buckets.remove(largest.getKey());
+            }
+            bytes -= largest.getKey();
+        }
+
+        ArrayDeque<Bitmap> bucket = buckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            buckets.put(size, bucket);
+        }
+        bucket.add(bitmap);
+        bytes += size;
+    }
+
+    /**
+     * Drop all pooled bitmaps, to free their memory.
+     */
+    @AnyThread
+    public synchronized void clear() {
+        buckets.clear();
+        bytes = 0;
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+}
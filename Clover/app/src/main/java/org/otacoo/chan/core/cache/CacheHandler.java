@@ -24,6 +24,7 @@ import androidx.annotation.MainThread;
 import androidx.annotation.WorkerThread;
 
 import org.otacoo.chan.utils.Logger;
+import org.otacoo.chan.utils.Time;
 
 import java.io.File;
 import java.security.MessageDigest;
@@ -38,10 +39,23 @@ import java.util.concurrent.atomic.AtomicLong;
 public class CacheHandler {
     private static final String TAG = "CacheHandler";
 
+    public enum Eviction {
+        /**
+         * Remove the least recently used files first.
+         */
+        LRU,
+        /**
+         * Remove the files with the largest size times the time since last use first, so one
+         * large file goes before several small ones of the same age.
+         */
+        SIZE_WEIGHTED
+    }
+
     private final ExecutorService pool = Executors.newFixedThreadPool(1);
 
     private final File directory;
     private final long maxSize;
+    private final Eviction eviction;
 
     /**
      * An estimation of the current size of the directory. Used to check if trim must be run
@@ -51,9 +65,10 @@ public class CacheHandler {
     private final AtomicBoolean trimRunning = new AtomicBoolean(false);
 
     @SuppressWarnings("this-escape")
-    public CacheHandler(File directory, long maxSize) {
+    public CacheHandler(File directory, long maxSize, Eviction eviction) {
         this.directory = directory;
         this.maxSize = maxSize;
+        this.eviction = eviction;
 
         createDirectories();
         backgroundRecalculateSize();
@@ -71,6 +86,19 @@ public class CacheHandler {
         return new File(directory, hash(key));
     }
 
+    /**
+     * @return an estimation of the size of the files in the cache.
+     */
+    @AnyThread
+    public long getSize() {
+        return size.get();
+    }
+
+    @AnyThread
+    public long getMaxSize() {
+        return maxSize;
+    }
+
     @AnyThread
     protected void fileWasAdded(File file) {
         long adjustedSize = size.addAndGet(file.length());
@@ -96,7 +124,9 @@ public class CacheHandler {
             File[] files = directory.listFiles();
             if (files != null) {
                 for (File file : files) {
-                    if (!file.delete()) {
+                    // The partial files of running downloads are in a directory, and are
+                    // deleted by their downloads when they are cancelled.
+                    if (file.isFile() && !file.delete()) {
                         Logger.d(TAG, "Could not delete cache file while clearing cache " +
                                 file.getName());
                     }
@@ -129,7 +159,9 @@ public class CacheHandler {
         File[] files = directory.listFiles();
         if (files != null) {
             for (File file : files) {
-                calculatedSize += file.length();
+                if (file.isFile()) {
+                    calculatedSize += file.length();
+                }
             }
         }
 
@@ -145,14 +177,25 @@ public class CacheHandler {
             return;
         }
 
-        // Get all files with their last modified times.
+        // Get all files with their eviction score, the highest score is removed first.
+        long now = Time.get();
         List<Pair<File, Long>> files = new ArrayList<>(directoryFiles.length);
         for (File file : directoryFiles) {
-            files.add(new Pair<>(file, file.lastModified()));
+            if (!file.isFile()) {
+                continue;
+            }
+
+            long age = Math.max(1, now - file.lastModified());
+            if (eviction == Eviction.SIZE_WEIGHTED) {
+                // In kilobytes and seconds to keep the product in range.
+                long score = (file.length() / 1024 + 1) * (age / 1000 + 1);
+                files.add(new Pair<>(file, score));
+            } else {
+                files.add(new Pair<>(file, age));
+            }
         }
 
-        // Sort by oldest first.
-        Collections.sort(files, (o1, o2) -> Long.signum(o1.second - o2.second));
+        Collections.sort(files, (o1, o2) -> Long.compare(o2.second, o1.second));
 
         // Trim as long as the directory size exceeds the threshold.
         long workingSize = size.get();
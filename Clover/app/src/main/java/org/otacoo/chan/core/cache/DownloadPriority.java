@@ -0,0 +1,44 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.otacoo.chan.core.cache;
+
+/**
+ * Order in which queued downloads are started, from the most to the least urgent. A download
+ * can be parked, stopped and queued again to resume later, to make room for a more urgent one.
+ */
+public enum DownloadPriority {
+    /**
+     * The file on screen in the image viewer, or otherwise directly waited on by the user.
+     */
+    VIEWER,
+    /**
+     * Files downloaded ahead of the user, like the next image in the viewer.
+     */
+    PRELOAD,
+    /**
+     * Saving files and other work the user is not looking at.
+     */
+    BACKGROUND;
+
+    /**
+     * @return if this priority is more urgent than the other.
+     */
+    public boolean isHigherThan(DownloadPriority other) {
+        return ordinal() < other.ordinal();
+    }
+}
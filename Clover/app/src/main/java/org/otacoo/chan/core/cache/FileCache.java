@@ -18,45 +18,178 @@
 package org.otacoo.chan.core.cache;
 
 import androidx.annotation.MainThread;
+import androidx.annotation.WorkerThread;
 
+import org.otacoo.chan.core.model.PostImage;
+import org.otacoo.chan.core.settings.ChanSettings;
+import org.otacoo.chan.utils.Logger;
 import org.otacoo.chan.utils.Time;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 
 public class FileCache implements FileCacheDownloader.Callback {
     private static final String TAG = "FileCache";
+
+    /**
+     * The cache is split in pools with their own directory, size and eviction, so that
+     * for example watching videos does not evict all images. The pool of a file is picked by
+     * the extension of its url.
+     */
+    public enum Pool {
+        IMAGES("images", CacheHandler.Eviction.LRU),
+        ANIMATED("animated", CacheHandler.Eviction.LRU),
+        VIDEO("video", CacheHandler.Eviction.SIZE_WEIGHTED),
+        OTHER("other", CacheHandler.Eviction.LRU);
+
+        public final String directoryName;
+        public final CacheHandler.Eviction eviction;
+
+        Pool(String directoryName, CacheHandler.Eviction eviction) {
+            this.directoryName = directoryName;
+            this.eviction = eviction;
+        }
+
+        public static Pool forUrl(String url) {
+            HttpUrl httpUrl = HttpUrl.parse(url);
+            if (httpUrl == null) {
+                return OTHER;
+            }
+
+            List<String> segments = httpUrl.pathSegments();
+            String name = segments.get(segments.size() - 1);
+            int dot = name.lastIndexOf('.');
+            String extension = dot >= 0 ? name.substring(dot + 1).toLowerCase(Locale.ENGLISH) : "";
+
+            switch (extension) {
+                case "jpg":
+                case "jpeg":
+                case "jfif":
+                case "png":
+                case "webp":
+                case "bmp":
+                case "avif":
+                    return IMAGES;
+                case "gif":
+                case "apng":
+                    return ANIMATED;
+                case "webm":
+                case "mp4":
+                case "mkv":
+                case "mov":
+                case "mp3":
+                case "m4a":
+                case "ogg":
+                case "flac":
+                    return VIDEO;
+                default:
+                    return OTHER;
+            }
+        }
+    }
+
     private static final int DOWNLOAD_POOL_SIZE = 4;
+    private static final int MAX_CONNECTIONS_PER_HOST = 6;
+    private static final int MAX_SEGMENTS = 4;
+    private static final long STALE_PARTIAL_AGE = TimeUnit.DAYS.toMillis(1);
 
-    private final ExecutorService downloadPool = Executors.newFixedThreadPool(DOWNLOAD_POOL_SIZE);
+    /**
+     * Downloads wait in a queue ordered by {@link DownloadPriority}, see
+     * {@link FileCacheDownloader#QUEUE_ORDER}.
+     */
+    private final ThreadPoolExecutor downloadPool = new ThreadPoolExecutor(
+            DOWNLOAD_POOL_SIZE, DOWNLOAD_POOL_SIZE, 0L, TimeUnit.MILLISECONDS,
+            new PriorityBlockingQueue<>(11, FileCacheDownloader.QUEUE_ORDER));
+    private final ExecutorService segmentPool =
+            Executors.newFixedThreadPool(DOWNLOAD_POOL_SIZE * (MAX_SEGMENTS - 1));
+    private final HostConnectionLimiter connectionLimiter =
+            new HostConnectionLimiter(MAX_CONNECTIONS_PER_HOST);
+    private final ThroughputMeter throughputMeter = new ThroughputMeter();
     private String userAgent;
     protected OkHttpClient httpClient;
 
-    private final CacheHandler cacheHandler;
+    private final Map<Pool, CacheHandler> cacheHandlers = new EnumMap<>(Pool.class);
+    private final Md5Index md5Index;
 
-    private List<FileCacheDownloader> downloaders = new ArrayList<>();
+    // Downloads that are queued, running or parked, by url.
+    private final Map<String, FileCacheDownloader> downloaders = new HashMap<>();
 
-    public FileCache(File directory, long maxSize, String userAgent, OkHttpClient okHttpClient) {
+    /**
+     * @param directory the directory containing a subdirectory for every pool.
+     * @param poolSizes the maximum size of each pool in bytes.
+     */
+    public FileCache(File directory, Map<Pool, Long> poolSizes, String userAgent, OkHttpClient okHttpClient) {
         this.userAgent = userAgent;
         this.httpClient = okHttpClient;
-        this.cacheHandler = new CacheHandler(directory, maxSize);
+        for (Pool pool : Pool.values()) {
+            cacheHandlers.put(pool, new CacheHandler(new File(directory, pool.directoryName),
+                    poolSizes.get(pool), pool.eviction));
+        }
+        this.md5Index = new Md5Index(new File(directory.getParentFile(), directory.getName() + ".md5"));
+
+        downloadPool.execute(() -> {
+            deleteUnpooledFiles(directory);
+            for (Pool pool : Pool.values()) {
+                deleteStalePartialFiles(new File(new File(directory, pool.directoryName),
+                        FileCacheDownloader.PARTIAL_DIRECTORY));
+            }
+        });
     }
 
     public void clearCache() {
-        for (FileCacheDownloader downloader : downloaders) {
+        for (FileCacheDownloader downloader : new ArrayList<>(downloaders.values())) {
             downloader.cancel();
         }
 
-        cacheHandler.clearCache();
+        for (CacheHandler cacheHandler : cacheHandlers.values()) {
+            cacheHandler.clearCache();
+        }
+        md5Index.clear();
+    }
+
+    public void clearCache(Pool pool) {
+        for (FileCacheDownloader downloader : new ArrayList<>(downloaders.values())) {
+            if (Pool.forUrl(downloader.getUrl()) == pool) {
+                downloader.cancel();
+            }
+        }
+
+        cacheHandlers.get(pool).clearCache();
+    }
+
+    /**
+     * @return an estimation of the bytes used by the pool.
+     */
+    public long getPoolUsage(Pool pool) {
+        return cacheHandlers.get(pool).getSize();
+    }
+
+    public long getPoolMaxSize(Pool pool) {
+        return cacheHandlers.get(pool).getMaxSize();
+    }
+
+    /**
+     * @return the recently measured download speed in bytes per second, or -1 if unknown.
+     */
+    public long getThroughput() {
+        return throughputMeter.getBytesPerSecond();
     }
 
     /**
-     * Start downloading the file located at the url.<br>
+     * Start downloading the file located at the url, with the priority of the image viewer.<br>
      * If the file is in the cache then the callback is executed immediately and null is
      * returned.<br>
      * Otherwise if the file is downloading or has not yet started downloading a
@@ -68,9 +201,22 @@ public class FileCache implements FileCacheDownloader.Callback {
      */
     @MainThread
     public FileCacheDownloader downloadFile(String url, FileCacheListener listener) {
+        return downloadFile(url, DownloadPriority.VIEWER, listener);
+    }
+
+    /**
+     * Like {@link #downloadFile(String, FileCacheListener)} with a priority. If the file is
+     * already downloading with a lower priority, the download is raised to this priority.
+     */
+    @MainThread
+    public FileCacheDownloader downloadFile(String url, DownloadPriority priority,
+                                            FileCacheListener listener) {
         FileCacheDownloader runningDownloaderForKey = getDownloaderByKey(url);
         if (runningDownloaderForKey != null) {
             runningDownloaderForKey.addListener(listener);
+            if (priority.isHigherThan(runningDownloaderForKey.getPriority())) {
+                setPriority(runningDownloaderForKey, priority);
+            }
             return runningDownloaderForKey;
         }
 
@@ -79,35 +225,163 @@ public class FileCache implements FileCacheDownloader.Callback {
             handleFileImmediatelyAvailable(listener, file);
             return null;
         } else {
-            return handleStartDownload(listener, file, url);
+            return handleStartDownload(listener, file, url, priority);
         }
     }
 
-    public FileCacheDownloader getDownloaderByKey(String key) {
-        for (FileCacheDownloader downloader : downloaders) {
-            if (downloader.getUrl().equals(key)) {
-                return downloader;
+    /**
+     * Like {@link #downloadFile(String, FileCacheListener)} for the image of a post.<br>
+     * If the image is not cached under its own url, but a file with the same MD5 and size was
+     * downloaded before, that file is used instead.
+     *
+     * @param postImage the image to download.
+     * @param listener  listener to execute callbacks on.
+     * @return {@code null} if in the cache, {@link FileCacheDownloader} otherwise.
+     */
+    @MainThread
+    public FileCacheDownloader downloadFile(PostImage postImage, FileCacheListener listener) {
+        return downloadFile(postImage, DownloadPriority.VIEWER, listener);
+    }
+
+    /**
+     * Like {@link #downloadFile(PostImage, FileCacheListener)} with a priority, see
+     * {@link #downloadFile(String, DownloadPriority, FileCacheListener)}.
+     */
+    @MainThread
+    public FileCacheDownloader downloadFile(PostImage postImage, DownloadPriority priority,
+                                            FileCacheListener listener) {
+        String url = postImage.imageUrl.toString();
+        if (getDownloaderByKey(url) == null && !exists(url)) {
+            File duplicate = getByMd5(postImage.md5, postImage.size);
+            if (duplicate != null) {
+                handleFileImmediatelyAvailable(listener, duplicate);
+                return null;
             }
         }
-        return null;
+
+        return downloadFile(url, priority, listener);
+    }
+
+    /**
+     * Stop listening to a download that may be shared with other users of the cache. The
+     * download is only cancelled when no other listener waits on it.
+     */
+    @MainThread
+    public void release(FileCacheDownloader downloader, FileCacheListener listener) {
+        if (!downloader.removeListener(listener)) {
+            downloader.cancel();
+        }
+    }
+
+    public FileCacheDownloader getDownloaderByKey(String key) {
+        return downloaders.get(key);
+    }
+
+    /**
+     * Change the priority of a download. A queued download moves to its new place in the queue,
+     * and when raised it may park a running download of lower priority to start sooner.
+     */
+    @MainThread
+    public void setPriority(FileCacheDownloader downloader, DownloadPriority priority) {
+        if (downloader.getPriority() == priority) {
+            return;
+        }
+
+        // The queue only orders elements on insertion.
+        boolean queued = downloadPool.getQueue().remove(downloader);
+        downloader.setPriority(priority);
+        if (queued) {
+            downloadPool.getQueue().add(downloader);
+            preemptFor(downloader);
+        }
     }
 
     @Override
     public void downloaderFinished(FileCacheDownloader fileCacheDownloader) {
-        downloaders.remove(fileCacheDownloader);
+        // A download for the same url may have been started after this one was cancelled.
+        downloaders.remove(fileCacheDownloader.getUrl(), fileCacheDownloader);
+    }
+
+    @Override
+    public void downloaderParked(FileCacheDownloader fileCacheDownloader) {
+        fileCacheDownloader.resume(downloadPool);
     }
 
     @Override
-    public void downloaderAddedFile(File file) {
-        cacheHandler.fileWasAdded(file);
+    public void downloaderAddedFile(String url, File file, String md5) {
+        cacheHandlers.get(Pool.forUrl(url)).fileWasAdded(file);
+        if (md5 != null) {
+            md5Index.put(md5, url);
+        }
     }
 
     public boolean exists(String key) {
-        return cacheHandler.exists(key);
+        return cacheHandlers.get(Pool.forUrl(key)).exists(key);
+    }
+
+    public boolean exists(PostImage postImage) {
+        return exists(postImage.imageUrl.toString()) || getByMd5(postImage.md5, postImage.size) != null;
+    }
+
+    /**
+     * Find a cached file by its digest, verifying the size if it is known.
+     *
+     * @return the file, or null if none is cached.
+     */
+    private File getByMd5(String md5, long size) {
+        String url = md5Index.get(md5);
+        if (url == null) {
+            return null;
+        }
+
+        File file = get(url);
+        if (file.exists() && (size <= 0 || file.length() == size)) {
+            return file;
+        }
+
+        // Trimmed from the cache since.
+        md5Index.remove(md5);
+        return null;
     }
 
     public File get(String key) {
-        return cacheHandler.get(key);
+        return cacheHandlers.get(Pool.forUrl(key)).get(key);
+    }
+
+    /**
+     * Partial files of downloads that were never resumed, from before the app was last stopped.
+     */
+    @WorkerThread
+    private void deleteStalePartialFiles(File partialDirectory) {
+        File[] files = partialDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // They are not in the pool size and not trimmed, so they are removed once old enough.
+        long now = Time.get();
+        for (File file : files) {
+            if (now - file.lastModified() > STALE_PARTIAL_AGE && !file.delete()) {
+                Logger.e(TAG, "Could not delete stale partial file " + file.getName());
+            }
+        }
+    }
+
+    /**
+     * Files from before the cache was split into pools are not used anymore.
+     */
+    @WorkerThread
+    private void deleteUnpooledFiles(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.isFile() && !file.delete()) {
+                Logger.e(TAG, "Could not delete unpooled cache file " + file.getName());
+            }
+        }
     }
 
     private void handleFileImmediatelyAvailable(FileCacheListener listener, File file) {
@@ -117,12 +391,47 @@ public class FileCache implements FileCacheDownloader.Callback {
     }
 
     private FileCacheDownloader handleStartDownload(
-            FileCacheListener listener, File file, String url) {
+            FileCacheListener listener, File file, String url, DownloadPriority priority) {
         FileCacheDownloader downloader = FileCacheDownloader.fromCallbackClientUrlOutputUserAgent(
                 this, httpClient, url, file, userAgent);
         downloader.addListener(listener);
+        downloader.setConnectionLimits(connectionLimiter, segmentPool,
+                ChanSettings.segmentedDownloads.get() ? MAX_SEGMENTS : 1);
+        downloader.setThroughputMeter(throughputMeter);
+        downloader.setPriority(priority);
         downloader.execute(downloadPool);
-        downloaders.add(downloader);
+        downloaders.put(url, downloader);
+        preemptFor(downloader);
         return downloader;
     }
+
+    /**
+     * When all threads are busy, park the least urgent running download that has a lower
+     * priority than the queued one. The parked download is queued again and resumes from its
+     * partial file once it is the most urgent.
+     */
+    @MainThread
+    private void preemptFor(FileCacheDownloader queued) {
+        // Not waiting when it went straight to a new or idle thread.
+        if (downloadPool.getActiveCount() < DOWNLOAD_POOL_SIZE || !downloadPool.getQueue().contains(queued)) {
+            return;
+        }
+
+        List<FileCacheDownloader> candidates = new ArrayList<>();
+        for (FileCacheDownloader downloader : downloaders.values()) {
+            if (downloader.isRunning() && queued.getPriority().isHigherThan(downloader.getPriority())) {
+                candidates.add(downloader);
+            }
+        }
+
+        // Least urgent first, then the most recently queued.
+        candidates.sort(FileCacheDownloader.QUEUE_ORDER.reversed());
+        for (FileCacheDownloader candidate : candidates) {
+            if (candidate.park()) {
+                Logger.d(TAG, "Parked a " + candidate.getPriority() + " download for a "
+                        + queued.getPriority() + " download");
+                return;
+            }
+        }
+    }
 }
@@ -0,0 +1,156 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.otacoo.chan.core.cache;
+
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.PlaybackException;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.BaseDataSource;
+import androidx.media3.datasource.DataSourceException;
+import androidx.media3.datasource.DataSpec;
+
+import org.otacoo.chan.utils.IOUtils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A media DataSource that reads a file while the {@link FileCacheDownloader} is still writing
+ * it. Reads only block when they catch up with the download, so playback can start as soon as
+ * the first bytes arrive. Positions that are not downloaded yet are waited for.
+ */
+@UnstableApi
+public class FileCacheDataSource extends BaseDataSource {
+    private final FileCacheDownloader downloader;
+
+    @Nullable
+    private Uri uri;
+    private RandomAccessFile file;
+    private int generation;
+    private long position;
+    private long bytesRemaining;
+    private boolean opened;
+
+    public FileCacheDataSource(FileCacheDownloader downloader) {
+        super(false);
+        this.downloader = downloader;
+    }
+
+    @Override
+    public long open(@NonNull DataSpec dataSpec) throws IOException {
+        uri = dataSpec.uri;
+        transferInitializing(dataSpec);
+
+        position = dataSpec.position;
+        // Also waits for the download to start writing the file.
+        downloader.awaitAvailable(position);
+
+        long length = downloader.getExpectedLength();
+        if (length >= 0 && position > length) {
+            throw new DataSourceException(PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE);
+        }
+
+        openFile();
+
+        if (dataSpec.length != C.LENGTH_UNSET) {
+            bytesRemaining = dataSpec.length;
+        } else if (length >= 0) {
+            bytesRemaining = length - position;
+        } else {
+            bytesRemaining = C.LENGTH_UNSET;
+        }
+
+        opened = true;
+        transferStarted(dataSpec);
+        return bytesRemaining;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        } else if (bytesRemaining == 0) {
+            return C.RESULT_END_OF_INPUT;
+        }
+
+        long available = downloader.awaitAvailable(position);
+        if (available < 0) {
+            return C.RESULT_END_OF_INPUT;
+        }
+
+        if (downloader.getGeneration() != generation) {
+            openFile();
+        }
+
+        long toRead = Math.min(length, available - position);
+        if (bytesRemaining != C.LENGTH_UNSET) {
+            toRead = Math.min(toRead, bytesRemaining);
+        }
+
+        int read = file.read(buffer, offset, (int) toRead);
+        if (read == -1) {
+            throw new IOException("file shorter than the downloaded length");
+        }
+
+        position += read;
+        if (bytesRemaining != C.LENGTH_UNSET) {
+            bytesRemaining -= read;
+        }
+        bytesTransferred(read);
+        return read;
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+        return uri;
+    }
+
+    @Override
+    public void close() {
+        uri = null;
+        IOUtils.closeQuietly(file);
+        file = null;
+
+        if (opened) {
+            opened = false;
+            transferEnded();
+        }
+    }
+
+    private void openFile() throws IOException {
+        IOUtils.closeQuietly(file);
+        file = null;
+
+        generation = downloader.getGeneration();
+        File downloading = downloader.getDownloadingFile();
+        try {
+            file = new RandomAccessFile(downloading, "r");
+        } catch (FileNotFoundException e) {
+            // The partial file was renamed to the cache file in the meantime.
+            file = new RandomAccessFile(downloader.getDownloadingFile(), "r");
+        }
+        file.seek(position);
+    }
+}
@@ -30,12 +30,24 @@ import org.otacoo.chan.utils.Logger;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import okhttp3.Call;
 import okhttp3.OkHttpClient;
@@ -53,24 +65,97 @@ public class FileCacheDownloader implements Runnable {
     private static final long NOTIFY_SIZE = BUFFER_SIZE * 8;
     private static final int MAX_RETRIES = 1;
 
+    /**
+     * Suffix of the file the body is written to while downloading. It is renamed to the output
+     * file when complete, so the output file only ever exists fully written.
+     */
+    static final String PARTIAL_SUFFIX = ".partial";
+
+    /**
+     * Suffix of the file containing the validator (strong ETag or Last-Modified) of the partial
+     * file. Without it a partial file can not be resumed.
+     */
+    static final String VALIDATOR_SUFFIX = ".validator";
+
+    /**
+     * Directory in the pool directory for the partial and validator files. The cache handler
+     * only counts and trims the files directly in the pool directory, so it never deletes the
+     * file of a running download.
+     */
+    static final String PARTIAL_DIRECTORY = "partial";
+
+    /**
+     * Files smaller than this are always downloaded over a single connection, the extra
+     * requests would cost more than they gain.
+     */
+    private static final long MIN_SEGMENTED_SIZE = 2 * 1024 * 1024;
+
+    /**
+     * Order of a priority queue of downloads: most urgent first, then in the order they were
+     * first queued. Other tasks go before all downloads.
+     */
+    static final Comparator<Runnable> QUEUE_ORDER = (a, b) -> {
+        boolean aDownload = a instanceof FileCacheDownloader;
+        boolean bDownload = b instanceof FileCacheDownloader;
+        if (!aDownload || !bDownload) {
+            return Boolean.compare(aDownload, bDownload);
+        }
+
+        FileCacheDownloader first = (FileCacheDownloader) a;
+        FileCacheDownloader second = (FileCacheDownloader) b;
+        int byPriority = first.priority.compareTo(second.priority);
+        return byPriority != 0 ? byPriority : Long.compare(first.sequence, second.sequence);
+    };
+
+    private static final AtomicLong queueSequence = new AtomicLong();
+
     private final OkHttpClient httpClient;
     private final String url;
     private final File output;
+    private final File partial;
+    private final File validator;
     private final String userAgent;
     private final Handler handler;
 
+    // Optional, set before execute.
+    private HostConnectionLimiter connectionLimiter;
+    private ExecutorService segmentExecutor;
+    private int maxSegments = 1;
+    private ThroughputMeter throughputMeter;
+
     // Main thread only.
     private final Callback callback;
     private final List<FileCacheListener> listeners = new ArrayList<>();
 
+    // Written on the main thread, read by the queue on any thread.
+    private volatile DownloadPriority priority = DownloadPriority.VIEWER;
+    private volatile long sequence;
+
     // Main and worker thread.
     private final AtomicBoolean running = new AtomicBoolean(false);
     private final AtomicBoolean cancel = new AtomicBoolean(false);
-    private Future<?> future;
+    private final AtomicBoolean park = new AtomicBoolean(false);
+    private volatile boolean parkable;
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+    // Written by the worker thread, read by any thread through awaitAvailable.
+    private final Object availableLock = new Object();
+    private long available;
+    private long expectedLength = -1;
+    private int generation;
+    private boolean ended;
+    private boolean succeeded;
+
+    // Worker and segment threads.
+    private final List<Call> segmentCalls = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong lastNotifyTime = new AtomicLong();
 
     // Worker thread.
     private Call call;
     private ResponseBody body;
+    private String bodyUrl;
+    private String bodyValidator;
+    private boolean bodyAcceptsRanges;
 
     static FileCacheDownloader fromCallbackClientUrlOutputUserAgent(
             Callback callback, OkHttpClient httpClient, String url,
@@ -86,12 +171,82 @@ public class FileCacheDownloader implements Runnable {
         this.output = output;
         this.userAgent = userAgent;
 
+        File partialDirectory = new File(output.getParentFile(), PARTIAL_DIRECTORY);
+        partial = new File(partialDirectory, output.getName() + PARTIAL_SUFFIX);
+        validator = new File(partialDirectory, output.getName() + VALIDATOR_SUFFIX);
+
         handler = new Handler(Looper.getMainLooper());
     }
 
+    /**
+     * Limit the connections per host, and allow large files to be downloaded in up to
+     * {@code maxSegments} byte ranges in parallel on the {@code segmentExecutor}.
+     */
+    @MainThread
+    void setConnectionLimits(HostConnectionLimiter connectionLimiter,
+                             ExecutorService segmentExecutor, int maxSegments) {
+        this.connectionLimiter = connectionLimiter;
+        this.segmentExecutor = segmentExecutor;
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Report the speed of the download to the meter when it succeeds.
+     */
+    @MainThread
+    void setThroughputMeter(ThroughputMeter throughputMeter) {
+        this.throughputMeter = throughputMeter;
+    }
+
+    /**
+     * Queue this download on the executor. Use an executor ordered by {@link #QUEUE_ORDER} for
+     * the priority to have effect.
+     */
+    @MainThread
+    public void execute(Executor executor) {
+        sequence = queueSequence.incrementAndGet();
+        executor.execute(this);
+    }
+
+    /**
+     * Queue a parked download again, at its original place among downloads of the same priority.
+     */
     @MainThread
-    public void execute(ExecutorService executor) {
-        future = executor.submit(this);
+    void resume(Executor executor) {
+        park.set(false);
+        running.set(false);
+        executor.execute(this);
+    }
+
+    @AnyThread
+    public DownloadPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Only changes the order of a queued download when it is queued again, use
+     * {@link FileCache#setPriority(FileCacheDownloader, DownloadPriority)} instead.
+     */
+    @MainThread
+    void setPriority(DownloadPriority priority) {
+        this.priority = priority;
+    }
+
+    @MainThread
+    boolean isRunning() {
+        return running.get() && !cancel.get();
+    }
+
+    /**
+     * Ask the running download to stop and keep its partial file, so that a more urgent download
+     * can take its thread. The download is handed back with
+     * {@link Callback#downloaderParked(FileCacheDownloader)} to be resumed later.
+     *
+     * @return false if the download could not be resumed later and continues running.
+     */
+    @MainThread
+    boolean park() {
+        return running.get() && parkable && !cancel.get() && park.compareAndSet(false, true);
     }
 
     @MainThread
@@ -99,9 +254,20 @@ public class FileCacheDownloader implements Runnable {
         return url;
     }
 
+    /**
+     * @return the cache file, which only exists once the download succeeded.
+     */
+    @AnyThread
+    public File getOutput() {
+        return output;
+    }
+
+    /**
+     * @return a future that completes when the download succeeded, failed or was cancelled.
+     */
     @AnyThread
     public Future<?> getFuture() {
-        return future;
+        return completion;
     }
 
     @MainThread
@@ -109,6 +275,27 @@ public class FileCacheDownloader implements Runnable {
         listeners.add(callback);
     }
 
+    /**
+     * Stop calling a listener given to {@link #addListener(FileCacheListener)}.
+     *
+     * @return if other listeners are still waiting on this download.
+     */
+    @MainThread
+    boolean removeListener(FileCacheListener callback) {
+        listeners.remove(callback);
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * @return the bytes left to download, or -1 when the length is not known yet.
+     */
+    @AnyThread
+    public long getRemainingBytes() {
+        synchronized (availableLock) {
+            return expectedLength >= 0 ? Math.max(0, expectedLength - available) : -1;
+        }
+    }
+
     /**
      * Cancel this download.
      */
@@ -117,11 +304,110 @@ public class FileCacheDownloader implements Runnable {
         if (cancel.compareAndSet(false, true)) {
             // Did not start running yet, mark finished here.
             if (!running.get()) {
+                publishEnded(false);
                 callback.downloaderFinished(this);
             }
         }
     }
 
+    /**
+     * Wait until the byte at {@code position} has been written to the file being downloaded,
+     * see {@link #getDownloadingFile()}.
+     *
+     * @return the amount of bytes available from the start of the file, or -1 if the download
+     * completed and the position is past the end.
+     * @throws IOException when the download failed or was cancelled before reaching the position.
+     */
+    @WorkerThread
+    long awaitAvailable(long position) throws IOException {
+        synchronized (availableLock) {
+            while (!ended && available <= position) {
+                try {
+                    availableLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+
+            if (available > position) {
+                return available;
+            } else if (succeeded) {
+                return -1;
+            } else {
+                throw new IOException("download ended before position " + position);
+            }
+        }
+    }
+
+    /**
+     * @return the total length of the file, or -1 if not known yet.
+     */
+    @AnyThread
+    long getExpectedLength() {
+        synchronized (availableLock) {
+            return expectedLength;
+        }
+    }
+
+    /**
+     * Incremented every time the download restarts from the beginning into a new partial file.
+     * Readers that opened the file in an earlier generation must open it again.
+     */
+    @AnyThread
+    int getGeneration() {
+        synchronized (availableLock) {
+            return generation;
+        }
+    }
+
+    /**
+     * @return the file the available bytes can be read from: the partial file while downloading,
+     * the cache file when finished.
+     */
+    @AnyThread
+    File getDownloadingFile() {
+        synchronized (availableLock) {
+            return succeeded ? output : partial;
+        }
+    }
+
+    @AnyThread
+    private void publishStarted(long offset, long length) {
+        synchronized (availableLock) {
+            if (offset == 0) {
+                generation++;
+            }
+            available = offset;
+            expectedLength = length;
+            availableLock.notifyAll();
+        }
+    }
+
+    @AnyThread
+    private void publishAvailable(long bytes) {
+        synchronized (availableLock) {
+            if (bytes > available) {
+                available = bytes;
+                availableLock.notifyAll();
+            }
+        }
+    }
+
+    @AnyThread
+    private void publishEnded(boolean success) {
+        synchronized (availableLock) {
+            ended = true;
+            succeeded = success;
+            if (success) {
+                available = output.length();
+                expectedLength = available;
+            }
+            availableLock.notifyAll();
+        }
+        completion.complete(null);
+    }
+
     @AnyThread
     private void post(Runnable runnable) {
         handler.post(runnable);
@@ -153,24 +439,62 @@ public class FileCacheDownloader implements Runnable {
         for (int attempt = 0; attempt <= MAX_RETRIES; attempt++) {
             Closeable sourceCloseable = null;
             Closeable sinkCloseable = null;
+            boolean holdsConnection = false;
 
             try {
                 checkCancel();
 
-                getBody();
+                if (connectionLimiter != null) {
+                    connectionLimiter.acquire(url);
+                    holdsConnection = true;
+                }
+
+                long startTime = System.currentTimeMillis();
+
+                File partialDirectory = partial.getParentFile();
+                if (!partialDirectory.isDirectory() && !partialDirectory.mkdirs()) {
+                    throw new IOException("could not create the partial directory");
+                }
+
+                long offset = getBody(resumableLength());
 
                 Source source = body.source();
                 sourceCloseable = source;
 
-                BufferedSink sink = Okio.buffer(Okio.sink(output));
-                sinkCloseable = sink;
+                long contentLength = body.contentLength();
+                publishStarted(offset, contentLength >= 0 ? offset + contentLength : -1);
 
-                checkCancel();
+                int extraSegments = offset == 0 ? acquireExtraSegments() : 0;
+                if (extraSegments > 0) {
+                    pipeSegmented(source, extraSegments);
+                } else {
+                    BufferedSink sink = Okio.buffer(offset > 0 ?
+                            Okio.appendingSink(partial) : Okio.sink(partial));
+                    sinkCloseable = sink;
+
+                    // With a validator the partial file can be resumed after parking.
+                    parkable = validator.exists();
+                    checkCancel();
 
-                pipeBody(source, sink);
+                    pipeBody(source, sink, offset);
+                    sink.close();
+                }
+
+                if (throughputMeter != null) {
+                    throughputMeter.addSample(partial.length() - offset,
+                            System.currentTimeMillis() - startTime);
+                }
+
+                if (!partial.renameTo(output)) {
+                    throw new IOException("could not rename the partial file");
+                }
+                purgeValidator();
+                publishEnded(true);
+
+                String md5 = digestOutput();
 
                 post(() -> {
-                    callback.downloaderAddedFile(output);
+                    callback.downloaderAddedFile(url, output, md5);
                     callback.downloaderFinished(this);
                     for (FileCacheListener callback : listeners) {
                         callback.onSuccess(output);
@@ -179,6 +503,12 @@ public class FileCacheDownloader implements Runnable {
                 });
                 return;
             } catch (IOException e) {
+                if (e instanceof ParkException) {
+                    log("parked");
+                    post(() -> callback.downloaderParked(this));
+                    return;
+                }
+
                 boolean isNotFound = false;
                 boolean cancelled = false;
                 if (e instanceof HttpCodeIOException) {
@@ -196,10 +526,15 @@ public class FileCacheDownloader implements Runnable {
                 if (!cancelled && !isNotFound && attempt < MAX_RETRIES) {
                     log("transient failure, will retry");
                 } else {
+                    // Keep what was downloaded so far for a later attempt, unless the file is gone.
+                    if (isNotFound || !validator.exists()) {
+                        purgePartial();
+                    }
+                    publishEnded(false);
+
                     final boolean finalIsNotFound = isNotFound;
                     final boolean finalCancelled = cancelled;
                     post(() -> {
-                        purgeOutput();
                         for (FileCacheListener callback : listeners) {
                             if (finalCancelled) {
                                 callback.onCancel();
@@ -214,9 +549,14 @@ public class FileCacheDownloader implements Runnable {
                     return;
                 }
             } finally {
+                parkable = false;
                 IOUtils.closeQuietly(sourceCloseable);
                 IOUtils.closeQuietly(sinkCloseable);
 
+                if (holdsConnection) {
+                    connectionLimiter.release(url);
+                }
+
                 if (call != null) {
                     call.cancel();
                     call = null;
@@ -228,19 +568,27 @@ public class FileCacheDownloader implements Runnable {
                 }
             }
 
-            // Retry: purge the partial file and wait briefly before the next attempt.
-            purgeOutput();
+            // Retry: the next attempt resumes from the partial file when possible.
             try {
                 Thread.sleep(2000L);
             } catch (InterruptedException ie) {
                 Thread.currentThread().interrupt();
+                publishEnded(false);
                 return;
             }
         }
     }
 
+    /**
+     * Opens the body of the url, requesting only the bytes after {@code resumeFrom} if it is
+     * larger than zero.
+     *
+     * @param resumeFrom length of the partial file that can be resumed, or 0.
+     * @return the offset in the partial file at which the body starts, either
+     * {@code resumeFrom} when the server honored the range, or 0 for the full body.
+     */
     @WorkerThread
-    private ResponseBody getBody() throws IOException {
+    private long getBody(long resumeFrom) throws IOException {
         Request.Builder requestBuilder = new Request.Builder()
                 .url(url)
                 .header("User-Agent", userAgent);
@@ -250,18 +598,40 @@ public class FileCacheDownloader implements Runnable {
             requestBuilder.header("Cookie", cookies);
         }
 
+        if (resumeFrom > 0) {
+            // If-Range makes the server send the full body when the file changed.
+            requestBuilder.header("Range", "bytes=" + resumeFrom + "-");
+            requestBuilder.header("If-Range", readValidator());
+        }
+
         Request request = requestBuilder.build();
 
         call = httpClient.newCall(request);
 
         Response response = call.execute();
 
+        if (response.code() == 416 && resumeFrom > 0) {
+            // The partial file is not a prefix of the file on the server anymore.
+            response.close();
+            log("range not satisfiable, restarting");
+            purgePartial();
+            return getBody(0);
+        }
+
         if (!response.isSuccessful()) {
             int code = response.code();
             response.close();
             if (code == 404 && url.endsWith(".png")) {
                 String fallbackUrl = url.substring(0, url.length() - 4);
-                request = requestBuilder.url(fallbackUrl).build();
+                // The partial file is of the original url, not a prefix of this resource.
+                if (resumeFrom > 0) {
+                    purgePartial();
+                    resumeFrom = 0;
+                }
+                request = requestBuilder.url(fallbackUrl)
+                        .removeHeader("Range")
+                        .removeHeader("If-Range")
+                        .build();
                 call = httpClient.newCall(request);
                 response = call.execute();
                 if (!response.isSuccessful()) {
@@ -277,6 +647,21 @@ public class FileCacheDownloader implements Runnable {
         try {
             checkCancel();
 
+            long offset = 0;
+            if (resumeFrom > 0 && response.code() == 206) {
+                if (parseRangeStart(response.header("Content-Range")) != resumeFrom) {
+                    purgePartial();
+                    throw new IOException("unexpected content range");
+                }
+                log("resuming at " + resumeFrom);
+                offset = resumeFrom;
+            } else {
+                bodyValidator = writeValidator(response);
+            }
+
+            bodyUrl = response.request().url().toString();
+            bodyAcceptsRanges = "bytes".equalsIgnoreCase(response.header("Accept-Ranges"));
+
             body = response.body();
             if (body == null) {
                 throw new IOException("body == null");
@@ -284,7 +669,7 @@ public class FileCacheDownloader implements Runnable {
 
             checkCancel();
 
-            return body;
+            return offset;
         } catch (IOException | RuntimeException e) {
             response.close();
             throw e;
@@ -292,11 +677,14 @@ public class FileCacheDownloader implements Runnable {
     }
 
     @WorkerThread
-    private void pipeBody(Source source, BufferedSink sink) throws IOException {
+    private void pipeBody(Source source, BufferedSink sink, long offset) throws IOException {
         long contentLength = body.contentLength();
+        if (contentLength > 0) {
+            contentLength += offset;
+        }
 
         long read;
-        long total = 0;
+        long total = offset;
         long lastNotifyTime = System.currentTimeMillis();
 
         Buffer buffer = new Buffer();
@@ -305,6 +693,10 @@ public class FileCacheDownloader implements Runnable {
             sink.write(buffer, read);
             total += read;
 
+            // Make the bytes visible to readers of the partial file.
+            sink.emit();
+            publishAvailable(total);
+
             long currentTime = System.currentTimeMillis();
             if (currentTime - lastNotifyTime >= 100) {
                 lastNotifyTime = currentTime;
@@ -322,21 +714,283 @@ public class FileCacheDownloader implements Runnable {
         }
     }
 
+    /**
+     * Reserve connections for downloading the current body in segments.
+     *
+     * @return the amount of extra connections acquired, 0 if the body can't or shouldn't be
+     * split.
+     */
+    @WorkerThread
+    private int acquireExtraSegments() {
+        if (maxSegments <= 1 || connectionLimiter == null || segmentExecutor == null ||
+                !bodyAcceptsRanges || bodyValidator == null ||
+                body.contentLength() < MIN_SEGMENTED_SIZE) {
+            return 0;
+        }
+
+        int extra = 0;
+        while (extra < maxSegments - 1 && connectionLimiter.tryAcquire(url)) {
+            extra++;
+        }
+        return extra;
+    }
+
+    /**
+     * Download the body in {@code extraSegments + 1} byte ranges into a preallocated partial
+     * file. The first range is read from the already open body, the others are requested in
+     * parallel. The connections for the extra segments are released when they finish.
+     */
+    @WorkerThread
+    private void pipeSegmented(Source source, int extraSegments) throws IOException {
+        long contentLength = body.contentLength();
+        int segments = extraSegments + 1;
+        long segmentSize = contentLength / segments;
+        log("downloading in " + segments + " segments");
+
+        // The partial file has holes until all segments are done, it can not be resumed.
+        purgeValidator();
+
+        AtomicLong downloaded = new AtomicLong();
+        List<Future<?>> segmentFutures = new ArrayList<>(extraSegments);
+        RandomAccessFile file = new RandomAccessFile(partial, "rw");
+        try {
+            file.setLength(contentLength);
+            FileChannel channel = file.getChannel();
+
+            for (int i = 1; i < segments; i++) {
+                long start = i * segmentSize;
+                long end = i == segments - 1 ? contentLength - 1 : start + segmentSize - 1;
+                try {
+                    segmentFutures.add(segmentExecutor.submit(() -> {
+                        try {
+                            downloadSegment(channel, start, end, contentLength, downloaded);
+                        } finally {
+                            connectionLimiter.release(url);
+                        }
+                        return null;
+                    }));
+                } catch (RejectedExecutionException e) {
+                    // Give back the connections of this and the following segments.
+                    for (int j = i; j < segments; j++) {
+                        connectionLimiter.release(url);
+                    }
+                    throw new IOException("segment rejected", e);
+                }
+            }
+
+            writeSegment(source, channel, 0, segmentSize, contentLength, downloaded, true);
+
+            for (Future<?> segmentFuture : segmentFutures) {
+                try {
+                    segmentFuture.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof IOException ?
+                            (IOException) cause : new IOException(cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+
+            publishAvailable(contentLength);
+            postProgress(contentLength, contentLength);
+        } catch (IOException | RuntimeException e) {
+            // Stop the other segments before the file is closed.
+            synchronized (segmentCalls) {
+                for (Call segmentCall : segmentCalls) {
+                    segmentCall.cancel();
+                }
+            }
+            for (Future<?> segmentFuture : segmentFutures) {
+                try {
+                    segmentFuture.get();
+                } catch (ExecutionException ignored) {
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            throw e;
+        } finally {
+            segmentCalls.clear();
+            IOUtils.closeQuietly(file);
+        }
+    }
+
+    @WorkerThread
+    private void downloadSegment(FileChannel channel, long start, long end, long total,
+                                 AtomicLong downloaded) throws IOException {
+        Request.Builder requestBuilder = new Request.Builder()
+                .url(bodyUrl)
+                .header("User-Agent", userAgent)
+                .header("Range", "bytes=" + start + "-" + end)
+                .header("If-Range", bodyValidator);
+
+        String cookies = CookieManager.getInstance().getCookie(bodyUrl);
+        if (cookies != null && !cookies.isEmpty()) {
+            requestBuilder.header("Cookie", cookies);
+        }
+
+        Call segmentCall = httpClient.newCall(requestBuilder.build());
+        segmentCalls.add(segmentCall);
+        checkCancel();
+
+        Response response = segmentCall.execute();
+        try {
+            ResponseBody segmentBody = response.body();
+            if (response.code() != 206 || segmentBody == null ||
+                    parseRangeStart(response.header("Content-Range")) != start) {
+                throw new IOException("segment not served as range, code: " + response.code());
+            }
+
+            writeSegment(segmentBody.source(), channel, start, end - start + 1, total, downloaded,
+                    false);
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Positional write of exactly {@code length} bytes from the source into the channel.
+     *
+     * @param prefix if the segment starts at the beginning of the file, its progress is
+     *               published to readers of the partial file.
+     */
+    @WorkerThread
+    private void writeSegment(Source source, FileChannel channel, long position, long length,
+                              long total, AtomicLong downloaded, boolean prefix) throws IOException {
+        Buffer buffer = new Buffer();
+        byte[] bytes = new byte[(int) BUFFER_SIZE];
+        ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+
+        long remaining = length;
+        while (remaining > 0) {
+            if (source.read(buffer, Math.min(BUFFER_SIZE, remaining)) == -1) {
+                throw new IOException("segment ended early");
+            }
+
+            while (!buffer.exhausted()) {
+                int count = buffer.read(bytes, 0, bytes.length);
+                wrapped.clear();
+                wrapped.limit(count);
+                while (wrapped.hasRemaining()) {
+                    position += channel.write(wrapped, position);
+                }
+                remaining -= count;
+
+                if (prefix) {
+                    publishAvailable(position);
+                }
+
+                long current = downloaded.addAndGet(count);
+                long currentTime = System.currentTimeMillis();
+                long lastTime = lastNotifyTime.get();
+                if (currentTime - lastTime >= 100 &&
+                        lastNotifyTime.compareAndSet(lastTime, currentTime)) {
+                    postProgress(current, total);
+                }
+            }
+
+            checkCancel();
+        }
+    }
+
     @WorkerThread
     private void checkCancel() throws IOException {
         if (cancel.get()) {
             throw new CancelException();
         }
+        if (park.get()) {
+            throw new ParkException();
+        }
+    }
+
+    /**
+     * @return the length of the partial file if it can be resumed, 0 otherwise.
+     */
+    @WorkerThread
+    private long resumableLength() {
+        if (partial.exists() && validator.exists()) {
+            return partial.length();
+        }
+        return 0;
     }
 
     @WorkerThread
-    private void purgeOutput() {
-        if (output.exists()) {
-            final boolean deleteResult = output.delete();
+    private String readValidator() throws IOException {
+        return IOUtils.readString(new FileInputStream(validator)).trim();
+    }
 
-            if (!deleteResult) {
-                log("could not delete the file in purgeOutput");
-            }
+    /**
+     * Store the validator of a full response, which is needed to resume the download later.
+     * Weak ETags can not be used with If-Range, fall back to Last-Modified for those.
+     *
+     * @return the stored validator, or null if the response has none.
+     */
+    @WorkerThread
+    private String writeValidator(Response response) throws IOException {
+        String value = response.header("ETag");
+        if (value == null || value.startsWith("W/")) {
+            value = response.header("Last-Modified");
+        }
+
+        if (value == null) {
+            purgeValidator();
+            return null;
+        }
+
+        BufferedSink sink = Okio.buffer(Okio.sink(validator));
+        try {
+            sink.writeUtf8(value);
+        } finally {
+            IOUtils.closeQuietly(sink);
+        }
+        return value;
+    }
+
+    @WorkerThread
+    private static long parseRangeStart(String contentRange) {
+        // Format: "bytes 100-199/200"
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(6, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @WorkerThread
+    private String digestOutput() {
+        try {
+            return Md5Index.digest(output);
+        } catch (IOException e) {
+            log("could not digest the output", e);
+            return null;
+        }
+    }
+
+    @WorkerThread
+    private void purgePartial() {
+        deleteQuietly(partial);
+        purgeValidator();
+    }
+
+    @WorkerThread
+    private void purgeValidator() {
+        deleteQuietly(validator);
+    }
+
+    @WorkerThread
+    private void deleteQuietly(File file) {
+        if (file.exists() && !file.delete()) {
+            log("could not delete " + file.getName());
         }
     }
 
@@ -356,6 +1010,13 @@ public class FileCacheDownloader implements Runnable {
         }
     }
 
+    private static class ParkException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ParkException() {
+        }
+    }
+
     private static class HttpCodeIOException extends IOException {
         private static final long serialVersionUID = 1L;
 
@@ -369,6 +1030,15 @@ public class FileCacheDownloader implements Runnable {
     public interface Callback {
         void downloaderFinished(FileCacheDownloader fileCacheDownloader);
 
-        void downloaderAddedFile(File file);
+        /**
+         * The download stopped to make room for a more urgent one, and should be resumed with
+         * {@link FileCacheDownloader#resume(Executor)}.
+         */
+        void downloaderParked(FileCacheDownloader fileCacheDownloader);
+
+        /**
+         * @param md5 the digest of the file as hex, or null if it could not be calculated.
+         */
+        void downloaderAddedFile(String url, File file, String md5);
     }
 }
@@ -0,0 +1,74 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.otacoo.chan.core.cache;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.WorkerThread;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Limits the amount of connections the file cache opens to a single host, shared between all
+ * downloads. Every download holds one connection, segmented downloads take extra connections
+ * only when they are available.
+ */
+class HostConnectionLimiter {
+    private final int maxPerHost;
+    private final Map<String, Semaphore> hosts = new HashMap<>();
+
+    HostConnectionLimiter(int maxPerHost) {
+        this.maxPerHost = maxPerHost;
+    }
+
+    @WorkerThread
+    void acquire(String url) throws InterruptedIOException {
+        try {
+            forUrl(url).acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @AnyThread
+    boolean tryAcquire(String url) {
+        return forUrl(url).tryAcquire();
+    }
+
+    @AnyThread
+    void release(String url) {
+        forUrl(url).release();
+    }
+
+    private synchronized Semaphore forUrl(String url) {
+        HttpUrl httpUrl = HttpUrl.parse(url);
+        String host = httpUrl != null ? httpUrl.host() : url;
+
+        Semaphore semaphore = hosts.get(host);
+        if (semaphore == null) {
+            semaphore = new Semaphore(maxPerHost);
+            hosts.put(host, semaphore);
+        }
+        return semaphore;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.otacoo.chan.core.cache;
+
+import androidx.annotation.MainThread;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+
+/**
+ * Loads the small icons shown next to posts, like country and board flags.
+ * <p>
+ * Threads on flag boards show the same few hundred flags over and over. They get their own
+ * {@link ImagePipeline} with its own memory and disk cache, so that loading thumbnails doesn't
+ * evict them and every flag is only downloaded and decoded once.
+ */
+public class IconCache {
+    // In kilobytes, a flag takes less than one.
+    private static final int MEMORY_CACHE_SIZE = 1024;
+
+    private final ImagePipeline pipeline;
+
+    public IconCache(OkHttpClient httpClient, ThumbnailDiskCache diskCache) {
+        pipeline = new ImagePipeline(httpClient, diskCache, MEMORY_CACHE_SIZE);
+    }
+
+    /**
+     * Load the icon at the url, see {@link ImagePipeline#request(String, int, int, boolean, ImagePipeline.Listener)}.
+     */
+    @MainThread
+    public ImagePipeline.ImageRequest request(HttpUrl url, ImagePipeline.Listener listener) {
+        return pipeline.request(url.toString(), 0, 0, false, listener);
+    }
+
+    @MainThread
+    public void trimMemory(float retained) {
+        pipeline.trimMemory(retained);
+    }
+}
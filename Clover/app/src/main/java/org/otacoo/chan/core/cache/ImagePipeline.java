@@ -0,0 +1,654 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.otacoo.chan.core.cache;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import org.otacoo.chan.core.site.sites.chan8.Chan8RateLimit;
+import org.otacoo.chan.utils.AndroidUtils;
+import org.otacoo.chan.utils.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import okhttp3.CacheControl;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Loads small images like thumbnails and icons into bitmaps, for every view and manager that
+ * shows them.
+ * <p>
+ * Bitmaps are looked up in a memory cache by url, then in the {@link ThumbnailDiskCache}, and
+ * otherwise downloaded and decoded downsampled to the requested size. Requests for the same url
+ * and size while one is loading share it. The load is cancelled once all of its requests are.
+ * Decoding happens on its own threads, not on the threads of OkHttp.
+ * <p>
+ * Requests with a priority lower than {@link DownloadPriority#VIEWER} are prefetches, they wait
+ * until no viewer request is loading, and only a few of them load at the same time, the most
+ * urgent first.
+ */
+public class ImagePipeline {
+    private static final String TAG = "ImagePipeline";
+    private static final int DECODE_THREADS = 2;
+    private static final int MAX_LOADING_PREFETCHES = 2;
+
+    /**
+     * Failure codes for {@link Listener#onFailure(int)} besides http status codes.
+     */
+    public static final int FAILURE_NETWORK = -1;
+    public static final int FAILURE_DECODE = -2;
+
+    private static final int ESCAPED = -1;
+
+    private final OkHttpClient httpClient;
+    private final ThumbnailDiskCache diskCache;
+    private final ExecutorService decodeExecutor = Executors.newFixedThreadPool(DECODE_THREADS);
+
+    /**
+     * Separate OkHttpClient for 8chan /.media/ thumbnail requests.
+     * Its dispatcher is capped at 2 concurrent requests per host so that scrolling
+     * through image-heavy threads does not fire 20+ simultaneous hits and trigger 429s.
+     * All interceptors (including Chan8PowInterceptor) are inherited from the base client.
+     */
+    @Nullable
+    private volatile OkHttpClient chan8MediaClient = null;
+
+    // Keyed by url and the size decoded to, see cacheKey.
+    private final LruCache<String, Bitmap> memoryCache;
+    // The memory cache key last stored for each url, for lookups by url only. Main thread only.
+    private final Map<String, String> cacheKeysByUrl = new HashMap<>();
+    private final BitmapPool bitmapPool;
+
+    /**
+     * Users of the bitmaps decoded here: the memory cache and every view that tracks its use
+     * with {@link #retain(Bitmap)} and {@link #release(Bitmap)}. A bitmap without users goes to
+     * the pool. Bitmaps given to listeners that don't track them are marked with
+     * {@link #ESCAPED}, they are never pooled. Guarded by itself.
+     */
+    private final Map<Bitmap, Integer> bitmapUsers = new WeakHashMap<>();
+
+    // Main thread only.
+    private final Map<String, Job> jobs = new HashMap<>();
+    private final Queue<Job> queuedPrefetches = new PriorityQueue<>(11, (a, b) ->
+            a.priority != b.priority ? a.priority.compareTo(b.priority) : Long.compare(a.sequence, b.sequence));
+    private int loadingJobs;
+    private int loadingPrefetches;
+    private long jobSequence;
+
+    public ImagePipeline(OkHttpClient httpClient, ThumbnailDiskCache diskCache) {
+        this(httpClient, diskCache, MemoryPolicy.getImageCacheSize());
+    }
+
+    /**
+     * @param cacheSize the size of the memory cache, in kilobytes.
+     */
+    public ImagePipeline(OkHttpClient httpClient, ThumbnailDiskCache diskCache, int cacheSize) {
+        this.httpClient = httpClient;
+        this.diskCache = diskCache;
+
+        memoryCache = new LruCache<>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                // Rounded up, so small icons still count towards the limit.
+                return Math.max(1, (bitmap.getByteCount() + 1023) / 1024);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if (newValue == null) {
+                    cacheKeysByUrl.remove(key.substring(0, key.lastIndexOf(' ')), key);
+                }
+                release(oldValue);
+            }
+        };
+        // A quarter of the memory cache, in bytes.
+        bitmapPool = new BitmapPool(cacheSize * 1024L / 4);
+    }
+
+    /**
+     * Load the image at the url.<br>
+     * If it is in the memory cache the listener is called immediately and null is returned.
+     *
+     * @param width     the width to downsample to, or 0 to decode the full image.
+     * @param height    the height to downsample to, or 0 to decode the full image.
+     * @param cacheOnly only use responses from the http cache, don't go to the network.
+     * @return {@code null} if the image was in memory, a {@link ImageRequest} to cancel otherwise.
+     */
+    @MainThread
+    public ImageRequest request(String url, int width, int height, boolean cacheOnly,
+                                Listener listener) {
+        return request(url, width, height, cacheOnly, DownloadPriority.VIEWER, listener);
+    }
+
+    /**
+     * Like {@link #request(String, int, int, boolean, Listener)}, requests with a lower
+     * priority than {@link DownloadPriority#VIEWER} are queued behind the viewer requests.
+     * A queued load starts right away when a viewer request for it comes in.
+     */
+    @MainThread
+    public ImageRequest request(String url, int width, int height, boolean cacheOnly,
+                                DownloadPriority priority, Listener listener) {
+        Bitmap cached = memoryCache.get(cacheKey(url, width, height));
+        if (cached != null) {
+            deliver(listener, cached);
+            return null;
+        }
+
+        String key = key(url, width, height, cacheOnly);
+        Job job = jobs.get(key);
+        if (job == null) {
+            job = new Job(key, url, width, height, cacheOnly, priority, jobSequence++);
+            jobs.put(key, job);
+            if (priority == DownloadPriority.VIEWER) {
+                start(job);
+            } else {
+                queuedPrefetches.add(job);
+                startPrefetches();
+            }
+        } else {
+            // Someone is waiting for the bitmap now.
+            job.diskOnly = false;
+            if (priority.isHigherThan(job.priority)) {
+                raise(job, priority);
+            }
+        }
+
+        ImageRequest request = new ImageRequest(job, listener);
+        job.requests.add(request);
+        return request;
+    }
+
+    /**
+     * Load the image into the disk cache only, with {@link DownloadPriority#BACKGROUND}. It is
+     * not kept in memory. For images that are likely to be shown later, maybe while offline.
+     */
+    @MainThread
+    public void preload(String url, int width, int height) {
+        String key = key(url, width, height, false);
+        if (jobs.containsKey(key)) {
+            return;
+        }
+
+        Job job = new Job(key, url, width, height, false, DownloadPriority.BACKGROUND, jobSequence++);
+        job.diskOnly = true;
+        jobs.put(key, job);
+        queuedPrefetches.add(job);
+        startPrefetches();
+    }
+
+    private static String key(String url, int width, int height, boolean cacheOnly) {
+        return cacheKey(url, width, height) + (cacheOnly ? " cached" : "");
+    }
+
+    /**
+     * A bitmap decoded to one size can't stand in for another, a thumbnail is too small for the
+     * viewer and a full image too large for a list.
+     */
+    private static String cacheKey(String url, int width, int height) {
+        return url + " " + width + "x" + height;
+    }
+
+    @MainThread
+    private void raise(Job job, DownloadPriority priority) {
+        if (job.started) {
+            job.priority = priority;
+        } else {
+            // Requeue it at its new place.
+            queuedPrefetches.remove(job);
+            job.priority = priority;
+            if (priority == DownloadPriority.VIEWER) {
+                start(job);
+            } else {
+                queuedPrefetches.add(job);
+            }
+        }
+    }
+
+    /**
+     * @return the bitmap last put in the memory cache for the url, at any size, for use anywhere.
+     */
+    @MainThread
+    @Nullable
+    public Bitmap getCachedBitmap(String url) {
+        if (TextUtils.isEmpty(url)) return null;
+        String cacheKey = cacheKeysByUrl.get(url);
+        Bitmap bitmap = cacheKey != null ? memoryCache.get(cacheKey) : null;
+        escape(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * @return if the memory cache holds this bitmap for the url at the size.
+     */
+    @MainThread
+    public boolean isCached(String url, int width, int height, Bitmap bitmap) {
+        return !TextUtils.isEmpty(url) && memoryCache.get(cacheKey(url, width, height)) == bitmap;
+    }
+
+    /**
+     * Mark a bitmap as in use, see {@link Listener#tracksBitmap()}.
+     */
+    @AnyThread
+    public void retain(Bitmap bitmap) {
+        synchronized (bitmapUsers) {
+            Integer users = bitmapUsers.get(bitmap);
+            if (users != null && users != ESCAPED) {
+                bitmapUsers.put(bitmap, users + 1);
+            }
+        }
+    }
+
+    /**
+     * Stop using a bitmap given to {@link #retain(Bitmap)}. It may be reused for another image.
+     */
+    @AnyThread
+    public void release(Bitmap bitmap) {
+        synchronized (bitmapUsers) {
+            Integer users = bitmapUsers.get(bitmap);
+            if (users == null || users == ESCAPED) {
+                return;
+            }
+            if (users > 1) {
+                bitmapUsers.put(bitmap, users - 1);
+                return;
+            }
+            bitmapUsers.remove(bitmap);
+        }
+        bitmapPool.put(bitmap);
+    }
+
+    /**
+     * Mark a bitmap as used outside of {@link #retain(Bitmap)} and {@link #release(Bitmap)}, so
+     * that it is never reused.
+     */
+    @AnyThread
+    public void escape(Bitmap bitmap) {
+        if (bitmap == null) return;
+        synchronized (bitmapUsers) {
+            if (bitmapUsers.containsKey(bitmap)) {
+                bitmapUsers.put(bitmap, ESCAPED);
+            }
+        }
+    }
+
+    /**
+     * Give back memory, see {@link MemoryPolicy#getRetainedFraction(int)}.
+     */
+    @MainThread
+    public void trimMemory(float retained) {
+        if (retained < 1f) {
+            memoryCache.trimToSize((int) (memoryCache.maxSize() * retained));
+        }
+        // After trimming, the evicted bitmaps are released into the pool.
+        bitmapPool.clear();
+    }
+
+    @MainThread
+    private void deliver(Listener listener, Bitmap bitmap) {
+        if (!listener.tracksBitmap()) {
+            escape(bitmap);
+        }
+        listener.onImage(bitmap);
+    }
+
+    @MainThread
+    private void startPrefetches() {
+        while (loadingJobs == 0 && loadingPrefetches < MAX_LOADING_PREFETCHES && !queuedPrefetches.isEmpty()) {
+            start(queuedPrefetches.poll());
+        }
+    }
+
+    @MainThread
+    private void start(Job job) {
+        job.started = true;
+        job.startedAsPrefetch = job.priority != DownloadPriority.VIEWER;
+        if (job.startedAsPrefetch) {
+            loadingPrefetches++;
+        } else {
+            loadingJobs++;
+        }
+
+        if (job.diskOnly) {
+            // Only check if it is on disk, without reading it.
+            decodeExecutor.execute(() -> {
+                boolean stored = diskCache.contains(job.url, job.width, job.height);
+                AndroidUtils.runOnUiThread(() -> {
+                    if (job.cancelled) {
+                        return;
+                    }
+
+                    if (!stored) {
+                        startCall(job);
+                    } else if (job.diskOnly) {
+                        finish(job);
+                    } else {
+                        load(job);
+                    }
+                });
+            });
+        } else {
+            load(job);
+        }
+    }
+
+    @MainThread
+    private void load(Job job) {
+        // Check the downsampled images on disk before going to the network.
+        diskCache.get(job.url, job.width, job.height, stored -> {
+            if (job.cancelled) {
+                return;
+            }
+
+            if (stored != null) {
+                complete(job, stored);
+            } else {
+                startCall(job);
+            }
+        });
+    }
+
+    @MainThread
+    private void startCall(Job job) {
+        // Use a concurrency-limited client for 8chan media to avoid rate-limit bursts.
+        OkHttpClient client = Chan8RateLimit.isMedia(job.url) ? getChan8MediaClient() : httpClient;
+        Request.Builder rb = new Request.Builder().url(job.url);
+        if (job.cacheOnly) {
+            rb.cacheControl(CacheControl.FORCE_CACHE);
+        }
+
+        job.call = client.newCall(rb.build());
+        job.call.enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                if (call.isCanceled()) return;
+                AndroidUtils.runOnUiThread(() -> fail(job, FAILURE_NETWORK));
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                try (response) {
+                    if (call.isCanceled()) return;
+
+                    if (!response.isSuccessful()) {
+                        final int code = response.code();
+                        AndroidUtils.runOnUiThread(() -> fail(job, code));
+                        return;
+                    }
+
+                    ResponseBody body = response.body();
+                    if (body == null) throw new IOException("Empty body");
+                    byte[] data = body.bytes();
+
+                    decodeExecutor.execute(() -> {
+                        if (job.cancelled) return;
+
+                        Bitmap bitmap = decode(data, job.width, job.height);
+                        if (bitmap != null) {
+                            diskCache.put(job.url, job.width, job.height, bitmap);
+                            AndroidUtils.runOnUiThread(() -> complete(job, bitmap));
+                        } else {
+                            AndroidUtils.runOnUiThread(() -> fail(job, FAILURE_DECODE));
+                        }
+                    });
+                } catch (IOException e) {
+                    AndroidUtils.runOnUiThread(() -> fail(job, FAILURE_NETWORK));
+                }
+            }
+        });
+    }
+
+    @WorkerThread
+    private Bitmap decode(byte[] data, int width, int height) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            return null;
+        }
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = calcSampleSize(opts.outWidth, opts.outHeight, width, height);
+        opts.inPreferredConfig = MemoryPolicy.getBitmapConfig("image/jpeg".equals(opts.outMimeType));
+
+        // Decode into an unused bitmap when one of the right size is pooled.
+        opts.inMutable = true;
+        Bitmap reuse = bitmapPool.get(
+                (opts.outWidth + opts.inSampleSize - 1) / opts.inSampleSize,
+                (opts.outHeight + opts.inSampleSize - 1) / opts.inSampleSize,
+                opts.inPreferredConfig);
+        opts.inBitmap = reuse;
+
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        } catch (IllegalArgumentException e) {
+            // The decoder can't reuse the bitmap for this image, decode normally.
+            bitmapPool.put(reuse);
+            reuse = null;
+            opts.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        }
+        if (bitmap == null && reuse != null) {
+            bitmapPool.put(reuse);
+        }
+        return bitmap;
+    }
+
+    private static int calcSampleSize(int srcW, int srcH, int dstW, int dstH) {
+        if (srcW <= 0 || srcH <= 0 || dstW <= 0 || dstH <= 0) return 1;
+        int s = 1;
+        while ((srcW / (s * 2)) >= dstW && (srcH / (s * 2)) >= dstH) s *= 2;
+        return s;
+    }
+
+    @MainThread
+    private void complete(Job job, Bitmap bitmap) {
+        if (!finish(job)) {
+            return;
+        }
+
+        if (job.diskOnly) {
+            // Stored on disk, nobody needs it now.
+            bitmapPool.put(bitmap);
+            return;
+        }
+
+        // The memory cache is the first user, the bitmap can be pooled once it and all views
+        // tracking it let go.
+        synchronized (bitmapUsers) {
+            if (!bitmapUsers.containsKey(bitmap)) {
+                bitmapUsers.put(bitmap, 0);
+            }
+        }
+        retain(bitmap);
+        String cacheKey = cacheKey(job.url, job.width, job.height);
+        memoryCache.put(cacheKey, bitmap);
+        cacheKeysByUrl.put(job.url, cacheKey);
+
+        for (ImageRequest request : job.requests) {
+            deliver(request.listener, bitmap);
+        }
+    }
+
+    @MainThread
+    private void fail(Job job, int code) {
+        if (!finish(job)) {
+            return;
+        }
+
+        Logger.d(TAG, "Failed to load " + job.url + ": " + code);
+        for (ImageRequest request : job.requests) {
+            request.listener.onFailure(code);
+        }
+    }
+
+    /**
+     * @return false if the job was cancelled and there is nobody to notify.
+     */
+    @MainThread
+    private boolean finish(Job job) {
+        if (job.cancelled) {
+            return false;
+        }
+        end(job);
+        return true;
+    }
+
+    @MainThread
+    private void cancel(ImageRequest request) {
+        Job job = request.job;
+        if (!job.requests.remove(request) || !job.requests.isEmpty() || job.cancelled) {
+            return;
+        }
+
+        end(job);
+        if (job.call != null) {
+            job.call.cancel();
+        }
+    }
+
+    @MainThread
+    private void end(Job job) {
+        job.cancelled = true;
+        jobs.remove(job.key);
+        if (!job.started) {
+            queuedPrefetches.remove(job);
+        } else if (job.startedAsPrefetch) {
+            loadingPrefetches--;
+        } else {
+            loadingJobs--;
+        }
+        startPrefetches();
+    }
+
+    private OkHttpClient getChan8MediaClient() {
+        if (chan8MediaClient == null) {
+            synchronized (this) {
+                if (chan8MediaClient == null) {
+                    Dispatcher dispatcher = new Dispatcher();
+                    // Allow at most 2 simultaneous 8chan media downloads.
+                    // OkHttp queues the rest automatically.
+                    dispatcher.setMaxRequestsPerHost(2);
+                    chan8MediaClient = httpClient.newBuilder()
+                            .dispatcher(dispatcher)
+                            .build();
+                }
+            }
+        }
+        return chan8MediaClient;
+    }
+
+    /**
+     * One load shared by all requests for the same url and size.
+     */
+    private static class Job {
+        private final String key;
+        private final String url;
+        private final int width;
+        private final int height;
+        private final boolean cacheOnly;
+        private final List<ImageRequest> requests = new ArrayList<>(1);
+
+        // Set on the main thread, read on any.
+        private volatile boolean cancelled;
+        private Call call;
+
+        private final long sequence;
+
+        // Main thread only.
+        private DownloadPriority priority;
+        private boolean started;
+        private boolean startedAsPrefetch;
+        private boolean diskOnly;
+
+        private Job(String key, String url, int width, int height, boolean cacheOnly,
+                    DownloadPriority priority, long sequence) {
+            this.key = key;
+            this.url = url;
+            this.width = width;
+            this.height = height;
+            this.cacheOnly = cacheOnly;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * A request for an image, the listener is not called anymore after it is cancelled.
+     */
+    public class ImageRequest {
+        private final Job job;
+        private final Listener listener;
+
+        private ImageRequest(Job job, Listener listener) {
+            this.job = job;
+            this.listener = listener;
+        }
+
+        @MainThread
+        public void cancel() {
+            ImagePipeline.this.cancel(this);
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the main thread with the image.
+         */
+        void onImage(Bitmap bitmap);
+
+        /**
+         * Called on the main thread when the image could not be loaded.
+         *
+         * @param code the http status code, or one of {@link ImagePipeline#FAILURE_NETWORK} and
+         *             {@link ImagePipeline#FAILURE_DECODE}.
+         */
+        void onFailure(int code);
+
+        /**
+         * Listeners that call {@link ImagePipeline#retain(Bitmap)} when they start using the
+         * bitmap and {@link ImagePipeline#release(Bitmap)} when they stop let it be reused for other images. Bitmaps
+         * given to other listeners are never reused.
+         */
+        default boolean tracksBitmap() {
+            return false;
+        }
+    }
+}
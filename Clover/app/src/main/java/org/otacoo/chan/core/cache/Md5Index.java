@@ -0,0 +1,270 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.otacoo.chan.core.cache;
+
+import android.util.Base64;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.WorkerThread;
+
+import org.otacoo.chan.utils.IOUtils;
+import org.otacoo.chan.utils.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Maps the MD5 digest of downloaded files to the url they are cached under, so the same file
+ * posted under another url can be served from the cache.
+ * <p>
+ * Entries are appended to a plain text index file, one "md5 url" pair per line, and compacted
+ * when it grows too large. An entry may point to a file that was trimmed from the cache since,
+ * callers must check the file they get for it.
+ */
+public class Md5Index {
+    private static final String TAG = "Md5Index";
+    private static final int MAX_ENTRIES = 5000;
+
+    private final ExecutorService pool = Executors.newSingleThreadExecutor();
+
+    private final File indexFile;
+
+    // Guarded by itself, least recently used first.
+    private final Map<String, String> entries = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    @SuppressWarnings("this-escape")
+    public Md5Index(File indexFile) {
+        this.indexFile = indexFile;
+
+        pool.submit(this::load);
+    }
+
+    /**
+     * @param md5 digest as hex or base64, see {@link #normalize(String)}.
+     * @return the url of the cached file with this digest, or null if none is known.
+     */
+    @AnyThread
+    public String get(String md5) {
+        String key = normalize(md5);
+        if (key == null) {
+            return null;
+        }
+
+        synchronized (entries) {
+            return entries.get(key);
+        }
+    }
+
+    @AnyThread
+    public void put(String md5, String url) {
+        String key = normalize(md5);
+        if (key == null || url.indexOf('\n') >= 0) {
+            return;
+        }
+
+        synchronized (entries) {
+            if (url.equals(entries.put(key, url))) {
+                return;
+            }
+        }
+
+        pool.submit(() -> append(key, url));
+    }
+
+    @AnyThread
+    public void remove(String md5) {
+        String key = normalize(md5);
+        if (key == null) {
+            return;
+        }
+
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    @AnyThread
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+
+        pool.submit(() -> {
+            if (indexFile.exists() && !indexFile.delete()) {
+                Logger.e(TAG, "Could not delete the md5 index");
+            }
+        });
+    }
+
+    /**
+     * Calculate the MD5 digest of the file as lowercase hex.
+     */
+    @WorkerThread
+    public static String digest(File file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                md.update(buffer, 0, read);
+            }
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+
+        return toHex(md.digest());
+    }
+
+    /**
+     * Sites give the MD5 as base64 (4chan, vichan) or as hex. Convert both to lowercase hex.
+     *
+     * @return the hex digest, or null if the input is not a valid MD5.
+     */
+    @AnyThread
+    public static String normalize(String md5) {
+        if (md5 == null) {
+            return null;
+        }
+
+        md5 = md5.trim();
+        if (md5.length() == 32 && md5.matches("[0-9a-fA-F]+")) {
+            return md5.toLowerCase(Locale.ENGLISH);
+        }
+
+        try {
+            byte[] bytes = Base64.decode(md5, Base64.DEFAULT);
+            return bytes.length == 16 ? toHex(bytes) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int v = bytes[i] & 0xff;
+            hex[i * 2] = Character.forDigit(v >>> 4, 16);
+            hex[i * 2 + 1] = Character.forDigit(v & 0x0f, 16);
+        }
+        return new String(hex);
+    }
+
+    @WorkerThread
+    private void load() {
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        int lines = 0;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(indexFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space == 32) {
+                    synchronized (entries) {
+                        // Entries added since startup are newer than the ones on disk.
+                        String key = line.substring(0, space);
+                        if (!entries.containsKey(key)) {
+                            entries.put(key, line.substring(space + 1));
+                        }
+                    }
+                }
+                lines++;
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "Error loading the md5 index", e);
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        if (lines > size * 2 + 100) {
+            compact();
+        }
+    }
+
+    @WorkerThread
+    private void append(String md5, String url) {
+        Writer writer = null;
+        try {
+            writer = new FileWriter(indexFile, true);
+            writer.write(md5 + " " + url + "\n");
+        } catch (IOException e) {
+            Logger.e(TAG, "Error writing the md5 index", e);
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
+    @WorkerThread
+    private void compact() {
+        StringBuilder content = new StringBuilder();
+        synchronized (entries) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                content.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+            }
+        }
+
+        File temp = new File(indexFile.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new FileWriter(temp);
+            writer.write(content.toString());
+            writer.close();
+            writer = null;
+
+            if (!temp.renameTo(indexFile)) {
+                Logger.e(TAG, "Could not replace the md5 index");
+            }
+        } catch (IOException e) {
+            Logger.e(TAG, "Error compacting the md5 index", e);
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+}
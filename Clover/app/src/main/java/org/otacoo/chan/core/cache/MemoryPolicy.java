@@ -0,0 +1,101 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.otacoo.chan.core.cache;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+
+import androidx.core.app.ActivityManagerCompat;
+
+import org.otacoo.chan.utils.AndroidUtils;
+
+/**
+ * How much memory the in-memory caches may use on this device, and how much of it to give back
+ * when the system asks with {@link ComponentCallbacks2#onTrimMemory(int)}.
+ * <p>
+ * Low memory devices, low ram devices or devices with a small heap, get smaller caches and
+ * decode opaque images with two bytes per pixel. Hardware bitmaps are not used, they can't be
+ * decoded into pooled bitmaps, written to the thumbnail disk cache or drawn in software.
+ */
+public class MemoryPolicy {
+    // Heaps of at most this many megabytes count as low memory.
+    private static final int LOW_MEMORY_CLASS = 128;
+
+    private static Boolean lowMemoryDevice;
+
+    public static boolean isLowMemoryDevice() {
+        if (lowMemoryDevice == null) {
+            ActivityManager activityManager = AndroidUtils.getActivityManager();
+            lowMemoryDevice = ActivityManagerCompat.isLowRamDevice(activityManager)
+                    || activityManager.getMemoryClass() <= LOW_MEMORY_CLASS;
+        }
+        return lowMemoryDevice;
+    }
+
+    /**
+     * @return the size of the decoded image memory cache, in kilobytes.
+     */
+    public static int getImageCacheSize() {
+        int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
+        return maxMemory / (isLowMemoryDevice() ? 16 : 8);
+    }
+
+    /**
+     * @return the number of text layouts to cache.
+     */
+    public static int getTextCacheSize() {
+        return isLowMemoryDevice() ? 100 : 250;
+    }
+
+    /**
+     * @param opaque if the image has no transparency, like a jpeg.
+     * @return the config to decode an image with.
+     */
+    public static Bitmap.Config getBitmapConfig(boolean opaque) {
+        return opaque && isLowMemoryDevice() ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * @return the part of their contents the caches should keep at the trim level, from 0 to 1.
+     */
+    public static float getRetainedFraction(int level) {
+        switch (level) {
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE:
+                return 0.75f;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+            case ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN:
+                return 0.5f;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+            case ComponentCallbacks2.TRIM_MEMORY_BACKGROUND:
+                return 0.25f;
+            default:
+                // In the background and next in line to be killed, keeping less makes that
+                // less likely.
+                return level > ComponentCallbacks2.TRIM_MEMORY_BACKGROUND ? 0f : 1f;
+        }
+    }
+
+    /**
+     * @return if the ui is hidden at the trim level, and views should release their large
+     * images until it is shown again.
+     */
+    public static boolean shouldReleaseHiddenImages(int level) {
+        return level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.otacoo.chan.core.cache;
+
+import androidx.annotation.AnyThread;
+
+/**
+ * Running estimate of the download speed, from the completed downloads of the file cache. The
+ * time includes the request, so small files give a realistic speed for other small files.
+ */
+class ThroughputMeter {
+    // Weight of a new sample, higher follows network changes faster.
+    private static final double WEIGHT = 0.3;
+    // Samples this small are dominated by the latency of the request.
+    private static final long MIN_SAMPLE_BYTES = 16 * 1024;
+
+    private double bytesPerSecond = -1;
+
+    @AnyThread
+    synchronized void addSample(long bytes, long millis) {
+        if (bytes < MIN_SAMPLE_BYTES || millis <= 0) {
+            return;
+        }
+
+        double sample = bytes * 1000.0 / millis;
+        bytesPerSecond = bytesPerSecond < 0 ? sample : bytesPerSecond + WEIGHT * (sample - bytesPerSecond);
+    }
+
+    /**
+     * @return the estimated speed in bytes per second, or -1 if nothing was measured yet.
+     */
+    @AnyThread
+    synchronized long getBytesPerSecond() {
+        return (long) bytesPerSecond;
+    }
+}
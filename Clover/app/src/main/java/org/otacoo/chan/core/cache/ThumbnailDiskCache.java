@@ -0,0 +1,232 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.otacoo.chan.core.cache;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.WorkerThread;
+
+import org.otacoo.chan.utils.AndroidUtils;
+import org.otacoo.chan.utils.IOUtils;
+import org.otacoo.chan.utils.Logger;
+import org.otacoo.chan.utils.Time;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Second tier of the thumbnail cache, below the bitmaps kept in memory. Thumbnails are stored
+ * already downsampled, as raw pixels, so that loading one is a file read and a copy instead of a
+ * network request and an image decode.
+ * <p>
+ * Raw pixels are large, so opaque thumbnails are stored as {@link Bitmap.Config#RGB_565}, half the
+ * size of ARGB_8888, at the cost of some banding in gradients. Only thumbnails with transparency
+ * keep their four bytes per pixel. The size of the cache is set by
+ * {@link org.otacoo.chan.core.settings.ChanSettings#thumbnailCacheSize}.
+ * <p>
+ * Files are keyed by url and the requested size, and trimmed least recently used first.
+ */
+public class ThumbnailDiskCache {
+    private static final String TAG = "ThumbnailDiskCache";
+
+    // "CTHB"
+    private static final int MAGIC = 0x43544842;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 5 * 4;
+
+    private static final Bitmap.Config[] CONFIGS = {
+            Bitmap.Config.ARGB_8888,
+            Bitmap.Config.RGB_565
+    };
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(2);
+    private final CacheHandler cacheHandler;
+
+    public ThumbnailDiskCache(File directory, long maxSize) {
+        cacheHandler = new CacheHandler(directory, maxSize, CacheHandler.Eviction.LRU);
+    }
+
+    /**
+     * Look up a thumbnail in the background.
+     *
+     * @param callback called on the main thread with the bitmap, or null if it isn't cached.
+     */
+    @MainThread
+    public void get(String url, int width, int height, Callback callback) {
+        File file = cacheHandler.get(key(url, width, height));
+        pool.execute(() -> {
+            Bitmap bitmap = read(file);
+            AndroidUtils.runOnUiThread(() -> callback.onThumbnail(bitmap));
+        });
+    }
+
+    /**
+     * @return if a thumbnail is stored, without reading it.
+     */
+    @WorkerThread
+    public boolean contains(String url, int width, int height) {
+        return cacheHandler.exists(key(url, width, height));
+    }
+
+    /**
+     * Store a thumbnail. Opaque bitmaps are stored as RGB_565, bitmaps in a config that can't be
+     * stored are ignored.
+     */
+    @WorkerThread
+    public void put(String url, int width, int height, Bitmap bitmap) {
+        Bitmap stored = bitmap;
+        if (bitmap.getConfig() == Bitmap.Config.ARGB_8888 && !bitmap.hasAlpha()) {
+            stored = bitmap.copy(Bitmap.Config.RGB_565, false);
+            if (stored == null) {
+                stored = bitmap;
+            }
+        }
+
+        int config = configIndex(stored.getConfig());
+        if (config >= 0) {
+            write(cacheHandler.get(key(url, width, height)), stored, config);
+        }
+
+        if (stored != bitmap) {
+            stored.recycle();
+        }
+    }
+
+    @WorkerThread
+    private Bitmap read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        Bitmap bitmap = null;
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            FileChannel channel = inputStream.getChannel();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("unknown format");
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            int config = header.getInt();
+            if (width <= 0 || height <= 0 || config < 0 || config >= CONFIGS.length) {
+                throw new IOException("invalid header");
+            }
+
+            bitmap = Bitmap.createBitmap(width, height, CONFIGS[config]);
+            ByteBuffer pixels = ByteBuffer.allocate(bitmap.getByteCount());
+            readFully(channel, pixels);
+            pixels.flip();
+            bitmap.copyPixelsFromBuffer(pixels);
+        } catch (IOException | RuntimeException e) {
+            Logger.e(TAG, "Could not read thumbnail " + file.getName(), e);
+            bitmap = null;
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+
+        if (bitmap != null) {
+            // Keep recently used thumbnails from being trimmed.
+            file.setLastModified(Time.get());
+        } else if (!file.delete()) {
+            Logger.e(TAG, "Could not delete unreadable thumbnail " + file.getName());
+        }
+        return bitmap;
+    }
+
+    @WorkerThread
+    private void write(File file, Bitmap bitmap, int config) {
+        // Written next to the final file and renamed, so readers never see a partial file.
+        File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(temporary);
+            FileChannel channel = outputStream.getChannel();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(bitmap.getWidth())
+                    .putInt(bitmap.getHeight())
+                    .putInt(config);
+            header.flip();
+            writeFully(channel, header);
+
+            ByteBuffer pixels = ByteBuffer.allocate(bitmap.getByteCount());
+            bitmap.copyPixelsToBuffer(pixels);
+            pixels.flip();
+            writeFully(channel, pixels);
+
+            outputStream.close();
+            outputStream = null;
+
+            if (!temporary.renameTo(file)) {
+                throw new IOException("could not rename");
+            }
+            cacheHandler.fileWasAdded(file);
+        } catch (IOException | RuntimeException e) {
+            Logger.e(TAG, "Could not write thumbnail " + file.getName(), e);
+            IOUtils.closeQuietly(outputStream);
+            if (temporary.exists() && !temporary.delete()) {
+                Logger.e(TAG, "Could not delete " + temporary.getName());
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                throw new IOException("file ended early");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static int configIndex(Bitmap.Config config) {
+        for (int i = 0; i < CONFIGS.length; i++) {
+            if (CONFIGS[i] == config) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String key(String url, int width, int height) {
+        return url + " " + width + "x" + height;
+    }
+
+    public interface Callback {
+        void onThumbnail(Bitmap bitmap);
+    }
+}
@@ -49,7 +49,7 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
     private static final String TAG = "DatabaseHelper";
 
     private static final String DATABASE_NAME = "ChanDB";
-    private static final int DATABASE_VERSION = 30;
+    private static final int DATABASE_VERSION = 32;
 
     public Dao<Pin, Integer> pinDao;
     public Dao<Loadable, Integer> loadableDao;
@@ -60,6 +60,8 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
     public Dao<Filter, Integer> filterDao;
     public Dao<SiteModel, Integer> siteDao;
 
+    final DatabaseStatements statements = new DatabaseStatements(this);
+
     private final Context context;
 
     @SuppressWarnings("this-escape")
@@ -68,6 +70,9 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
 
         this.context = context;
 
+        // Readers on the read threads of the DatabaseManager don't wait for the writer this way.
+        setWriteAheadLoggingEnabled(true);
+
         try {
             pinDao = getDao(Pin.class);
             loadableDao = getDao(Loadable.class);
@@ -93,6 +98,9 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
             TableUtils.createTable(connectionSource, History.class);
             TableUtils.createTable(connectionSource, Filter.class);
             TableUtils.createTable(connectionSource, SiteModel.class);
+
+            createLookupIndexes();
+            createHistorySearch();
         } catch (SQLException e) {
             Logger.e(TAG, "Error creating db", e);
             throw new RuntimeException(e);
@@ -312,6 +320,48 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
                 Logger.e(TAG, "Error upgrading to version 30", e);
             }
         }
+
+        if (oldVersion < 31) {
+            try {
+                createLookupIndexes();
+            } catch (SQLException e) {
+                Logger.e(TAG, "Error upgrading to version 31", e);
+            }
+        }
+
+        if (oldVersion < 32) {
+            try {
+                historyDao.executeRawNoArgs("ALTER TABLE history ADD COLUMN excerpt VARCHAR DEFAULT '';");
+                createHistorySearch();
+                historyDao.executeRawNoArgs("INSERT INTO history_fts(docid, title, excerpt) " +
+                        "SELECT history.id, loadable.title, '' FROM history INNER JOIN loadable ON loadable.id = history.loadable_id;");
+            } catch (SQLException e) {
+                Logger.e(TAG, "Error upgrading to version 32", e);
+            }
+        }
+    }
+
+    /**
+     * Full text index of the thread titles and excerpts of the history, by history id. Rows are
+     * added by {@link DatabaseHistoryManager}, and removed with their history row by a trigger.
+     */
+    private void createHistorySearch() throws SQLException {
+        historyDao.executeRawNoArgs("CREATE VIRTUAL TABLE IF NOT EXISTS history_fts USING fts4(title, excerpt, tokenize=unicode61);");
+        historyDao.executeRawNoArgs("CREATE TRIGGER IF NOT EXISTS history_fts_delete AFTER DELETE ON history BEGIN " +
+                "DELETE FROM history_fts WHERE docid = old.id; END;");
+    }
+
+    /**
+     * Indexes for the columns the managers look rows up by, other than the id.
+     * See {@link DatabaseManager#explainQueryPlans()} to check that they are used.
+     */
+    private void createLookupIndexes() throws SQLException {
+        loadableDao.executeRawNoArgs("CREATE INDEX IF NOT EXISTS loadable_lookup_idx ON loadable(site, board, no, mode);");
+        historyDao.executeRawNoArgs("CREATE INDEX IF NOT EXISTS history_loadable_idx ON history(loadable_id);");
+        historyDao.executeRawNoArgs("CREATE INDEX IF NOT EXISTS history_date_idx ON history(date);");
+        savedDao.executeRawNoArgs("CREATE INDEX IF NOT EXISTS savedreply_lookup_idx ON savedreply(site, board, no);");
+        pinDao.executeRawNoArgs("CREATE INDEX IF NOT EXISTS pin_loadable_idx ON pin(loadable_id);");
+        threadHideDao.executeRawNoArgs("CREATE INDEX IF NOT EXISTS threadhide_site_idx ON threadhide(site);");
     }
 
     @Override
@@ -1,5 +1,7 @@
 package org.otacoo.chan.core.database;
 
+import androidx.annotation.AnyThread;
+
 import com.j256.ormlite.stmt.DeleteBuilder;
 import com.j256.ormlite.table.TableUtils;
 
@@ -7,20 +9,14 @@ import org.otacoo.chan.core.model.Post;
 import org.otacoo.chan.core.model.orm.ThreadHide;
 import org.otacoo.chan.core.site.Site;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.Callable;
 
 public class DatabaseHideManager {
-    private static final long THREAD_HIDE_TRIM_TRIGGER = 250;
-    private static final long THREAD_HIDE_TRIM_COUNT = 50;
-
     private DatabaseManager databaseManager;
     private DatabaseHelper helper;
 
-    private final Map<Integer, List<ThreadHide>> hides = new HashMap<>();
+    private final PackedKeySet hides = new PackedKeySet();
 
     public DatabaseHideManager(DatabaseManager databaseManager, DatabaseHelper helper) {
         this.databaseManager = databaseManager;
@@ -29,23 +25,13 @@ public class DatabaseHideManager {
 
     public Callable<Void> load() {
         return () -> {
-            databaseManager.trimTable(helper.threadHideDao, "threadhide",
-                    THREAD_HIDE_TRIM_TRIGGER, THREAD_HIDE_TRIM_COUNT);
-
-            synchronized (hides) {
-                hides.clear();
-
-                List<ThreadHide> threadHides = helper.threadHideDao.queryForAll();
-                for (ThreadHide hide : threadHides) {
-                    List<ThreadHide> hidesForId = hides.get(hide.no);
-                    if (hidesForId == null) {
-                        hidesForId = new ArrayList<>(1);
-                        hides.put(hide.no, hidesForId);
-                    }
-
-                    hidesForId.add(hide);
-                }
+            List<ThreadHide> threadHides = helper.threadHideDao.queryForAll();
+
+            long[] keys = new long[threadHides.size()];
+            for (int i = 0; i < threadHides.size(); i++) {
+                keys[i] = key(threadHides.get(i));
             }
+            hides.setAll(keys, keys.length);
 
             return null;
         };
@@ -60,42 +46,14 @@ public class DatabaseHideManager {
      * @param post The Post to check if it is hidden.
      * @return {@code true} if hidden, {@code false} otherwise.
      */
+    @AnyThread
     public boolean isThreadHidden(Post post) {
-        synchronized (hides) {
-            List<ThreadHide> hidesForId = hides.get(post.no);
-            if (hidesForId != null) {
-                for (ThreadHide threadHide : hidesForId) {
-                    if (threadHide.equalsPost(post)) {
-                        return true;
-                    }
-                }
-            }
-        }
-        return false;
+        return hides.contains(PackedKeySet.key(post.board.siteId, post.board.code, post.no));
     }
 
     public Callable<Void> addThreadHide(ThreadHide hide) {
-        // Update the memory map immediately before the DB task is even run.
-        synchronized (hides) {
-            List<ThreadHide> hidesForId = hides.get(hide.no);
-            if (hidesForId == null) {
-                hidesForId = new ArrayList<>(1);
-                hides.put(hide.no, hidesForId);
-            }
-
-            // Check if already present to avoid duplicates
-            boolean present = false;
-            for (ThreadHide h : hidesForId) {
-                if (h.equals(hide)) {
-                    present = true;
-                    break;
-                }
-            }
-
-            if (!present) {
-                hidesForId.add(hide);
-            }
-        }
+        // Update the memory set immediately before the DB task is even run.
+        hides.add(key(hide));
 
         return () -> {
             helper.threadHideDao.createOrUpdate(hide);
@@ -104,18 +62,8 @@ public class DatabaseHideManager {
     }
 
     public Callable<Void> removeThreadHide(ThreadHide hide) {
-        // Update the memory map immediately.
-        synchronized (hides) {
-            List<ThreadHide> hidesForId = hides.get(hide.no);
-            if (hidesForId != null) {
-                for (int i = 0; i < hidesForId.size(); i++) {
-                    if (hidesForId.get(i).equals(hide)) {
-                        hidesForId.remove(i);
-                        break;
-                    }
-                }
-            }
-        }
+        // Update the memory set immediately.
+        hides.remove(key(hide));
 
         return () -> {
             helper.threadHideDao.delete(hide);
@@ -127,9 +75,7 @@ public class DatabaseHideManager {
         return () -> {
             TableUtils.clearTable(helper.getConnectionSource(), ThreadHide.class);
 
-            synchronized (hides) {
-                hides.clear();
-            }
+            hides.clear();
 
             return null;
         };
@@ -141,12 +87,14 @@ public class DatabaseHideManager {
             builder.where().eq("site", site.id());
             builder.delete();
 
-            synchronized (hides) {
-                // Easier to just reload if we delete many by site.
-                load().call();
-            }
+            // Easier to just reload if we delete many by site.
+            load().call();
 
             return null;
         };
     }
+
+    private static long key(ThreadHide hide) {
+        return PackedKeySet.key(hide.site, hide.board, hide.no);
+    }
 }
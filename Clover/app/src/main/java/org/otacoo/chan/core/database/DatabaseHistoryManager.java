@@ -17,24 +17,36 @@
  */
 package org.otacoo.chan.core.database;
 
+import android.text.TextUtils;
+
+import androidx.annotation.Nullable;
+
+import com.j256.ormlite.dao.GenericRawResults;
+import com.j256.ormlite.dao.RawRowMapper;
 import com.j256.ormlite.stmt.DeleteBuilder;
-import com.j256.ormlite.stmt.QueryBuilder;
 import com.j256.ormlite.table.TableUtils;
 
 import org.otacoo.chan.core.model.orm.History;
 import org.otacoo.chan.core.model.orm.Loadable;
+import org.otacoo.chan.core.settings.ChanSettings;
 import org.otacoo.chan.utils.Time;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 public class DatabaseHistoryManager {
     private static final String TAG = "DatabaseHistoryManager";
 
-    private static final long HISTORY_TRIM_TRIGGER = 120;
-    private static final long HISTORY_TRIM_COUNT = 70;
+    private static final String SELECT_HISTORY = "SELECT history.id, history.thumbnailUrl, history.date, history.excerpt, loadable.* " +
+            "FROM history INNER JOIN loadable ON loadable.id = history.loadable_id ";
+    // Columns of the history table selected before the loadable columns in SELECT_HISTORY.
+    private static final int HISTORY_COLUMNS = 4;
+    private static final String PAGE_ORDER = "ORDER BY history.date DESC, history.id DESC LIMIT ?";
 
     private final DatabaseManager databaseManager;
     private final DatabaseHelper helper;
@@ -46,26 +58,123 @@ public class DatabaseHistoryManager {
         this.databaseLoadableManager = databaseLoadableManager;
     }
 
+    /**
+     * Trim the history to the age and count set in {@link ChanSettings#historyMaxAgeDays} and
+     * {@link ChanSettings#historyMaxCount}, the oldest visits go first.
+     */
     public Callable<Void> load() {
         return () -> {
-            databaseManager.trimTable(helper.historyDao, "history", HISTORY_TRIM_TRIGGER, HISTORY_TRIM_COUNT);
+            long start = Time.startTiming();
+            int maxAgeDays = ChanSettings.historyMaxAgeDays.get();
+            if (maxAgeDays > 0) {
+                long oldest = Time.get() - TimeUnit.DAYS.toMillis(maxAgeDays);
+                helper.historyDao.executeRaw("DELETE FROM history WHERE date < ?", String.valueOf(oldest));
+            }
+
+            int maxCount = ChanSettings.historyMaxCount.get();
+            if (maxCount > 0) {
+                helper.historyDao.executeRaw("DELETE FROM history WHERE id IN " +
+                        "(SELECT id FROM history ORDER BY date DESC LIMIT -1 OFFSET ?)", String.valueOf(maxCount));
+            }
+            Time.endTiming("Trimmed history", start);
 
             return null;
         };
     }
 
-    public Callable<List<History>> getHistory() {
+    /**
+     * A page of the history, the last visited first.
+     * <p>
+     * Pages continue after the last visit of the previous page instead of at an offset, so visits
+     * that are added or removed in between don't shift the pages.
+     *
+     * @param after last visit of the previous page, or {@code null} for the first page.
+     * @param limit max count of visits in the page.
+     */
+    public Callable<List<History>> getHistory(@Nullable History after, int limit) {
         return () -> {
-            QueryBuilder<History, Integer> historyQuery = helper.historyDao.queryBuilder();
-            List<History> date = historyQuery.orderBy("date", false).query();
-            for (int i = 0; i < date.size(); i++) {
-                History history = date.get(i);
-                history.loadable = databaseLoadableManager.refreshForeign(history.loadable);
+            List<String> arguments = new ArrayList<>();
+            String where = after == null ? "" : "WHERE " + pageAfter(after, arguments);
+            arguments.add(String.valueOf(limit));
+            return queryHistory(SELECT_HISTORY + where + PAGE_ORDER, arguments);
+        };
+    }
+
+    /**
+     * A page of the visits whose thread title or excerpt has words starting with the words of the query,
+     * the last visited first. Paged like {@link #getHistory(History, int)}.
+     *
+     * @param query words to search for, as typed by the user.
+     * @param after last result of the previous page, or {@code null} for the first page.
+     * @param limit max count of results in the page.
+     */
+    public Callable<List<History>> searchHistory(String query, @Nullable History after, int limit) {
+        return () -> {
+            String match = toMatchQuery(query);
+            if (match.isEmpty()) {
+                return new ArrayList<>();
+            }
+
+            List<String> arguments = new ArrayList<>();
+            arguments.add(match);
+            String where = "WHERE history.id IN (SELECT docid FROM history_fts WHERE history_fts MATCH ?) ";
+            if (after != null) {
+                where += "AND " + pageAfter(after, arguments);
             }
-            return date;
+            arguments.add(String.valueOf(limit));
+            return queryHistory(SELECT_HISTORY + where + PAGE_ORDER, arguments);
         };
     }
 
+    private static String pageAfter(History after, List<String> arguments) {
+        arguments.add(String.valueOf(after.date));
+        arguments.add(String.valueOf(after.date));
+        arguments.add(String.valueOf(after.id));
+        return "(history.date < ? OR (history.date = ? AND history.id < ?)) ";
+    }
+
+    private List<History> queryHistory(String query, List<String> arguments) throws Exception {
+        // The loadables are joined in, instead of a query for each history row.
+        RawRowMapper<Loadable> loadableMapper = helper.loadableDao.getRawRowMapper();
+        GenericRawResults<History> results = helper.historyDao.queryRaw(query,
+                (columnNames, resultColumns) -> {
+                    History history = new History();
+                    history.id = Integer.parseInt(resultColumns[0]);
+                    history.thumbnailUrl = resultColumns[1];
+                    history.date = Long.parseLong(resultColumns[2]);
+                    history.excerpt = resultColumns[3];
+
+                    Loadable loadable = loadableMapper.mapRow(
+                            Arrays.copyOfRange(columnNames, HISTORY_COLUMNS, columnNames.length),
+                            Arrays.copyOfRange(resultColumns, HISTORY_COLUMNS, resultColumns.length));
+                    history.loadable = databaseLoadableManager.putLoaded(loadable);
+                    return history;
+                }, arguments.toArray(new String[0]));
+
+        try {
+            return results.getResults();
+        } finally {
+            results.close();
+        }
+    }
+
+    /**
+     * Every word as a quoted prefix term, so that typed text can't be read as FTS syntax.
+     */
+    private static String toMatchQuery(String query) {
+        StringBuilder match = new StringBuilder();
+        for (String word : query.trim().split("\\s+")) {
+            word = word.replace("\"", "");
+            if (!word.isEmpty()) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append('"').append(word).append("*\"");
+            }
+        }
+        return match.toString();
+    }
+
     public Callable<History> addHistory(final History history) {
         if (!history.loadable.isThreadMode()) {
             throw new IllegalArgumentException("History loadables must be in thread mode");
@@ -76,18 +185,10 @@ public class DatabaseHistoryManager {
         }
 
         return () -> {
-            QueryBuilder<History, Integer> builder = helper.historyDao.queryBuilder();
-            List<History> existingHistories = builder.where().eq("loadable_id", history.loadable.id).query();
-            History existingHistoryForLoadable = existingHistories.isEmpty() ? null : existingHistories.get(0);
-
-            if (existingHistoryForLoadable != null) {
-                existingHistoryForLoadable.date = Time.get();
-                helper.historyDao.update(existingHistoryForLoadable);
-            } else {
-                history.date = Time.get();
-                helper.historyDao.create(history);
-            }
-
+            // Also indexes the title again, it could have changed since the last visit.
+            history.date = Time.get();
+            history.id = helper.statements.upsertHistory(history.loadable.id, history.loadable.title,
+                    history.thumbnailUrl, history.date, TextUtils.isEmpty(history.excerpt) ? "" : history.excerpt);
             return history;
         };
     }
@@ -103,6 +204,7 @@ public class DatabaseHistoryManager {
         return () -> {
             long start = Time.startTiming();
             TableUtils.clearTable(helper.getConnectionSource(), History.class);
+            helper.historyDao.executeRawNoArgs("DELETE FROM history_fts");
             Time.endTiming("Clear history table", start);
 
             return null;
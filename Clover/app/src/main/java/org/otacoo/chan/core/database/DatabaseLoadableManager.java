@@ -20,7 +20,6 @@ package org.otacoo.chan.core.database;
 import android.util.Log;
 
 import com.j256.ormlite.stmt.DeleteBuilder;
-import com.j256.ormlite.stmt.QueryBuilder;
 
 import org.otacoo.chan.core.model.orm.Loadable;
 import org.otacoo.chan.core.repository.SiteRepository;
@@ -30,12 +29,12 @@ import org.otacoo.chan.utils.Time;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DatabaseLoadableManager {
     private static final String TAG = "DatabaseLoadableManager";
@@ -43,7 +42,10 @@ public class DatabaseLoadableManager {
     private DatabaseManager databaseManager;
     private DatabaseHelper helper;
 
-    private Map<Loadable, Loadable> cachedLoadables = new HashMap<>();
+    // Also read outside of the database thread, see get().
+    private Map<Loadable, Loadable> cachedLoadables = new ConcurrentHashMap<>();
+    // The same loadables by id, for loadables referenced as a foreign object.
+    private final Map<Integer, Loadable> cachedLoadablesById = new ConcurrentHashMap<>();
 
     public DatabaseLoadableManager(DatabaseManager databaseManager, DatabaseHelper helper) {
         this.databaseManager = databaseManager;
@@ -97,6 +99,14 @@ public class DatabaseLoadableManager {
 
         // We only cache THREAD loadables in the db
         if (loadable.isThreadMode()) {
+            // Loadables that were used before don't need to wait for the database thread.
+            Loadable cachedLoadable = cachedLoadables.get(loadable);
+            if (cachedLoadable != null) {
+                return cachedLoadable;
+            }
+
+            // A miss stays blocking: callers need the id right away, and the loadable may have to
+            // be inserted, which only the database thread does. It happens once per thread opened.
             long start = Time.startTiming();
             Loadable result = databaseManager.runTask(getLoadable(loadable));
             Time.endTiming("get loadable from db " + loadable.boardCode, start);
@@ -120,16 +130,45 @@ public class DatabaseLoadableManager {
         }
 
         // If the loadable was already loaded in the cache, return that entry
-        for (Loadable key : cachedLoadables.keySet()) {
-            if (key.id == loadable.id) {
-                return key;
-            }
+        Loadable cachedLoadable = cachedLoadablesById.get(loadable.id);
+        if (cachedLoadable != null) {
+            return cachedLoadable;
         }
 
         // Add it to the cache, refresh contents
         helper.loadableDao.refresh(loadable);
+        return putLoaded(loadable);
+    }
+
+    /**
+     * Call this with a loadable that had all its columns loaded by a query, like a join, instead of
+     * {@link #refreshForeign(Loadable)}.
+     * <p>It will return the cached loadable if there is one, so changes to it are not lost.
+     *
+     * @param loadable Loadable with all columns loaded
+     * @return a loadable ready to use.
+     */
+    public Loadable putLoaded(final Loadable loadable) {
+        Loadable cachedLoadable = cachedLoadablesById.get(loadable.id);
+        if (cachedLoadable != null) {
+            return cachedLoadable;
+        }
+
         loadable.site = SiteRepository.forId(loadable.siteId);
         loadable.board = loadable.site.board(loadable.boardCode);
+        return cache(loadable);
+    }
+
+    /**
+     * Loadables are loaded on the read threads and on the database thread at the same time, so
+     * the first one cached for an id wins and is returned to everyone after it.
+     */
+    private Loadable cache(Loadable loadable) {
+        Loadable cachedLoadable = cachedLoadablesById.putIfAbsent(loadable.id, loadable);
+        if (cachedLoadable != null) {
+            return cachedLoadable;
+        }
+
         cachedLoadables.put(loadable, loadable);
         return loadable;
     }
@@ -152,25 +191,10 @@ public class DatabaseLoadableManager {
                     //Logger.v(TAG, "Cached loadable found");
                     return cachedLoadable;
                 } else {
-                    QueryBuilder<Loadable, Integer> builder = helper.loadableDao.queryBuilder();
-                    List<Loadable> results = builder.where()
-                            .eq("site", loadable.siteId).and()
-                            .eq("mode", loadable.mode)
-                            .and().eq("board", loadable.boardCode)
-                            .and().eq("no", loadable.no)
-                            .query();
-
-                    if (results.size() > 1) {
-                        //Log.w(TAG, "Multiple loadables found for where Loadable.equals() would return true");
-                        for (Loadable result : results) {
-                            Log.w(TAG, result.toString());
-                        }
-                    }
-
-                    Loadable result = results.isEmpty() ? null : results.get(0);
+                    Loadable result = helper.statements.findLoadable(loadable);
                     if (result == null) {
                         //Log.d(TAG, "Creating loadable");
-                        helper.loadableDao.create(loadable);
+                        helper.statements.insertLoadable(loadable);
                         result = loadable;
                     } else {
                         //Log.d(TAG, "Loadable found in db");
@@ -178,8 +202,7 @@ public class DatabaseLoadableManager {
                         result.board = result.site.board(result.boardCode);
                     }
 
-                    cachedLoadables.put(result, result);
-                    return result;
+                    return cache(result);
                 }
             }
         };
@@ -202,6 +225,13 @@ public class DatabaseLoadableManager {
             builder.where().in("id", loadableIdSet);
 
             int deletedCount = builder.delete();
+
+            for (Integer id : loadableIdSet) {
+                Loadable cachedLoadable = cachedLoadablesById.remove(id);
+                if (cachedLoadable != null) {
+                    cachedLoadables.remove(cachedLoadable);
+                }
+            }
             if (loadableIdSet.size() != deletedCount) {
                 throw new IllegalStateException("Deleted count not equals to loadableIdSet.size(). (deletedCount = "
                         + deletedCount + "), " + "(loadableIdSet = " + loadableIdSet.size() + ")");
@@ -22,22 +22,29 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 
-import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.misc.TransactionManager;
 
+import org.otacoo.chan.BuildConfig;
 import org.otacoo.chan.Chan;
+import org.otacoo.chan.core.model.orm.History;
+import org.otacoo.chan.core.model.orm.Loadable;
+import org.otacoo.chan.core.model.orm.Pin;
+import org.otacoo.chan.core.model.orm.SavedReply;
 import org.otacoo.chan.utils.Logger;
-import org.otacoo.chan.utils.Time;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -53,14 +60,33 @@ import de.greenrobot.event.EventBus;
  * {@link Callable} that needs to be queued on either {@link #runTaskAsync(Callable)},
  * {@link #runTaskAsync(Callable, TaskResult)} or {@link #runTask(Callable)}.<br>
  * You often want the sync flavour for queries that return data, it waits for the task to be finished on the other thread.<br>
- * Use the async versions when you don't care when the query is done.
+ * Use the async versions when you don't care when the query is done.<br>
+ * Queries that only read can instead be queued with {@link #runRead(Callable)} or
+ * {@link #runReadAsync(Callable, TaskResult)}. They run on a few read threads that don't wait for the
+ * writes queued on the database thread, and only see the writes that were committed, unless queued with
+ * {@link #runReadAfterWritesAsync(Callable, TaskResult, TaskError)}.<br>
+ * Small writes that don't need a result right away can be queued with {@link #runWriteAsync(Callable)}, they
+ * are batched together into one transaction instead of committing each on their own.
  */
 @Singleton
 public class DatabaseManager {
     private static final String TAG = "DatabaseManager";
 
-    private final ExecutorService backgroundExecutor;
+    // Writes queued within this time of the first pending write share a transaction.
+    private static final long WRITE_BATCH_WINDOW_MS = 50;
+    private static final int WRITE_BATCH_MAX_TASKS = 32;
+    private static final int WRITE_BATCH_LOG_INTERVAL = 100;
+
+    // Main thread waits longer than this are logged as warnings in developer builds.
+    private static final long MAIN_THREAD_WAIT_WARN_MS = 8;
+
+    // SQLite in WAL mode has a few connections for readers next to the one for the writer.
+    private static final int READ_THREADS = 2;
+
+    private final ScheduledThreadPoolExecutor backgroundExecutor;
     private Thread executorThread;
+    private final ThreadPoolExecutor readExecutor;
+    private final ThreadLocal<Boolean> onReadThread = new ThreadLocal<>();
     private final DatabaseHelper helper;
 
     private final DatabasePinManager databasePinManager;
@@ -72,13 +98,31 @@ public class DatabaseManager {
     private final DatabaseSiteManager databaseSiteManager;
     private final DatabaseHideManager databaseHideManager;
 
+    // Guarded by pendingWrites.
+    private final List<WriteTask<?>> pendingWrites = new ArrayList<>();
+    private ScheduledFuture<?> pendingWritesFlush;
+
+    // Guarded by this.
+    private long writeBatches;
+    private long writeBatchTasks;
+    private int writeBatchMaxTasks;
+    private long writeBatchNanos;
+    private long writeBatchMaxNanos;
+
     @Inject
     @SuppressWarnings("this-escape")
     public DatabaseManager(Context context) {
-        backgroundExecutor = new ThreadPoolExecutor(
-                1, 1,
-                1000L, TimeUnit.DAYS,
-                new LinkedBlockingQueue<>());
+        // Immediate tasks run in the order they were submitted, just like a single thread executor.
+        backgroundExecutor = new ScheduledThreadPoolExecutor(1);
+
+        readExecutor = new ThreadPoolExecutor(
+                READ_THREADS, READ_THREADS,
+                30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> new Thread(() -> {
+                    onReadThread.set(true);
+                    runnable.run();
+                }, "DatabaseRead"));
+        readExecutor.allowCoreThreadTimeOut(true);
 
         helper = new DatabaseHelper(context);
 
@@ -110,10 +154,10 @@ public class DatabaseManager {
     public void initializeAndTrim() {
         // Loads data into fields.
         runTask(databaseSavedReplyManager.load());
+        runTaskAsync(databaseHideManager.load());
 
         // Only trims.
         runTaskAsync(databaseHistoryManager.load());
-        runTaskAsync(databaseHideManager.load());
     }
 
     public DatabasePinManager getDatabasePinManager() {
@@ -151,7 +195,8 @@ public class DatabaseManager {
 
     public void onEvent(Chan.ForegroundChangedMessage message) {
         if (!message.inForeground) {
-            runTaskAsync(databaseLoadableManager.flush());
+            runWriteAsync(databaseLoadableManager.flush());
+            flushWrites();
         }
     }
 
@@ -184,6 +229,8 @@ public class DatabaseManager {
             e.printStackTrace();
         }
 
+        o += getWriteBatchSummary();
+
         return o;
     }
 
@@ -263,25 +310,147 @@ public class DatabaseManager {
     }
 
     /**
-     * Trim a table with the specified trigger and trim count.
-     *
-     * @param dao     {@link Dao} to use.
-     * @param table   name of the table, used in the query (not escaped).
-     * @param trigger Trim if there are more rows than {@code trigger}.
-     * @param trim    Count of rows to trim.
+     * Run EXPLAIN QUERY PLAN on the lookups done by the managers, to check that they use an index
+     * instead of scanning the table. Returns a report for the developer settings screen.
      */
-    @SuppressWarnings({"rawtypes", "unchecked"})
-    /*package*/ void trimTable(Dao dao, String table, long trigger, long trim) {
-        try {
-            long count = dao.countOf();
-            if (count > trigger) {
-                long start = Time.startTiming();
-                dao.executeRaw("DELETE FROM " + table + " WHERE id IN (SELECT id FROM " + table + " ORDER BY id ASC LIMIT ?)", String.valueOf(trim));
-                Time.endTiming("Trimmed " + table + " from " + count + " to " + dao.countOf() + " rows", start);
+    public Callable<String> explainQueryPlans() {
+        return () -> {
+            String[][] queries = {
+                    {"Loadable by site, board and no (DatabaseLoadableManager.getLoadable)",
+                            "SELECT * FROM loadable WHERE site = ? AND mode = ? AND board = ? AND no = ?", "1", "1", "g", "1"},
+                    {"History by loadable (DatabaseHistoryManager.addHistory)",
+                            "SELECT * FROM history WHERE loadable_id = ?", "1"},
+                    {"History by date (DatabaseHistoryManager.getHistory)",
+                            "SELECT * FROM history ORDER BY date DESC"},
+                    {"Saved reply by site, board and no (DatabaseSavedReplyManager.findSavedReply)",
+                            "SELECT * FROM savedreply WHERE site = ? AND board = ? AND no = ?", "1", "g", "1"},
+                    {"Pins by loadable (DatabasePinManager.deletePins)",
+                            "SELECT * FROM pin WHERE loadable_id IN (?, ?)", "1", "2"},
+                    {"Thread hides by site (DatabaseHideManager.deleteThreadHides)",
+                            "SELECT * FROM threadhide WHERE site = ?", "1"},
+            };
+
+            StringBuilder sb = new StringBuilder();
+            SQLiteDatabase db = helper.getReadableDatabase();
+            for (String[] query : queries) {
+                sb.append("=== ").append(query[0]).append(" ===\n");
+                String[] args = new String[query.length - 2];
+                System.arraycopy(query, 2, args, 0, args.length);
+                try (Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + query[1], args)) {
+                    int detail = c.getColumnIndex("detail");
+                    while (c.moveToNext()) {
+                        sb.append(c.getString(detail)).append("\n");
+                    }
+                }
+                sb.append("\n");
             }
-        } catch (SQLException e) {
-            Logger.e(TAG, "Error trimming table " + table, e);
-        }
+            return sb.toString();
+        };
+    }
+
+    /**
+     * Time the hand written statements of {@link DatabaseStatements} against the ORMLite calls they
+     * replaced, on rows that are rolled back afterwards. Returns a report for the developer settings screen.
+     */
+    public Callable<String> benchmarkStatements() {
+        return () -> {
+            final int runs = 200;
+            StringBuilder sb = new StringBuilder();
+            SQLiteDatabase db = helper.getWritableDatabase();
+            DatabaseStatements statements = helper.statements;
+
+            // Nested in the transaction of the task, failing it rolls the whole task back.
+            db.beginTransaction();
+            try {
+                Loadable loadable = Loadable.emptyLoadable();
+                loadable.siteId = -1;
+                loadable.mode = Loadable.Mode.THREAD;
+                loadable.boardCode = "benchmark";
+                loadable.no = 1;
+                helper.loadableDao.create(loadable);
+
+                long start = System.nanoTime();
+                for (int i = 0; i < runs; i++) {
+                    helper.loadableDao.queryBuilder().where()
+                            .eq("site", loadable.siteId).and()
+                            .eq("mode", loadable.mode)
+                            .and().eq("board", loadable.boardCode)
+                            .and().eq("no", loadable.no)
+                            .query();
+                }
+                long ormlite = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < runs; i++) {
+                    statements.findLoadable(loadable);
+                }
+                appendBenchmark(sb, "Loadable lookup", runs, ormlite, System.nanoTime() - start);
+
+                History history = new History();
+                history.loadable = loadable;
+                start = System.nanoTime();
+                for (int i = 0; i < runs; i++) {
+                    List<History> existing = helper.historyDao.queryBuilder().where().eq("loadable_id", loadable.id).query();
+                    if (existing.isEmpty()) {
+                        helper.historyDao.create(history);
+                    } else {
+                        existing.get(0).date = i;
+                        helper.historyDao.update(existing.get(0));
+                    }
+                }
+                ormlite = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < runs; i++) {
+                    statements.upsertHistory(loadable.id, loadable.title, null, i, "");
+                }
+                appendBenchmark(sb, "History upsert", runs, ormlite, System.nanoTime() - start);
+
+                Pin pin = new Pin();
+                pin.loadable = loadable;
+                helper.pinDao.create(pin);
+                start = System.nanoTime();
+                for (int i = 0; i < runs; i++) {
+                    pin.watchNewCount = i;
+                    helper.pinDao.update(pin);
+                }
+                ormlite = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < runs; i++) {
+                    pin.watchNewCount = i;
+                    statements.updatePin(pin);
+                }
+                appendBenchmark(sb, "Pin update", runs, ormlite, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < runs; i++) {
+                    SavedReply savedReply = new SavedReply();
+                    savedReply.siteId = -1;
+                    savedReply.board = "benchmark";
+                    savedReply.no = i;
+                    helper.savedDao.create(savedReply);
+                }
+                ormlite = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < runs; i++) {
+                    SavedReply savedReply = new SavedReply();
+                    savedReply.siteId = -1;
+                    savedReply.board = "benchmark";
+                    savedReply.no = runs + i;
+                    statements.insertSavedReply(savedReply);
+                }
+                appendBenchmark(sb, "Saved reply insert", runs, ormlite, System.nanoTime() - start);
+            } finally {
+                // Not successful, nothing is kept.
+                db.endTransaction();
+            }
+
+            return sb.toString();
+        };
+    }
+
+    private static void appendBenchmark(StringBuilder sb, String name, int runs, long ormliteNanos, long statementNanos) {
+        sb.append("=== ").append(name).append(" ===\n")
+                .append("ORMLite: ").append(ormliteNanos / runs / 1000).append("us/op\n")
+                .append("Statement: ").append(statementNanos / runs / 1000).append("us/op\n\n");
     }
 
     public <T> void runTaskAsync(final Callable<T> taskCallable) {
@@ -294,14 +463,157 @@ public class DatabaseManager {
     }
 
     public <T> T runTask(final Callable<T> taskCallable) {
+        return await(executeTask(taskCallable, null));
+    }
+
+    /**
+     * Run a query that only reads on a read thread, and wait for its result. It doesn't wait for the
+     * writes queued before it.
+     */
+    public <T> T runRead(final Callable<T> taskCallable) {
+        if (Thread.currentThread() == executorThread || Boolean.TRUE.equals(onReadThread.get())) {
+            return new ReadCallable<>(taskCallable, null, null).call();
+        }
+        return await(readExecutor.submit(new ReadCallable<>(taskCallable, null, null)));
+    }
+
+    /**
+     * Run a query that only reads on a read thread. The result is delivered on the main thread.
+     * Failures are only logged, use {@link #runReadAsync(Callable, TaskResult, TaskError)} when
+     * the caller has state to reset.
+     */
+    public <T> void runReadAsync(final Callable<T> taskCallable, final TaskResult<T> taskResult) {
+        runReadAsync(taskCallable, taskResult, null);
+    }
+
+    /**
+     * Run a query that only reads on a read thread. The result, or the exception it failed with,
+     * is delivered on the main thread.
+     */
+    public <T> void runReadAsync(final Callable<T> taskCallable, final TaskResult<T> taskResult,
+                                 final TaskError taskError) {
+        readExecutor.submit(new ReadCallable<>(taskCallable, taskResult, taskError));
+    }
+
+    /**
+     * Like {@link #runReadAsync(Callable, TaskResult, TaskError)}, but the read waits for the writes
+     * queued before it to be committed, for reads that must see the changes made just before.
+     */
+    public <T> void runReadAfterWritesAsync(final Callable<T> taskCallable, final TaskResult<T> taskResult,
+                                            final TaskError taskError) {
+        flushWrites();
+        // The database thread runs the queued writes first, the read still runs on a read thread.
+        backgroundExecutor.submit(() -> readExecutor.submit(new ReadCallable<>(taskCallable, taskResult, taskError)));
+    }
+
+    private <T> T await(Future<T> future) {
+        boolean mainThread = BuildConfig.DEVELOPER_MODE && Looper.myLooper() == Looper.getMainLooper();
+        long start = mainThread ? SystemClock.elapsedRealtime() : 0;
         try {
-            return executeTask(taskCallable, null).get();
+            return future.get();
         } catch (InterruptedException | ExecutionException e) {
             throw new RuntimeException(e);
+        } finally {
+            if (mainThread) {
+                logMainThreadWait(SystemClock.elapsedRealtime() - start);
+            }
+        }
+    }
+
+    private void logMainThreadWait(long waited) {
+        // The first frame outside of the database classes is the one that waited.
+        String caller = "unknown";
+        for (StackTraceElement element : new Throwable().getStackTrace()) {
+            if (!element.getClassName().startsWith(DatabaseManager.class.getName())) {
+                caller = element.toString();
+                break;
+            }
+        }
+
+        String message = "Main thread waited " + waited + "ms on the database at " + caller;
+        if (waited >= MAIN_THREAD_WAIT_WARN_MS) {
+            Logger.w(TAG, message);
+        } else {
+            Logger.d(TAG, message);
+        }
+    }
+
+    /**
+     * Queue a write that may share its transaction with other writes queued shortly after it.
+     * <p>
+     * The writes still run in the order they were queued, and before any task queued after them.
+     * When one write of a batch fails the batch is rolled back and its writes are run again one
+     * transaction each, so writes queued this way must only change the database.
+     */
+    public <T> void runWriteAsync(final Callable<T> taskCallable) {
+        runWriteAsync(taskCallable, null);
+    }
+
+    public <T> void runWriteAsync(final Callable<T> taskCallable, final TaskResult<T> taskResult) {
+        if (Thread.currentThread() == executorThread) {
+            // Already in a transaction on the database thread.
+            executeTask(taskCallable, taskResult);
+            return;
+        }
+
+        synchronized (pendingWrites) {
+            pendingWrites.add(new WriteTask<>(taskCallable, taskResult));
+            if (pendingWrites.size() >= WRITE_BATCH_MAX_TASKS) {
+                flushWrites();
+            } else if (pendingWritesFlush == null) {
+                pendingWritesFlush = backgroundExecutor.schedule(
+                        this::flushWrites, WRITE_BATCH_WINDOW_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Queue the pending writes as one batch on the database thread.
+     */
+    private void flushWrites() {
+        // Submitted while holding the lock, batches must be queued in the order they were taken.
+        synchronized (pendingWrites) {
+            if (pendingWritesFlush != null) {
+                pendingWritesFlush.cancel(false);
+                pendingWritesFlush = null;
+            }
+
+            if (!pendingWrites.isEmpty()) {
+                backgroundExecutor.submit(new WriteBatch(new ArrayList<>(pendingWrites)));
+                pendingWrites.clear();
+            }
+        }
+    }
+
+    private synchronized void recordWriteBatch(int tasks, long nanos) {
+        writeBatches++;
+        writeBatchTasks += tasks;
+        writeBatchMaxTasks = Math.max(writeBatchMaxTasks, tasks);
+        writeBatchNanos += nanos;
+        writeBatchMaxNanos = Math.max(writeBatchMaxNanos, nanos);
+
+        if (writeBatches % WRITE_BATCH_LOG_INTERVAL == 0) {
+            Logger.d(TAG, getWriteBatchSummary().trim());
+        }
+    }
+
+    private synchronized String getWriteBatchSummary() {
+        if (writeBatches == 0) {
+            return "Write batches: none\n";
         }
+        return "Write batches: " + writeBatches
+                + ", tasks per batch avg " + String.format("%.1f", writeBatchTasks / (double) writeBatches)
+                + " max " + writeBatchMaxTasks
+                + ", commit ms avg " + String.format("%.1f", writeBatchNanos / (double) writeBatches / 1e6)
+                + " max " + String.format("%.1f", writeBatchMaxNanos / 1e6) + "\n";
     }
 
     private <T> Future<T> executeTask(final Callable<T> taskCallable, final TaskResult<T> taskResult) {
+        if (Thread.currentThread() != executorThread) {
+            // Pending writes were queued before this task, and must run before it.
+            flushWrites();
+        }
+
         if (Thread.currentThread() == executorThread) {
             DatabaseCallable<T> databaseCallable = new DatabaseCallable<>(taskCallable, taskResult);
             T result = databaseCallable.call();
@@ -363,7 +675,105 @@ public class DatabaseManager {
         }
     }
 
+    private class ReadCallable<T> implements Callable<T> {
+        private final Callable<T> taskCallable;
+        private final TaskResult<T> taskResult;
+        private final TaskError taskError;
+
+        private ReadCallable(Callable<T> taskCallable, TaskResult<T> taskResult, TaskError taskError) {
+            this.taskCallable = taskCallable;
+            this.taskResult = taskResult;
+            this.taskError = taskError;
+        }
+
+        @Override
+        public T call() {
+            try {
+                final T result = taskCallable.call();
+                if (taskResult != null) {
+                    new Handler(Looper.getMainLooper()).post(() -> taskResult.onComplete(result));
+                }
+                return result;
+            } catch (Exception e) {
+                Logger.e(TAG, "runRead", e);
+                if (taskError != null) {
+                    new Handler(Looper.getMainLooper()).post(() -> taskError.onError(e));
+                }
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private class WriteBatch implements Callable<Void> {
+        private final List<WriteTask<?>> tasks;
+
+        private WriteBatch(List<WriteTask<?>> tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        public Void call() {
+            executorThread = Thread.currentThread();
+
+            long start = System.nanoTime();
+            try {
+                TransactionManager.callInTransaction(helper.getConnectionSource(), () -> {
+                    for (int i = 0; i < tasks.size(); i++) {
+                        tasks.get(i).run();
+                    }
+                    return null;
+                });
+            } catch (Exception e) {
+                Logger.e(TAG, "Write batch of " + tasks.size() + " failed, running the writes one by one", e);
+                for (int i = 0; i < tasks.size(); i++) {
+                    try {
+                        tasks.get(i).runAlone();
+                    } catch (RuntimeException ignored) {
+                        // Logged by DatabaseCallable, the other writes should still go through.
+                    }
+                }
+                return null;
+            }
+            recordWriteBatch(tasks.size(), System.nanoTime() - start);
+
+            for (int i = 0; i < tasks.size(); i++) {
+                tasks.get(i).complete();
+            }
+            return null;
+        }
+    }
+
+    private class WriteTask<T> {
+        private final Callable<T> taskCallable;
+        private final TaskResult<T> taskResult;
+        private T result;
+
+        private WriteTask(Callable<T> taskCallable, TaskResult<T> taskResult) {
+            this.taskCallable = taskCallable;
+            this.taskResult = taskResult;
+        }
+
+        private void run() throws Exception {
+            result = taskCallable.call();
+        }
+
+        private void runAlone() {
+            new DatabaseCallable<>(taskCallable, taskResult).call();
+        }
+
+        private void complete() {
+            if (taskResult != null) {
+                final T result = this.result;
+                new Handler(Looper.getMainLooper()).post(() -> taskResult.onComplete(result));
+            }
+        }
+    }
+
     public interface TaskResult<T> {
         void onComplete(T result);
     }
+
+    public interface TaskError {
+        void onError(Exception e);
+    }
 }
@@ -69,7 +69,7 @@ public class DatabasePinManager {
         return new Callable<Pin>() {
             @Override
             public Pin call() throws Exception {
-                helper.pinDao.update(pin);
+                helper.statements.updatePin(pin);
                 return pin;
             }
         };
@@ -81,7 +81,7 @@ public class DatabasePinManager {
             public List<Pin> call() throws Exception {
                 for (int i = 0; i < pins.size(); i++) {
                     Pin pin = pins.get(i);
-                    helper.pinDao.update(pin);
+                    helper.statements.updatePin(pin);
                 }
 
                 return null;
@@ -97,6 +97,7 @@ public class DatabasePinManager {
                 for (int i = 0; i < list.size(); i++) {
                     Pin p = list.get(i);
                     p.loadable = databaseLoadableManager.refreshForeign(p.loadable);
+                    p.markPersisted();
                 }
                 return list;
             }
@@ -29,10 +29,7 @@ import org.otacoo.chan.core.repository.SiteRepository;
 import org.otacoo.chan.core.site.Site;
 import org.otacoo.chan.utils.Time;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.Callable;
 
 /**
@@ -42,13 +39,10 @@ import java.util.concurrent.Callable;
 public class DatabaseSavedReplyManager {
     private static final String TAG = "DatabaseSavedReplyManager";
 
-    private static final long SAVED_REPLY_TRIM_TRIGGER = 250;
-    private static final long SAVED_REPLY_TRIM_COUNT = 50;
-
     private final DatabaseManager databaseManager;
     private final DatabaseHelper helper;
 
-    private final Map<Integer, List<SavedReply>> savedRepliesByNo = new HashMap<>();
+    private final PackedKeySet savedReplies = new PackedKeySet();
 
     public DatabaseSavedReplyManager(DatabaseManager databaseManager, DatabaseHelper helper) {
         this.databaseManager = databaseManager;
@@ -66,50 +60,38 @@ public class DatabaseSavedReplyManager {
      */
     @AnyThread
     public boolean isSaved(Board board, int postNo) {
-        synchronized (savedRepliesByNo) {
-            if (savedRepliesByNo.containsKey(postNo)) {
-                List<SavedReply> items = savedRepliesByNo.get(postNo);
-                for (int i = 0; i < items.size(); i++) {
-                    SavedReply item = items.get(i);
-                    if (item.board.equals(board.code) && item.siteId == board.site.id()) {
-                        return true;
-                    }
-                }
-                return false;
-            } else {
-                return false;
-            }
-        }
+        return savedReplies.contains(PackedKeySet.key(board.site.id(), board.code, postNo));
     }
 
-    /** Returns all saved replies for backup export. */
-    public Callable<List<SavedReply>> getAllForBackup() {
-        return () -> helper.savedDao.queryForAll();
+    private static long key(SavedReply savedReply) {
+        return PackedKeySet.key(savedReply.siteId, savedReply.board, savedReply.no);
+    }
+
+    /**
+     * Returns a page of saved replies for backup export, ordered by id.
+     *
+     * @param afterId the id of the last saved reply of the previous page, or 0 for the first page.
+     * @param limit   the maximum number of saved replies in the page.
+     */
+    public Callable<List<SavedReply>> getForBackup(int afterId, int limit) {
+        return () -> helper.savedDao.queryBuilder()
+                .orderBy("id", true)
+                .limit((long) limit)
+                .where().gt("id", afterId)
+                .query();
     }
 
     public Callable<Void> load() {
         return () -> {
-            databaseManager.trimTable(helper.savedDao, "savedreply",
-                    SAVED_REPLY_TRIM_TRIGGER, SAVED_REPLY_TRIM_COUNT);
-
             final List<SavedReply> all = helper.savedDao.queryForAll();
 
-            synchronized (savedRepliesByNo) {
-                savedRepliesByNo.clear();
-                for (int i = 0; i < all.size(); i++) {
-                    SavedReply savedReply = all.get(i);
-
-                    savedReply.site = SiteRepository.forId(savedReply.siteId);
-
-                    List<SavedReply> list = savedRepliesByNo.get(savedReply.no);
-                    if (list == null) {
-                        list = new ArrayList<>(1);
-                        savedRepliesByNo.put(savedReply.no, list);
-                    }
-
-                    list.add(savedReply);
-                }
+            long[] keys = new long[all.size()];
+            for (int i = 0; i < all.size(); i++) {
+                SavedReply savedReply = all.get(i);
+                savedReply.site = SiteRepository.forId(savedReply.siteId);
+                keys[i] = key(savedReply);
             }
+            savedReplies.setAll(keys, keys.length);
             return null;
         };
     }
@@ -118,9 +100,7 @@ public class DatabaseSavedReplyManager {
         return () -> {
             long start = Time.startTiming();
             TableUtils.clearTable(helper.getConnectionSource(), SavedReply.class);
-            synchronized (savedRepliesByNo) {
-                savedRepliesByNo.clear();
-            }
+            savedReplies.clear();
             Time.endTiming("Clear saved replies", start);
 
             return null;
@@ -129,32 +109,30 @@ public class DatabaseSavedReplyManager {
 
     public Callable<SavedReply> saveReply(final SavedReply savedReply) {
         return () -> {
-            helper.savedDao.create(savedReply);
-            synchronized (savedRepliesByNo) {
-                List<SavedReply> list = savedRepliesByNo.get(savedReply.no);
-                if (list == null) {
-                    list = new ArrayList<>(1);
-                    savedRepliesByNo.put(savedReply.no, list);
-                }
-
-                list.add(savedReply);
-            }
+            helper.statements.insertSavedReply(savedReply);
+            savedReplies.add(key(savedReply));
             return savedReply;
         };
     }
 
+    public Callable<Void> saveReplies(final List<SavedReply> savedReplies) {
+        return () -> {
+            long[] keys = new long[savedReplies.size()];
+            for (int i = 0; i < savedReplies.size(); i++) {
+                SavedReply savedReply = savedReplies.get(i);
+                helper.statements.insertSavedReply(savedReply);
+                keys[i] = key(savedReply);
+            }
+            // Published once for the batch, every add copies the set.
+            this.savedReplies.addAll(keys, keys.length);
+            return null;
+        };
+    }
+
     public Callable<SavedReply> unsaveReply(SavedReply savedReply) {
         return () -> {
             helper.savedDao.delete(savedReply);
-            synchronized (savedRepliesByNo) {
-                List<SavedReply> list = savedRepliesByNo.get(savedReply.no);
-                if (list != null) {
-                    list.remove(savedReply);
-                    if (list.isEmpty()) {
-                        savedRepliesByNo.remove(savedReply.no);
-                    }
-                }
-            }
+            savedReplies.remove(key(savedReply));
             return savedReply;
         };
     }
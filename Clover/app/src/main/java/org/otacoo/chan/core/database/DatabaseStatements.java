@@ -0,0 +1,223 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.otacoo.chan.core.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import androidx.annotation.Nullable;
+
+import org.otacoo.chan.core.model.orm.Loadable;
+import org.otacoo.chan.core.model.orm.Pin;
+import org.otacoo.chan.core.model.orm.SavedReply;
+
+/**
+ * Hand written SQL for the queries that run the most, without the reflection ORMLite does to build
+ * the query and to map the rows. ORMLite still defines the tables and is used for everything else.
+ * <p>
+ * The statements are compiled once, and must only be used on the database thread.
+ */
+class DatabaseStatements {
+    private static final String LOADABLE_COLUMNS = "id, title, listViewIndex, listViewTop, lastViewed, lastLoaded, " +
+            "draftName, draftSubject, draftComment, draftOptions, draftFlag";
+
+    private final DatabaseHelper helper;
+
+    private SQLiteDatabase database;
+    private SQLiteStatement insertLoadable;
+    private SQLiteStatement findHistory;
+    private SQLiteStatement insertHistory;
+    private SQLiteStatement updateHistoryDate;
+    private SQLiteStatement updateHistoryDateExcerpt;
+    private SQLiteStatement indexHistory;
+    private SQLiteStatement updatePin;
+    private SQLiteStatement insertSavedReply;
+
+    DatabaseStatements(DatabaseHelper helper) {
+        this.helper = helper;
+    }
+
+    /**
+     * Find the thread loadable with the site, board and number of the given loadable.
+     *
+     * @return a new loadable with all columns loaded, but without its site and board, or null if not in the db.
+     */
+    @Nullable
+    Loadable findLoadable(Loadable loadable) {
+        try (Cursor cursor = database().rawQuery("SELECT " + LOADABLE_COLUMNS + " FROM loadable " +
+                        "WHERE site = ? AND mode = ? AND board = ? AND no = ? ORDER BY id LIMIT 1",
+                new String[]{String.valueOf(loadable.siteId), String.valueOf(loadable.mode), loadable.boardCode,
+                        String.valueOf(loadable.no)})) {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+
+            Loadable result = Loadable.emptyLoadable();
+            result.siteId = loadable.siteId;
+            result.mode = loadable.mode;
+            result.boardCode = loadable.boardCode;
+            result.no = loadable.no;
+            result.id = cursor.getInt(0);
+            result.title = cursor.getString(1);
+            result.listViewIndex = cursor.getInt(2);
+            result.listViewTop = cursor.getInt(3);
+            result.lastViewed = cursor.getInt(4);
+            result.lastLoaded = cursor.getInt(5);
+            result.draftName = cursor.getString(6);
+            result.draftSubject = cursor.getString(7);
+            result.draftComment = cursor.getString(8);
+            result.draftOptions = cursor.getString(9);
+            result.draftFlag = cursor.getString(10);
+            return result;
+        }
+    }
+
+    /**
+     * Insert the loadable, and set its id.
+     */
+    void insertLoadable(Loadable loadable) {
+        database();
+        SQLiteStatement s = insertLoadable;
+        s.clearBindings();
+        s.bindLong(1, loadable.siteId);
+        s.bindLong(2, loadable.mode);
+        bindString(s, 3, loadable.boardCode);
+        s.bindLong(4, loadable.no);
+        bindString(s, 5, loadable.title);
+        s.bindLong(6, loadable.listViewIndex);
+        s.bindLong(7, loadable.listViewTop);
+        s.bindLong(8, loadable.lastViewed);
+        s.bindLong(9, loadable.lastLoaded);
+        bindString(s, 10, loadable.draftName);
+        bindString(s, 11, loadable.draftSubject);
+        bindString(s, 12, loadable.draftComment);
+        bindString(s, 13, loadable.draftOptions);
+        bindString(s, 14, loadable.draftFlag);
+        loadable.id = (int) s.executeInsert();
+    }
+
+    /**
+     * Set the visit date of the history row of the loadable, or insert one. Also indexes the title and
+     * excerpt for searching.
+     *
+     * @param excerpt new excerpt, or empty to keep the stored one.
+     * @return the id of the history row.
+     */
+    int upsertHistory(int loadableId, String title, @Nullable String thumbnailUrl, long date, String excerpt) {
+        database();
+
+        long id;
+        findHistory.bindLong(1, loadableId);
+        try {
+            id = findHistory.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            id = -1;
+        }
+
+        if (id >= 0) {
+            SQLiteStatement s = excerpt.isEmpty() ? updateHistoryDate : updateHistoryDateExcerpt;
+            s.clearBindings();
+            s.bindLong(1, date);
+            if (excerpt.isEmpty()) {
+                s.bindLong(2, id);
+            } else {
+                s.bindString(2, excerpt);
+                s.bindLong(3, id);
+            }
+            s.executeUpdateDelete();
+        } else {
+            SQLiteStatement s = insertHistory;
+            s.clearBindings();
+            s.bindLong(1, loadableId);
+            bindString(s, 2, thumbnailUrl);
+            s.bindLong(3, date);
+            s.bindString(4, excerpt);
+            id = s.executeInsert();
+        }
+
+        indexHistory.clearBindings();
+        indexHistory.bindLong(1, id);
+        bindString(indexHistory, 2, title);
+        indexHistory.bindLong(3, id);
+        indexHistory.executeInsert();
+
+        return (int) id;
+    }
+
+    void updatePin(Pin pin) {
+        database();
+        SQLiteStatement s = updatePin;
+        s.clearBindings();
+        s.bindLong(1, pin.watching ? 1 : 0);
+        s.bindLong(2, pin.watchLastCount);
+        s.bindLong(3, pin.watchNewCount);
+        s.bindLong(4, pin.quoteLastCount);
+        s.bindLong(5, pin.quoteNewCount);
+        s.bindLong(6, pin.isError ? 1 : 0);
+        bindString(s, 7, pin.thumbnailUrl);
+        s.bindLong(8, pin.order);
+        s.bindLong(9, pin.archived ? 1 : 0);
+        s.bindLong(10, pin.id);
+        s.executeUpdateDelete();
+    }
+
+    /**
+     * Insert the saved reply, and set its id.
+     */
+    void insertSavedReply(SavedReply savedReply) {
+        database();
+        SQLiteStatement s = insertSavedReply;
+        s.clearBindings();
+        s.bindLong(1, savedReply.siteId);
+        bindString(s, 2, savedReply.board);
+        s.bindLong(3, savedReply.no);
+        bindString(s, 4, savedReply.password);
+        savedReply.id = (int) s.executeInsert();
+    }
+
+    private SQLiteDatabase database() {
+        // The helper opens a new database after it was closed, the statements belong to the old one.
+        SQLiteDatabase current = helper.getWritableDatabase();
+        if (current != database) {
+            database = current;
+            insertLoadable = current.compileStatement("INSERT INTO loadable (site, mode, board, no, title, " +
+                    "listViewIndex, listViewTop, lastViewed, lastLoaded, draftName, draftSubject, draftComment, draftOptions, draftFlag) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            findHistory = current.compileStatement("SELECT id FROM history WHERE loadable_id = ? LIMIT 1");
+            insertHistory = current.compileStatement("INSERT INTO history (loadable_id, thumbnailUrl, date, excerpt) VALUES (?, ?, ?, ?)");
+            updateHistoryDate = current.compileStatement("UPDATE history SET date = ? WHERE id = ?");
+            updateHistoryDateExcerpt = current.compileStatement("UPDATE history SET date = ?, excerpt = ? WHERE id = ?");
+            indexHistory = current.compileStatement("INSERT OR REPLACE INTO history_fts (docid, title, excerpt) " +
+                    "SELECT ?, ?, excerpt FROM history WHERE id = ?");
+            updatePin = current.compileStatement("UPDATE pin SET watching = ?, watchLastCount = ?, watchNewCount = ?, " +
+                    "quoteLastCount = ?, quoteNewCount = ?, isError = ?, thumbnailUrl = ?, \"order\" = ?, archived = ? WHERE id = ?");
+            insertSavedReply = current.compileStatement("INSERT INTO savedreply (site, board, no, password) VALUES (?, ?, ?, ?)");
+        }
+        return current;
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, @Nullable String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+}
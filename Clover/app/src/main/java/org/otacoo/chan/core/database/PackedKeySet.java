@@ -0,0 +1,211 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.otacoo.chan.core.database;
+
+import androidx.annotation.AnyThread;
+
+/**
+ * A set of posts, for the posts the app keeps a flag of in memory like saved replies and hidden threads.
+ * <p>
+ * A post is packed into a long of its site id, a hash of its board code and its number, see
+ * {@link #key(int, String, int)}. The keys are kept in an open addressing hash table that is
+ * replaced, not changed, on every write. Reads don't lock and only read one array, writes are
+ * rare and copy the table.
+ * <p>
+ * Two boards of a site can have the same hash, a post of one of them can then be reported as in
+ * the set when the post with the same number of the other is. With 20 bits of hash that is
+ * rare enough to not matter for these flags.
+ */
+class PackedKeySet {
+    private static final int SITE_BITS = 12;
+    private static final int BOARD_BITS = 20;
+    private static final int MIN_CAPACITY = 16;
+
+    private volatile Table table = new Table(new long[MIN_CAPACITY], 0, false);
+
+    /**
+     * Pack a post into a key.
+     */
+    @AnyThread
+    static long key(int siteId, String boardCode, int no) {
+        long site = siteId & ((1L << SITE_BITS) - 1);
+        long board = boardCode.hashCode() & ((1L << BOARD_BITS) - 1);
+        return (site << (BOARD_BITS + 32)) | (board << 32) | (no & 0xffffffffL);
+    }
+
+    @AnyThread
+    boolean contains(long key) {
+        Table table = this.table;
+        if (key == 0) {
+            return table.hasZero;
+        }
+
+        long[] keys = table.keys;
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) {
+                return true;
+            } else if (k == 0) {
+                return false;
+            }
+        }
+    }
+
+    @AnyThread
+    int size() {
+        return table.size;
+    }
+
+    @AnyThread
+    synchronized void add(long key) {
+        if (contains(key)) {
+            return;
+        }
+
+        Table current = table;
+        if (key == 0) {
+            table = new Table(current.keys, current.size + 1, true);
+            return;
+        }
+
+        long[] keys;
+        // Keep the table at most half full, for short probes.
+        if ((current.size + 1) * 2 > current.keys.length) {
+            keys = rehash(current.keys, current.keys.length * 2, 0);
+        } else {
+            keys = current.keys.clone();
+        }
+        insert(keys, key);
+        table = new Table(keys, current.size + 1, current.hasZero);
+    }
+
+    /**
+     * Add many keys, with one copy of the table instead of one per key.
+     */
+    @AnyThread
+    synchronized void addAll(long[] newKeys, int count) {
+        Table current = table;
+        long[] keys = rehash(current.keys, capacityFor(current.size + count), 0);
+        int size = current.size;
+        boolean hasZero = current.hasZero;
+        for (int i = 0; i < count; i++) {
+            long key = newKeys[i];
+            if (key == 0) {
+                if (!hasZero) {
+                    hasZero = true;
+                    size++;
+                }
+            } else if (insert(keys, key)) {
+                size++;
+            }
+        }
+        table = new Table(keys, size, hasZero);
+    }
+
+    @AnyThread
+    synchronized void remove(long key) {
+        if (!contains(key)) {
+            return;
+        }
+
+        Table current = table;
+        if (key == 0) {
+            table = new Table(current.keys, current.size - 1, false);
+            return;
+        }
+
+        // Open addressing can't just clear a slot, the table is built again without the key.
+        table = new Table(rehash(current.keys, capacityFor(current.size - 1), key), current.size - 1, current.hasZero);
+    }
+
+    /**
+     * Replace all keys in the set.
+     */
+    @AnyThread
+    synchronized void setAll(long[] newKeys, int count) {
+        long[] keys = new long[capacityFor(count)];
+        int size = 0;
+        boolean hasZero = false;
+        for (int i = 0; i < count; i++) {
+            long key = newKeys[i];
+            if (key == 0) {
+                if (!hasZero) {
+                    hasZero = true;
+                    size++;
+                }
+            } else if (insert(keys, key)) {
+                size++;
+            }
+        }
+        table = new Table(keys, size, hasZero);
+    }
+
+    @AnyThread
+    synchronized void clear() {
+        table = new Table(new long[MIN_CAPACITY], 0, false);
+    }
+
+    private static long[] rehash(long[] from, int capacity, long skip) {
+        long[] keys = new long[capacity];
+        for (long key : from) {
+            if (key != 0 && key != skip) {
+                insert(keys, key);
+            }
+        }
+        return keys;
+    }
+
+    private static boolean insert(long[] keys, long key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return false;
+            } else if (keys[i] == 0) {
+                keys[i] = key;
+                return true;
+            }
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        long hash = key * 0x9e3779b97f4a7c15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private static int capacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static class Table {
+        // Zero marks an empty slot, the zero key is tracked with hasZero.
+        private final long[] keys;
+        private final int size;
+        private final boolean hasZero;
+
+        private Table(long[] keys, int size, boolean hasZero) {
+            this.keys = keys;
+            this.size = size;
+            this.hasZero = hasZero;
+        }
+    }
+}
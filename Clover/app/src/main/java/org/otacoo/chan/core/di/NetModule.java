@@ -6,6 +6,9 @@ import androidx.annotation.NonNull;
 
 import org.codejargon.feather.Provides;
 import org.otacoo.chan.core.cache.FileCache;
+import org.otacoo.chan.core.cache.IconCache;
+import org.otacoo.chan.core.cache.ImagePipeline;
+import org.otacoo.chan.core.cache.ThumbnailDiskCache;
 import org.otacoo.chan.core.net.ChanInterceptor;
 import org.otacoo.chan.core.settings.ChanSettings;
 import org.otacoo.chan.ui.view.AuthWebView;
@@ -21,7 +24,9 @@ import java.net.ProxySelector;
 import java.net.SocketAddress;
 import java.net.URI;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
@@ -39,8 +44,14 @@ import org.otacoo.chan.core.net.AppCookieJar;
 import org.otacoo.chan.core.site.sites.chan8.Chan8PowInterceptor;
 
 public class NetModule {
-    private static final long FILE_CACHE_DISK_SIZE = 50 * 1024 * 1024;
+    private static final long FILE_CACHE_IMAGES_SIZE = 50 * 1024 * 1024;
+    private static final long FILE_CACHE_ANIMATED_SIZE = 50 * 1024 * 1024;
+    private static final long FILE_CACHE_VIDEO_SIZE = 200 * 1024 * 1024;
+    private static final long FILE_CACHE_OTHER_SIZE = 10 * 1024 * 1024;
     private static final String FILE_CACHE_NAME = "filecache";
+    private static final String THUMBNAIL_CACHE_NAME = "thumbnailcache";
+    private static final long ICON_CACHE_SIZE = 2 * 1024 * 1024;
+    private static final String ICON_CACHE_NAME = "iconcache";
     private static final int TIMEOUT = 30000;
 
     // expose the internal java.net.CookieManager so callers can mirror
@@ -277,7 +288,35 @@ public class NetModule {
     @Singleton
     @SuppressWarnings("unused") // called by Feather DI via reflection
     public FileCache provideFileCache(Context applicationContext, UserAgentProvider userAgentProvider, OkHttpClient okHttpClient) {
-        return new FileCache(new File(getCacheDir(applicationContext), FILE_CACHE_NAME), FILE_CACHE_DISK_SIZE, userAgentProvider.getUserAgent(), okHttpClient);
+        Map<FileCache.Pool, Long> poolSizes = new EnumMap<>(FileCache.Pool.class);
+        poolSizes.put(FileCache.Pool.IMAGES, FILE_CACHE_IMAGES_SIZE);
+        poolSizes.put(FileCache.Pool.ANIMATED, FILE_CACHE_ANIMATED_SIZE);
+        poolSizes.put(FileCache.Pool.VIDEO, FILE_CACHE_VIDEO_SIZE);
+        poolSizes.put(FileCache.Pool.OTHER, FILE_CACHE_OTHER_SIZE);
+        return new FileCache(new File(getCacheDir(applicationContext), FILE_CACHE_NAME), poolSizes, userAgentProvider.getUserAgent(), okHttpClient);
+    }
+
+    @Provides
+    @Singleton
+    @SuppressWarnings("unused") // called by Feather DI via reflection
+    public ThumbnailDiskCache provideThumbnailDiskCache(Context applicationContext) {
+        long maxSize = ChanSettings.thumbnailCacheSize.get() * 1024L * 1024L;
+        return new ThumbnailDiskCache(new File(getCacheDir(applicationContext), THUMBNAIL_CACHE_NAME), maxSize);
+    }
+
+    @Provides
+    @Singleton
+    @SuppressWarnings("unused") // called by Feather DI via reflection
+    public ImagePipeline provideImagePipeline(OkHttpClient okHttpClient, ThumbnailDiskCache thumbnailDiskCache) {
+        return new ImagePipeline(okHttpClient, thumbnailDiskCache);
+    }
+
+    @Provides
+    @Singleton
+    @SuppressWarnings("unused") // called by Feather DI via reflection
+    public IconCache provideIconCache(Context applicationContext, OkHttpClient okHttpClient) {
+        ThumbnailDiskCache diskCache = new ThumbnailDiskCache(new File(getCacheDir(applicationContext), ICON_CACHE_NAME), ICON_CACHE_SIZE);
+        return new IconCache(okHttpClient, diskCache);
     }
 
     private File getCacheDir(Context applicationContext) {
@@ -100,7 +100,7 @@ public class FilterEngine {
     }
 
     public List<Filter> getEnabledFilters() {
-        List<Filter> filters = databaseManager.runTask(databaseFilterManager.getFilters());
+        List<Filter> filters = databaseManager.runRead(databaseFilterManager.getFilters());
         Collections.sort(filters, (a, b) -> Integer.compare(a.order, b.order));
         List<Filter> enabled = new ArrayList<>();
         for (Filter filter : filters) {
@@ -26,7 +26,6 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -37,6 +36,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import org.otacoo.chan.Chan;
+import org.otacoo.chan.core.cache.ImagePipeline;
 import org.otacoo.chan.core.database.DatabaseManager;
 import org.otacoo.chan.core.database.DatabasePinManager;
 import org.otacoo.chan.core.exception.ChanLoaderException;
@@ -51,11 +51,8 @@ import org.otacoo.chan.core.settings.ChanSettings;
 import org.otacoo.chan.core.site.loader.ChanThreadLoader;
 import org.otacoo.chan.ui.helper.PostHelper;
 import org.otacoo.chan.ui.notification.ThreadWatchNotifications;
-import org.otacoo.chan.ui.view.ThumbnailView;
-import org.otacoo.chan.utils.AndroidUtils;
 import org.otacoo.chan.utils.Logger;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -69,11 +66,6 @@ import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import de.greenrobot.event.EventBus;
-import okhttp3.Call;
-import okhttp3.Callback;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
 
 /**
  * Manages all Pin related management.
@@ -157,18 +149,20 @@ public class WatchManager {
     private boolean foregroundUpdateWaiting = false;
 
     private final ThreadWatchNotifications threadWatchNotifications;
+    private final WatchPrefetcher watchPrefetcher;
 
     @SuppressWarnings("this-escape")
     @Inject
     public WatchManager(Context applicationContext,
                         DatabaseManager databaseManager, ChanLoaderFactory chanLoaderFactory,
-                        ThreadWatchNotifications threadWatchNotifications) {
+                        ThreadWatchNotifications threadWatchNotifications, WatchPrefetcher watchPrefetcher) {
         alarmManager = (AlarmManager) applicationContext.getSystemService(Context.ALARM_SERVICE);
         powerManager = (PowerManager) applicationContext.getSystemService(Context.POWER_SERVICE);
 
         this.databaseManager = databaseManager;
         this.chanLoaderFactory = chanLoaderFactory;
         this.threadWatchNotifications = threadWatchNotifications;
+        this.watchPrefetcher = watchPrefetcher;
 
         databasePinManager = databaseManager.getDatabasePinManager();
         pins = databaseManager.runTask(databasePinManager.getPins());
@@ -234,7 +228,8 @@ public class WatchManager {
         pins.add(pin);
         sortListAndApplyOrders();
 
-        databaseManager.runTaskAsync(databasePinManager.createPin(pin));
+        pin.markPersisted();
+        databaseManager.runWriteAsync(databasePinManager.createPin(pin));
 
         // apply orders.
         updatePinsInDatabase();
@@ -251,7 +246,7 @@ public class WatchManager {
 
         destroyPinWatcher(pin);
 
-        databaseManager.runTaskAsync(databasePinManager.deletePin(pin));
+        databaseManager.runWriteAsync(databasePinManager.deletePin(pin));
         // Update the new orders
         sortListAndApplyOrders();
         updatePinsInDatabase();
@@ -270,7 +265,10 @@ public class WatchManager {
             pin.quoteLastCount = pin.quoteNewCount;
         }
 
-        databaseManager.runTaskAsync(databasePinManager.updatePin(pin));
+        if (pin.isDirty()) {
+            pin.markPersisted();
+            databaseManager.runWriteAsync(databasePinManager.updatePin(pin));
+        }
 
         updateState();
 
@@ -506,8 +504,23 @@ public class WatchManager {
         return pinWatcher != null;
     }
 
+    /**
+     * Write the pins that changed since they were last written, in one transaction.
+     */
     private void updatePinsInDatabase() {
-        databaseManager.runTaskAsync(databasePinManager.updatePins(pins));
+        List<Pin> changed = new ArrayList<>();
+        for (int i = 0; i < pins.size(); i++) {
+            Pin pin = pins.get(i);
+            if (pin.isDirty()) {
+                pin.markPersisted();
+                changed.add(pin);
+            }
+        }
+
+        Logger.d(TAG, "updatePinsInDatabase: writing " + changed.size() + " of " + pins.size() + " pins");
+        if (!changed.isEmpty()) {
+            databaseManager.runWriteAsync(databasePinManager.updatePins(changed));
+        }
     }
 
     private Boolean isWatchingSettingEnabled() {
@@ -738,6 +751,8 @@ public class WatchManager {
             if (waitingForPinWatchersForBackgroundUpdate.isEmpty()) {
                 Logger.i(TAG, "All watchers updated, removing wakelock");
                 waitingForPinWatchersForBackgroundUpdate = null;
+                // Only the pins with new posts are written.
+                updatePinsInDatabase();
                 manageLock(false);
             }
         }
@@ -815,7 +830,10 @@ public class WatchManager {
         private boolean requireNotificationUpdate = true;
 
         private Bitmap thumbnailBitmap = null;
-        private Call currentThumbnailCall;
+        private ImagePipeline.ImageRequest currentThumbnailRequest;
+
+        // Posts whose media was handed to the WatchPrefetcher.
+        private int prefetchedPostCount = 0;
 
         @SuppressWarnings("this-escape")
         public PinWatcher(Pin pin) {
@@ -887,10 +905,11 @@ public class WatchManager {
                 chanLoaderFactory.release(chanLoader, this);
                 chanLoader = null;
             }
-            if (currentThumbnailCall != null) {
-                currentThumbnailCall.cancel();
-                currentThumbnailCall = null;
+            if (currentThumbnailRequest != null) {
+                currentThumbnailRequest.cancel();
+                currentThumbnailRequest = null;
             }
+            watchPrefetcher.forget(pin);
         }
 
         private void onViewed() {
@@ -983,9 +1002,9 @@ public class WatchManager {
                     pin.thumbnailUrl = freshUrl;
                     // Discard stale thumbnail
                     thumbnailBitmap = null;
-                    if (currentThumbnailCall != null) {
-                        currentThumbnailCall.cancel();
-                        currentThumbnailCall = null;
+                    if (currentThumbnailRequest != null) {
+                        currentThumbnailRequest.cancel();
+                        currentThumbnailRequest = null;
                     }
                 }
             }
@@ -994,6 +1013,15 @@ public class WatchManager {
             posts.clear();
             posts.addAll(thread.posts);
 
+            // Posts that came in while prefetching wasn't allowed are prefetched once it is.
+            if (prefetchedPostCount > posts.size()) {
+                prefetchedPostCount = 0;
+            }
+            if (prefetchedPostCount < posts.size() && watchPrefetcher.canPrefetch()) {
+                watchPrefetcher.prefetch(pin, posts.subList(prefetchedPostCount, posts.size()));
+                prefetchedPostCount = posts.size();
+            }
+
             // Populate quotes list
             quotes.clear();
 
@@ -1083,36 +1111,26 @@ public class WatchManager {
         }
 
         private void loadThumbnailBitmapIfNeeded() {
-            if (TextUtils.isEmpty(pin.thumbnailUrl) || thumbnailBitmap != null || currentThumbnailCall != null) {
+            if (TextUtils.isEmpty(pin.thumbnailUrl) || thumbnailBitmap != null || currentThumbnailRequest != null) {
                 return;
             }
 
-            OkHttpClient client = injector().instance(OkHttpClient.class);
-            Request request = new Request.Builder().url(pin.thumbnailUrl).build();
-            currentThumbnailCall = client.newCall(request);
-            currentThumbnailCall.enqueue(new Callback() {
-                @Override
-                public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                    currentThumbnailCall = null;
-                }
+            // Coalesces with the drawer and catalog thumbnails of the same url.
+            currentThumbnailRequest = injector().instance(ImagePipeline.class).request(pin.thumbnailUrl, 0, 0, false,
+                    new ImagePipeline.Listener() {
+                        @Override
+                        public void onImage(Bitmap bitmap) {
+                            currentThumbnailRequest = null;
+                            thumbnailBitmap = bitmap;
+                            requireNotificationUpdate = true;
+                            pinWatcherUpdated(PinWatcher.this);
+                        }
 
-                @Override
-                public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                    try (response; response) {
-                        if (response.isSuccessful()) {
-                            byte[] data = response.body().bytes();
-                            thumbnailBitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-                            if (thumbnailBitmap != null) {
-                                ThumbnailView.putBitmap(pin.thumbnailUrl, thumbnailBitmap);
-                                requireNotificationUpdate = true;
-                                AndroidUtils.runOnUiThread(() -> pinWatcherUpdated(PinWatcher.this));
-                            }
+                        @Override
+                        public void onFailure(int code) {
+                            currentThumbnailRequest = null;
                         }
-                    } finally {
-                        currentThumbnailCall = null;
-                    }
-                }
-            });
+                    });
         }
     }
 }
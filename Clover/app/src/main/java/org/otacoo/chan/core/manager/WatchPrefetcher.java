@@ -0,0 +1,134 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.otacoo.chan.core.manager;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+
+import androidx.annotation.MainThread;
+
+import org.otacoo.chan.core.cache.DownloadPriority;
+import org.otacoo.chan.core.cache.FileCache;
+import org.otacoo.chan.core.cache.FileCacheListener;
+import org.otacoo.chan.core.cache.ImagePipeline;
+import org.otacoo.chan.core.model.Post;
+import org.otacoo.chan.core.model.PostImage;
+import org.otacoo.chan.core.model.orm.Pin;
+import org.otacoo.chan.core.settings.ChanSettings;
+import org.otacoo.chan.ui.cell.PostCell;
+import org.otacoo.chan.ui.view.PostImageThumbnailView;
+import org.otacoo.chan.utils.AndroidUtils;
+import org.otacoo.chan.utils.Logger;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Downloads the media of new posts in watched threads while it costs nothing, so the threads can
+ * be read offline later.
+ * <p>
+ * Only runs on unmetered networks and, unless disabled, while charging. Thumbnails are stored in
+ * the thumbnail disk cache at the size the post cells show them, without filling the memory
+ * cache. Files are downloaded into the file cache behind everything else, up to a budget per
+ * thread.
+ */
+@Singleton
+@MainThread
+public class WatchPrefetcher {
+    private static final String TAG = "WatchPrefetcher";
+
+    private static final FileCacheListener IGNORE = new FileCacheListener() {
+    };
+
+    private final BatteryManager batteryManager;
+    private final FileCache fileCache;
+    private final ImagePipeline imagePipeline;
+
+    // Bytes of files requested per pin id, for this session.
+    private final Map<Integer, Long> usedBytes = new HashMap<>();
+
+    @Inject
+    public WatchPrefetcher(Context applicationContext, FileCache fileCache, ImagePipeline imagePipeline) {
+        batteryManager = (BatteryManager) applicationContext.getSystemService(Context.BATTERY_SERVICE);
+        this.fileCache = fileCache;
+        this.imagePipeline = imagePipeline;
+    }
+
+    public boolean canPrefetch() {
+        if (ChanSettings.watchPrefetch.get() == ChanSettings.WatchPrefetchMode.NONE) {
+            return false;
+        }
+
+        ConnectivityManager connectivityManager = AndroidUtils.getConnectivityManager();
+        if (connectivityManager == null) {
+            return false;
+        }
+        if (connectivityManager.getActiveNetwork() == null || connectivityManager.isActiveNetworkMetered()) {
+            return false;
+        }
+
+        return !ChanSettings.watchPrefetchOnlyCharging.get() || (batteryManager != null && batteryManager.isCharging());
+    }
+
+    /**
+     * Download the media of the new posts of a watched thread. Call {@link #canPrefetch()} first.
+     */
+    public void prefetch(Pin pin, List<Post> newPosts) {
+        boolean files = ChanSettings.watchPrefetch.get() == ChanSettings.WatchPrefetchMode.ALL;
+        long budget = ChanSettings.watchPrefetchBudget.get() * 1024L * 1024L;
+        long used = usedBytes.containsKey(pin.id) ? usedBytes.get(pin.id) : 0L;
+        int thumbnailSize = PostCell.getThumbnailSize();
+
+        int thumbnails = 0;
+        int downloads = 0;
+        for (Post post : newPosts) {
+            for (PostImage image : post.images) {
+                String url = PostImageThumbnailView.getUrl(image);
+                if (url != null) {
+                    imagePipeline.preload(url, thumbnailSize, thumbnailSize);
+                    thumbnails++;
+                }
+
+                // Files of unknown size could be of any size, leave them out of the budget.
+                if (files && image.size > 0 && used + image.size <= budget) {
+                    fileCache.downloadFile(image, DownloadPriority.BACKGROUND, IGNORE);
+                    used += image.size;
+                    downloads++;
+                }
+            }
+        }
+        usedBytes.put(pin.id, used);
+
+        if (thumbnails > 0 || downloads > 0) {
+            Logger.d(TAG, "prefetching " + thumbnails + " thumbnails and " + downloads + " files for " + pin.loadable
+                    + ", " + (used / 1024) + "KB of files so far");
+        }
+    }
+
+    /**
+     * Forget the files downloaded for a pin, for when it is no longer watched.
+     */
+    public void forget(Pin pin) {
+        usedBytes.remove(pin.id);
+    }
+}
@@ -33,4 +33,10 @@ public class History {
 
     @DatabaseField
     public long date;
+
+    /**
+     * Start of the comment of the OP when the thread was visited, for searching.
+     */
+    @DatabaseField
+    public String excerpt = "";
 }
@@ -20,6 +20,8 @@ package org.otacoo.chan.core.model.orm;
 import com.j256.ormlite.field.DatabaseField;
 import com.j256.ormlite.table.DatabaseTable;
 
+import java.util.Objects;
+
 @DatabaseTable(tableName = "pin")
 public class Pin {
     @DatabaseField(generatedId = true)
@@ -55,9 +57,35 @@ public class Pin {
     @DatabaseField
     public boolean archived = false;
 
+    // The fields as they were last read from or written to the database, null if never.
+    private Pin persisted;
+
     public Pin() {
     }
 
+    /**
+     * @return if any of the database fields changed since {@link #markPersisted()}.
+     */
+    public boolean isDirty() {
+        return persisted == null
+                || watching != persisted.watching
+                || watchLastCount != persisted.watchLastCount
+                || watchNewCount != persisted.watchNewCount
+                || quoteLastCount != persisted.quoteLastCount
+                || quoteNewCount != persisted.quoteNewCount
+                || isError != persisted.isError
+                || !Objects.equals(thumbnailUrl, persisted.thumbnailUrl)
+                || order != persisted.order
+                || archived != persisted.archived;
+    }
+
+    /**
+     * Call when the fields are read from or written to the database, to compare against in {@link #isDirty()}.
+     */
+    public void markPersisted() {
+        persisted = copy();
+    }
+
     public int getNewPostCount() {
         if (watchLastCount < 0 || watchNewCount < 0) {
             return 0;
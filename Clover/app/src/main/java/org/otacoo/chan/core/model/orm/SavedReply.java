@@ -46,7 +46,7 @@ public class SavedReply {
     }
 
     @DatabaseField(generatedId = true)
-    private int id;
+    public int id;
 
     @DatabaseField(columnName = "site")
     public int siteId;
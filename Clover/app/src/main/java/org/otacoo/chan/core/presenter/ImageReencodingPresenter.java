@@ -55,6 +55,7 @@ public class ImageReencodingPresenter {
     private Loadable loadable;
     private ImageOptions imageOptions;
     private BackgroundUtils.Cancelable cancelable;
+    private BackgroundUtils.Cancelable previewDecode;
 
     @SuppressWarnings("this-escape")
     public ImageReencodingPresenter(ImageReencodingPresenterCallback callback, Loadable loadable) {
@@ -66,6 +67,10 @@ public class ImageReencodingPresenter {
     }
 
     public void onDestroy() {
+        if (previewDecode != null) {
+            previewDecode.cancel();
+            previewDecode = null;
+        }
         synchronized (this) {
             if (cancelable != null) {
                 cancelable.cancel();
@@ -82,11 +87,15 @@ public class ImageReencodingPresenter {
             return;
         }
 
-        ImageDecoder.decodeFileOnBackgroundThread(
+        if (previewDecode != null) {
+            previewDecode.cancel();
+        }
+        previewDecode = ImageDecoder.decodeFileOnBackgroundThread(
                 reply.file,
                 dp(DECODED_IMAGE_WIDTH),
                 dp(DECODED_IMAGE_HEGIHT),
                 (file, bitmap) -> {
+                    previewDecode = null;
                     if (bitmap == null) {
                         callback.showCouldNotDecodeBitmapError();
                         return;
@@ -24,6 +24,7 @@ import android.net.ConnectivityManager;
 
 import androidx.viewpager.widget.ViewPager;
 
+import org.otacoo.chan.core.cache.DownloadPriority;
 import org.otacoo.chan.core.cache.FileCache;
 import org.otacoo.chan.core.cache.FileCacheDownloader;
 import org.otacoo.chan.core.cache.FileCacheListener;
@@ -36,8 +37,10 @@ import org.otacoo.chan.ui.view.MultiImageView;
 import org.otacoo.chan.utils.AndroidUtils;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.inject.Inject;
@@ -45,6 +48,14 @@ import javax.inject.Inject;
 public class ImageViewerPresenter implements MultiImageView.Callback, ViewPager.OnPageChangeListener {
     private static final String TAG = "ImageViewerPresenter";
 
+    // Assumed size of images that don't report one.
+    private static final long PRELOAD_UNKNOWN_SIZE = 512 * 1024;
+    // The preload window holds what can be downloaded in this time at the measured speed.
+    private static final long PRELOAD_WINDOW_SECONDS = 10;
+    private static final long PRELOAD_MIN_BYTES = 4 * 1024 * 1024;
+    private static final long PRELOAD_MAX_BYTES = 64 * 1024 * 1024;
+    private static final long PRELOAD_METERED_BYTES = 2 * 1024 * 1024;
+
     private final Callback callback;
 
     @Inject
@@ -60,7 +71,10 @@ public class ImageViewerPresenter implements MultiImageView.Callback, ViewPager.
     private int selectedPosition;
     private Loadable loadable;
 
-    private Set<FileCacheDownloader> preloadingImages = new HashSet<>();
+    // 1 when swiping to the next images, -1 when swiping back.
+    private int swipeDirection = 1;
+
+    private Map<PostImage, Preload> preloadingImages = new HashMap<>();
 
     // Disables swiping until the view pager is visible
     private boolean viewPagerVisible = false;
@@ -148,6 +162,9 @@ public class ImageViewerPresenter implements MultiImageView.Callback, ViewPager.
             return;
         }
 
+        if (position != selectedPosition) {
+            swipeDirection = position > selectedPosition ? 1 : -1;
+        }
         selectedPosition = position;
 
         onPageSwipedTo(position);
@@ -236,51 +253,132 @@ public class ImageViewerPresenter implements MultiImageView.Callback, ViewPager.
             }
         }
 
-        preloadNext();
-    }
+        updatePreloadWindow();
+    }
+
+    // This won't actually change any modes, but it will preload the images around the current
+    // one so that they're available immediately when the user swipes.
+    // The window reaches further in the swipe direction, and is limited to the bytes that can be
+    // downloaded in a few seconds, counting only the bytes that are left to download. Preloads
+    // that fall out of the window are released, and cancelled when nobody else waits on them.
+    // They keep their partial file to resume from if they come back in.
+    private void updatePreloadWindow() {
+        boolean metered = isMeteredNetwork();
+        int ahead = ChanSettings.imagePreloadAhead.get();
+        int behind = metered ? 0 : ChanSettings.imagePreloadBehind.get();
+        if (metered) {
+            ahead = Math.min(ahead, 1);
+        }
+
+        long budget = getPreloadBudget(metered);
+        long inFlight = 0;
 
-    // This won't actually change any modes, but it will preload the image so that it's
-    // available immediately when the user swipes right.
-    private void preloadNext() {
-        if (selectedPosition + 1 < images.size()) {
-            PostImage next = images.get(selectedPosition + 1);
+        Set<PostImage> window = new HashSet<>();
+        // The current image is loaded by its view, a preload of it is never cancelled here.
+        window.add(images.get(selectedPosition));
 
-            boolean load = false;
-            if (next.type == PostImage.Type.STATIC || next.type == PostImage.Type.GIF || next.type == PostImage.Type.ANIMATED) {
-                load = imageAutoLoad(next);
-            } else if (next.type == PostImage.Type.MOVIE) {
-                load = videoAutoLoad(next);
+        // Nearest first, alternating between the sides.
+        List<Integer> positions = new ArrayList<>();
+        for (int distance = 1; distance <= Math.max(ahead, behind); distance++) {
+            if (distance <= ahead) {
+                positions.add(selectedPosition + swipeDirection * distance);
+            }
+            if (distance <= behind) {
+                positions.add(selectedPosition - swipeDirection * distance);
             }
+        }
 
-            if (load) {
-                final String fileUrl = next.imageUrl.toString();
-
-                // If downloading, remove from preloadingImages if it finished.
-                // Array to allow access from within the callback (the callback should really
-                // pass the filecachedownloader itself).
-                final FileCacheDownloader[] preloadDownload =
-                        new FileCacheDownloader[1];
-                preloadDownload[0] = fileCache.downloadFile(fileUrl,
-                        new FileCacheListener() {
-                            @Override
-                            public void onEnd() {
-                                if (preloadDownload[0] != null) {
-                                    preloadingImages.remove(preloadDownload[0]);
-                                }
-                            }
-                        }
-                );
-
-                if (preloadDownload[0] != null) {
-                    preloadingImages.add(preloadDownload[0]);
-                }
+        for (int position : positions) {
+            if (position < 0 || position >= images.size()) {
+                continue;
+            }
+
+            PostImage postImage = images.get(position);
+            if (!shouldPreload(postImage)) {
+                continue;
+            }
+
+            long size = getRemainingBytes(postImage);
+            // Always allow the nearest image, further ones only while under the budget.
+            if (inFlight > 0 && inFlight + size > budget) {
+                break;
             }
+            inFlight += size;
+
+            window.add(postImage);
+            preload(postImage);
+        }
+
+        List<PostImage> outside = new ArrayList<>();
+        for (PostImage postImage : preloadingImages.keySet()) {
+            if (!window.contains(postImage)) {
+                outside.add(postImage);
+            }
+        }
+        for (PostImage postImage : outside) {
+            preloadingImages.remove(postImage).release();
         }
     }
 
+    private long getRemainingBytes(PostImage postImage) {
+        Preload preload = preloadingImages.get(postImage);
+        if (preload != null) {
+            long remaining = preload.downloader.getRemainingBytes();
+            if (remaining >= 0) {
+                return remaining;
+            }
+        }
+        return postImage.size > 0 ? postImage.size : PRELOAD_UNKNOWN_SIZE;
+    }
+
+    private boolean shouldPreload(PostImage postImage) {
+        if (fileCache.exists(postImage)) {
+            return false;
+        }
+
+        if (postImage.type == PostImage.Type.STATIC || postImage.type == PostImage.Type.GIF || postImage.type == PostImage.Type.ANIMATED) {
+            return imageAutoLoad(postImage);
+        } else if (postImage.type == PostImage.Type.MOVIE) {
+            return videoAutoLoad(postImage);
+        }
+        return false;
+    }
+
+    private void preload(PostImage postImage) {
+        if (preloadingImages.containsKey(postImage)) {
+            return;
+        }
+
+        // If downloading, remove from preloadingImages if it finished.
+        Preload preload = new Preload();
+        preload.downloader = fileCache.downloadFile(postImage, DownloadPriority.PRELOAD, preload);
+
+        if (preload.downloader != null) {
+            preload.postImage = postImage;
+            preloadingImages.put(postImage, preload);
+        }
+    }
+
+    private long getPreloadBudget(boolean metered) {
+        if (metered) {
+            return PRELOAD_METERED_BYTES;
+        }
+
+        long throughput = fileCache.getThroughput();
+        if (throughput <= 0) {
+            return PRELOAD_MIN_BYTES;
+        }
+        return Math.max(PRELOAD_MIN_BYTES, Math.min(PRELOAD_MAX_BYTES, throughput * PRELOAD_WINDOW_SECONDS));
+    }
+
+    private boolean isMeteredNetwork() {
+        ConnectivityManager connectivityManager = AndroidUtils.getConnectivityManager();
+        return connectivityManager != null && connectivityManager.isActiveNetworkMetered();
+    }
+
     private void cancelPreloadingImages() {
-        for (FileCacheDownloader preloadingImage : preloadingImages) {
-            preloadingImage.cancel();
+        for (Preload preload : new ArrayList<>(preloadingImages.values())) {
+            preload.release();
         }
         preloadingImages.clear();
     }
@@ -410,7 +508,7 @@ public class ImageViewerPresenter implements MultiImageView.Callback, ViewPager.
         if (shouldLoadForNetworkType(ChanSettings.loadFullSizeThumbnails.get())) {
             return true;
         }
-        return fileCache.exists(postImage.imageUrl.toString()) || shouldLoadForNetworkType(ChanSettings.imageAutoLoadNetwork.get());
+        return fileCache.exists(postImage) || shouldLoadForNetworkType(ChanSettings.imageAutoLoadNetwork.get());
     }
 
     private boolean videoAutoLoad(PostImage postImage) {
@@ -505,4 +603,24 @@ public class ImageViewerPresenter implements MultiImageView.Callback, ViewPager.
 
         void showSystemUI(boolean show);
     }
+
+    /**
+     * A download the viewer joined or started. Others may wait on the same download, like the
+     * thread archiver or the watch prefetcher, so it is released and not cancelled directly.
+     */
+    private class Preload extends FileCacheListener {
+        private PostImage postImage;
+        private FileCacheDownloader downloader;
+
+        @Override
+        public void onEnd() {
+            if (postImage != null) {
+                preloadingImages.remove(postImage, this);
+            }
+        }
+
+        private void release() {
+            fileCache.release(downloader, this);
+        }
+    }
 }
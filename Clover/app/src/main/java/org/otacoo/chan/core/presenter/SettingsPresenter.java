@@ -41,13 +41,10 @@ public class SettingsPresenter {
     }
 
     public void show() {
-        long siteCount = databaseManager.runTask(
-                databaseManager.getDatabaseSiteManager().getCount());
-        long filterCount = databaseManager.runTask(
-                databaseManager.getDatabaseFilterManager().getCount());
-
-        callback.setSiteCount((int) siteCount);
-        callback.setFiltersCount((int) filterCount);
+        databaseManager.runReadAsync(databaseManager.getDatabaseSiteManager().getCount(),
+                siteCount -> callback.setSiteCount(siteCount.intValue()));
+        databaseManager.runReadAsync(databaseManager.getDatabaseFilterManager().getCount(),
+                filterCount -> callback.setFiltersCount(filterCount.intValue()));
         callback.setWatchEnabled(ChanSettings.watchEnabled.get());
     }
 
@@ -94,6 +94,9 @@ public class ThreadPresenter implements
     private static final int POST_OPTION_UNSAVE = 16;
     private static final int POST_OPTION_MARK_ID = 17;
 
+    // Characters of the OP comment kept in the history, for searching.
+    private static final int HISTORY_EXCERPT_LENGTH = 300;
+
     private ThreadPresenterCallback threadPresenterCallback;
     private WatchManager watchManager;
     private DatabaseManager databaseManager;
@@ -1154,8 +1157,19 @@ public class ThreadPresenter implements
             ChanThread thread = chanLoader.getThread();
             PostImage image = thread != null && thread.op != null ? thread.op.image() : null;
             history.thumbnailUrl = image == null ? "" : image.getThumbnailUrl().toString();
-            databaseManager.runTaskAsync(databaseManager.getDatabaseHistoryManager().addHistory(history));
+            if (thread != null && thread.op != null) {
+                history.excerpt = getHistoryExcerpt(thread.op);
+            }
+            databaseManager.runWriteAsync(databaseManager.getDatabaseHistoryManager().addHistory(history));
+        }
+    }
+
+    private static String getHistoryExcerpt(Post op) {
+        String excerpt = op.comment.toString().replaceAll("\\s+", " ").trim();
+        if (excerpt.length() > HISTORY_EXCERPT_LENGTH) {
+            excerpt = excerpt.substring(0, HISTORY_EXCERPT_LENGTH);
         }
+        return TextUtils.isEmpty(op.subject) ? excerpt : op.subject + " " + excerpt;
     }
 
     public void setIgnoreLastViewedUpdates(boolean ignore) {
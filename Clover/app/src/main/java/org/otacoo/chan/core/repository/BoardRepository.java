@@ -70,11 +70,12 @@ public class BoardRepository implements SimpleObservable.SimpleObserver<Void> {
     }
 
     public void updateAvailableBoardsForSite(Site site, List<Board> availableBoards) {
-        boolean changed = databaseManager.runTask(databaseBoardManager.createAll(site, availableBoards));
-        Logger.d(TAG, "updateAvailableBoardsForSite changed = " + changed);
-        if (changed) {
-            updateObservablesAsync();
-        }
+        databaseManager.runTaskAsync(databaseBoardManager.createAll(site, availableBoards), changed -> {
+            Logger.d(TAG, "updateAvailableBoardsForSite changed = " + changed);
+            if (changed) {
+                updateObservablesAsync();
+            }
+        });
     }
 
     public Board getFromCode(Site site, String code) {
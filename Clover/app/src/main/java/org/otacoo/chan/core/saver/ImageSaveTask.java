@@ -25,6 +25,7 @@ import android.content.Intent;
 import android.graphics.Bitmap;
 import android.net.Uri;
 
+import org.otacoo.chan.core.cache.DownloadPriority;
 import org.otacoo.chan.core.cache.FileCache;
 import org.otacoo.chan.core.cache.FileCacheDownloader;
 import org.otacoo.chan.core.cache.FileCacheListener;
@@ -124,7 +125,7 @@ public class ImageSaveTask extends FileCacheListener implements Runnable {
                 postFinished(success);
             } else {
                 FileCacheDownloader fileCacheDownloader =
-                        fileCache.downloadFile(postImage.imageUrl.toString(), this);
+                        fileCache.downloadFile(postImage, DownloadPriority.BACKGROUND, this);
 
                 // If the fileCacheDownloader is null then the destination already existed and onSuccess() has been called.
                 // Wait otherwise for the download to finish to avoid that the next task is immediately executed.
@@ -164,12 +165,7 @@ public class ImageSaveTask extends FileCacheListener implements Runnable {
         success = true;
         destination.runMediaScanIfNeeded();
         if (makeBitmap) {
-            try {
-                bitmap = ImageDecoder.decodeFile(destination.inputStream(), dp(512), dp(256));
-            } catch (IOException e) {
-                Logger.e(TAG, "onDestination decodeFile", e);
-                bitmap = null;
-            }
+            bitmap = ImageDecoder.decodeStream(destination::inputStream, dp(512), dp(256));
         }
     }
 
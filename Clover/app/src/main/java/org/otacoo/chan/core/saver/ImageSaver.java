@@ -104,7 +104,7 @@ public class ImageSaver implements ImageSaveTask.ImageSaveTaskCallback {
     }
 
     public void share(PostImage postImage) {
-        fileCache.downloadFile(postImage.imageUrl.toString(), new FileCacheListener() {
+        fileCache.downloadFile(postImage, new FileCacheListener() {
             @Override
             public void onSuccess(File file) {
                 // Perform file operations on a background thread to prevent UI lag
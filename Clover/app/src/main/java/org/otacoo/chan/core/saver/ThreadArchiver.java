@@ -0,0 +1,298 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.otacoo.chan.core.saver;
+
+import static org.otacoo.chan.core.storage.Storage.filterName;
+import static org.otacoo.chan.utils.AndroidUtils.getAppContext;
+
+import android.util.JsonWriter;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.WorkerThread;
+
+import com.google.android.material.snackbar.Snackbar;
+
+import org.otacoo.chan.R;
+import org.otacoo.chan.core.cache.DownloadPriority;
+import org.otacoo.chan.core.cache.FileCache;
+import org.otacoo.chan.core.cache.FileCacheListener;
+import org.otacoo.chan.core.model.ChanThread;
+import org.otacoo.chan.core.model.Post;
+import org.otacoo.chan.core.model.PostImage;
+import org.otacoo.chan.core.model.orm.Loadable;
+import org.otacoo.chan.core.storage.Storage;
+import org.otacoo.chan.core.storage.StorageFile;
+import org.otacoo.chan.utils.AndroidUtils;
+import org.otacoo.chan.utils.IOUtils;
+import org.otacoo.chan.utils.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Saves a thread as one zip file in the save location, with the posts in {@code thread.json} and
+ * every file of the thread in {@code media/}, to keep it after it is gone from the site.
+ * <p>
+ * The zip is written as a stream. Files come from the {@link FileCache}, downloading the missing
+ * ones a few at a time, and each file is written to the zip as soon as it is available. Only the
+ * files in flight are waited on, so threads with many files don't take more memory.
+ */
+@Singleton
+public class ThreadArchiver {
+    private static final String TAG = "ThreadArchiver";
+    private static final int MAX_NAME_LENGTH = 50;
+    // Downloads running at the same time for one archive.
+    private static final int MAX_PARALLEL_DOWNLOADS = 3;
+    private static final String MEDIA_FOLDER = "media/";
+
+    private final Storage storage;
+    private final FileCache fileCache;
+
+    // One archive at a time, they compete for the same downloads otherwise.
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @Inject
+    public ThreadArchiver(Storage storage, FileCache fileCache) {
+        this.storage = storage;
+        this.fileCache = fileCache;
+    }
+
+    @MainThread
+    public void archive(ChanThread thread) {
+        // The posts list is replaced on every reload, keep the one of now.
+        Loadable loadable = thread.loadable;
+        List<Post> posts = new ArrayList<>(thread.posts);
+        boolean closed = thread.closed;
+        boolean archived = thread.archived;
+
+        storage.prepareForSave(null, () -> {
+            AndroidUtils.showThemedSnackbar(R.string.thread_archive_started, Snackbar.LENGTH_SHORT);
+            executor.execute(() -> writeArchive(loadable, posts, closed, archived));
+        });
+    }
+
+    @WorkerThread
+    private void writeArchive(Loadable loadable, List<Post> posts, boolean closed, boolean archived) {
+        String name = loadable.boardCode + "_" + loadable.no;
+        if (loadable.title != null && !loadable.title.isEmpty()) {
+            String title = filterName(loadable.title);
+            name += "_" + title.substring(0, Math.min(title.length(), MAX_NAME_LENGTH));
+        }
+
+        StorageFile file;
+        try {
+            file = storage.obtainStorageFileForName(null, name + ".zip");
+        } catch (Exception e) {
+            Logger.e(TAG, "Error obtaining storage file", e);
+            file = null;
+        }
+        if (file == null) {
+            AndroidUtils.runOnUiThread(() ->
+                    AndroidUtils.showThemedSnackbar(R.string.thread_archive_failed, Snackbar.LENGTH_LONG));
+            return;
+        }
+
+        // Every file gets a unique name in the zip, known before the posts are written.
+        List<PostImage> images = new ArrayList<>();
+        Map<PostImage, String> entryNames = new IdentityHashMap<>();
+        Set<String> usedNames = new HashSet<>();
+        for (Post post : posts) {
+            for (PostImage image : post.images) {
+                if (image.imageUrl == null || entryNames.containsKey(image)) continue;
+                String base = filterName(image.filename);
+                String entryName = MEDIA_FOLDER + base + "." + image.extension;
+                for (int i = 1; !usedNames.add(entryName); i++) {
+                    entryName = MEDIA_FOLDER + base + "_" + i + "." + image.extension;
+                }
+                entryNames.put(image, entryName);
+                images.add(image);
+            }
+        }
+
+        int missing;
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(file.outputStream()))) {
+            zip.putNextEntry(new ZipEntry("thread.json"));
+            writePosts(zip, loadable, posts, closed, archived, entryNames);
+            zip.closeEntry();
+
+            // Images and videos are compressed already.
+            zip.setLevel(Deflater.NO_COMPRESSION);
+            missing = writeMedia(zip, images, entryNames);
+        } catch (Exception e) {
+            Logger.e(TAG, "Error writing thread archive", e);
+            AndroidUtils.runOnUiThread(() ->
+                    AndroidUtils.showThemedSnackbar(R.string.thread_archive_failed, Snackbar.LENGTH_LONG));
+            return;
+        }
+
+        Logger.i(TAG, "Archived " + posts.size() + " posts and " + (images.size() - missing) + " of "
+                + images.size() + " files to " + file.name());
+
+        String text = missing == 0 ?
+                getAppContext().getString(R.string.thread_archive_saved, file.name()) :
+                getAppContext().getString(R.string.thread_archive_saved_missing, file.name(), missing);
+        AndroidUtils.runOnUiThread(() -> AndroidUtils.showThemedSnackbar(text, Snackbar.LENGTH_LONG));
+    }
+
+    private void writePosts(OutputStream out, Loadable loadable, List<Post> posts, boolean closed,
+                            boolean archived, Map<PostImage, String> entryNames) throws IOException {
+        // Not closed, that would close the zip.
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.beginObject();
+        writer.name("site").value(loadable.site.name());
+        writer.name("board").value(loadable.boardCode);
+        writer.name("no").value(loadable.no);
+        writer.name("title").value(loadable.title);
+        writer.name("url").value(loadable.site.resolvable().desktopUrl(loadable, null));
+        writer.name("closed").value(closed);
+        writer.name("archived").value(archived);
+
+        writer.name("posts").beginArray();
+        for (Post post : posts) {
+            writer.beginObject();
+            writer.name("no").value(post.no);
+            writer.name("op").value(post.isOP);
+            writer.name("time").value(post.time);
+            writer.name("name").value(post.name);
+            writer.name("tripcode").value(post.tripcode);
+            writer.name("id").value(post.id);
+            writer.name("capcode").value(post.capcode);
+            writer.name("subject").value(post.subject);
+            writer.name("comment").value(post.comment.toString());
+
+            writer.name("files").beginArray();
+            for (PostImage image : post.images) {
+                String entryName = entryNames.get(image);
+                if (entryName == null) continue;
+                writer.beginObject();
+                writer.name("path").value(entryName);
+                writer.name("originalName").value(image.originalName + "." + image.extension);
+                writer.name("url").value(image.imageUrl.toString());
+                writer.name("width").value(image.imageWidth);
+                writer.name("height").value(image.imageHeight);
+                writer.name("size").value(image.size);
+                writer.name("md5").value(image.md5);
+                writer.name("spoiler").value(image.spoiler);
+                writer.endObject();
+            }
+            writer.endArray();
+
+            writer.endObject();
+        }
+        writer.endArray();
+
+        writer.endObject();
+        writer.flush();
+    }
+
+    /**
+     * Download the files and write each to the zip in the order they finish.
+     *
+     * @return the number of files that could not be downloaded.
+     */
+    private int writeMedia(ZipOutputStream zip, List<PostImage> images, Map<PostImage, String> entryNames)
+            throws IOException, InterruptedException {
+        BlockingQueue<Download> done = new LinkedBlockingQueue<>();
+        int next = 0;
+        int inFlight = 0;
+        int missing = 0;
+        while (next < images.size() || inFlight > 0) {
+            while (inFlight < MAX_PARALLEL_DOWNLOADS && next < images.size()) {
+                download(images.get(next++), done);
+                inFlight++;
+            }
+
+            Download download = done.take();
+            inFlight--;
+            if (download.file == null || !copyToZip(zip, entryNames.get(download.image), download.file)) {
+                missing++;
+            }
+        }
+        return missing;
+    }
+
+    private void download(PostImage image, BlockingQueue<Download> done) {
+        AndroidUtils.runOnUiThread(() -> fileCache.downloadFile(image, DownloadPriority.BACKGROUND, new FileCacheListener() {
+            private File file;
+
+            @Override
+            public void onSuccess(File file) {
+                this.file = file;
+            }
+
+            @Override
+            public void onEnd() {
+                done.add(new Download(image, file));
+            }
+        }));
+    }
+
+    private boolean copyToZip(ZipOutputStream zip, String entryName, File file) throws IOException {
+        InputStream is;
+        try {
+            is = new FileInputStream(file);
+        } catch (IOException e) {
+            // Removed from the cache since it was downloaded.
+            Logger.w(TAG, "Cached file gone before it was archived: " + entryName);
+            return false;
+        }
+
+        try {
+            ZipEntry entry = new ZipEntry(entryName);
+            entry.setTime(file.lastModified());
+            zip.putNextEntry(entry);
+            IOUtils.copy(is, zip);
+            zip.closeEntry();
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+        return true;
+    }
+
+    private static class Download {
+        private final PostImage image;
+        private final File file;
+
+        private Download(PostImage image, File file) {
+            this.image = image;
+            this.file = file;
+        }
+    }
+}
@@ -187,6 +187,26 @@ public class ChanSettings {
         }
     }
 
+    public enum WatchPrefetchMode implements OptionSettingItem {
+        // Don't download media of watched threads ahead of time
+        NONE("none"),
+        // Only the thumbnails of new posts
+        THUMBNAILS("thumbnails"),
+        // The thumbnails and the files of new posts, up to the budget of the pin
+        ALL("all");
+
+        final String name;
+
+        WatchPrefetchMode(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getKey() {
+            return name;
+        }
+    }
+
     private static Proxy proxy;
 
     private static final StringSetting theme;
@@ -205,6 +225,11 @@ public class ChanSettings {
     public static final OptionsSetting<MediaAutoLoadMode> imageAutoLoadNetwork;
     public static final OptionsSetting<MediaAutoLoadMode> videoAutoLoadNetwork;
     public static final BooleanSetting loadExternalMediaLinks;
+    public static final BooleanSetting segmentedDownloads;
+    public static final IntegerSetting imagePreloadAhead;
+    public static final IntegerSetting imagePreloadBehind;
+    // In MB, applied on the next start.
+    public static final IntegerSetting thumbnailCacheSize;
     public static final BooleanSetting videoOpenExternal;
     public static final BooleanSetting textOnly;
     public static final BooleanSetting videoErrorIgnore;
@@ -271,8 +296,13 @@ public class ChanSettings {
     public static final StringSetting watchSound;
     public static final BooleanSetting watchPeek;
     public static final StringSetting watchLed;
+    public static final OptionsSetting<WatchPrefetchMode> watchPrefetch;
+    public static final BooleanSetting watchPrefetchOnlyCharging;
+    public static final IntegerSetting watchPrefetchBudget;
 
     public static final BooleanSetting historyEnabled;
+    public static final IntegerSetting historyMaxAgeDays;
+    public static final IntegerSetting historyMaxCount;
 
     public static final IntegerSetting previousVersion;
 
@@ -350,6 +380,10 @@ public class ChanSettings {
         imageAutoLoadNetwork = new OptionsSetting<>(p, "preference_image_auto_load_network", MediaAutoLoadMode.class, MediaAutoLoadMode.WIFI);
         videoAutoLoadNetwork = new OptionsSetting<>(p, "preference_video_auto_load_network", MediaAutoLoadMode.class, MediaAutoLoadMode.WIFI);
         loadExternalMediaLinks = new BooleanSetting(p, "preference_load_external_media_links", false);
+        segmentedDownloads = new BooleanSetting(p, "preference_segmented_downloads", false);
+        imagePreloadAhead = new IntegerSetting(p, "preference_image_preload_ahead", 3);
+        imagePreloadBehind = new IntegerSetting(p, "preference_image_preload_behind", 1);
+        thumbnailCacheSize = new IntegerSetting(p, "preference_thumbnail_cache_size", 200);
         videoOpenExternal = new BooleanSetting(p, "preference_video_external", false);
         textOnly = new BooleanSetting(p, "preference_text_only", false);
         videoErrorIgnore = new BooleanSetting(p, "preference_video_error_ignore", false);
@@ -424,8 +458,15 @@ public class ChanSettings {
         watchSound = new StringSetting(p, "preference_watch_sound", "quotes");
         watchPeek = new BooleanSetting(p, "preference_watch_peek", true);
         watchLed = new StringSetting(p, "preference_watch_led", "ffffffff");
+        watchPrefetch = new OptionsSetting<>(p, "preference_watch_prefetch", WatchPrefetchMode.class, WatchPrefetchMode.NONE);
+        watchPrefetchOnlyCharging = new BooleanSetting(p, "preference_watch_prefetch_only_charging", true);
+        // In megabytes
+        watchPrefetchBudget = new IntegerSetting(p, "preference_watch_prefetch_budget", 50);
 
         historyEnabled = new BooleanSetting(p, "preference_history_enabled", true);
+        // 0 keeps history forever, or without a limit on the count.
+        historyMaxAgeDays = new IntegerSetting(p, "preference_history_max_age_days", 0);
+        historyMaxCount = new IntegerSetting(p, "preference_history_max_count", 10000);
 
         previousVersion = new IntegerSetting(p, "preference_previous_version", 0);
 
@@ -21,14 +21,32 @@ package org.otacoo.chan.core.settings;
 import android.content.SharedPreferences;
 import android.webkit.CookieManager;
 
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.otacoo.chan.core.database.DatabaseManager;
 import org.otacoo.chan.core.model.json.site.SiteConfig;
@@ -43,6 +61,9 @@ import org.otacoo.chan.core.site.Site;
 
 /**
  * Exports and imports app settings (SharedPreferences), watched threads (pins), and saved replies to/from a JSON file.
+ * <p>
+ * The file is written and read as a stream, so the memory used doesn't grow with the number of
+ * saved replies or pins.
  */
 public final class SettingsBackupRestore {
 
@@ -63,12 +84,27 @@ public final class SettingsBackupRestore {
     private static final String KEY_COOKIES = "cookies";
     private static final String KEY_FILTERS = "filters";
     
+    private static final String NOT_A_BACKUP = "The selected file is not a Clover backup.";
+
+    // Rows read or written per query and per transaction.
+    private static final int BATCH_SIZE = 500;
+
     /** Stable site identifier (SiteRegistry classId); used so restore works across devices where numeric siteId differs. */
     private static final String KEY_SITE_CLASS_ID = "siteClassId";
 
     private SettingsBackupRestore() {
     }
 
+    public interface ProgressListener {
+        /**
+         * Called on the thread doing the backup or restore, after each batch of a section.
+         *
+         * @param section the display name of the section.
+         * @param count   the entries of the section done so far.
+         */
+        void onProgress(String section, int count);
+    }
+
     /** Check if a preference key is a site-specific setting that should not be restored */
     private static boolean isSiteSpecificPreference(String key) {
         if (key.equals("preference_captcha_type")) return true;
@@ -94,33 +130,71 @@ public final class SettingsBackupRestore {
         return false;
     }
 
-    // Extract available top-level keys to selectively restore from the backup JSON
-    public static Set<String> getAvailableRestoreKeys(String json) throws Exception {
-        JSONObject obj = new JSONObject(json);
-        String marker = obj.optString(KEY_APP_MARKER, null);
+    /**
+     * Extract the available top-level keys to selectively restore, reading through the backup once.
+     */
+    public static Set<String> getAvailableRestoreKeys(InputStream in) throws Exception {
+        JsonReader reader = createReader(in);
+        beginBackup(reader);
+
+        Set<String> availableKeys = new HashSet<>();
+        String marker = null;
+        boolean hasVersion = false;
+        int version = BACKUP_VERSION_1;
+        boolean legacyPreferences = false;
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case KEY_APP_MARKER:
+                    marker = reader.peek() == JsonToken.STRING ? reader.nextString() : null;
+                    if (marker == null) reader.skipValue();
+                    break;
+                case KEY_VERSION:
+                    hasVersion = true;
+                    version = reader.nextInt();
+                    break;
+                case KEY_PREFERENCES:
+                    availableKeys.add(name);
+                    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        reader.skipValue();
+                        break;
+                    }
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (reader.nextName().equals("preference_previous_version")) {
+                            legacyPreferences = true;
+                        }
+                        reader.skipValue();
+                    }
+                    reader.endObject();
+                    break;
+                case KEY_SITES:
+                case KEY_COOKIES:
+                case KEY_PINS:
+                case KEY_SAVED_REPLIES:
+                case KEY_FILTERS:
+                    availableKeys.add(name);
+                    reader.skipValue();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
         if (!APP_MARKER_VALUE.equals(marker)) {
             // TODO: remove this fallback once old backups are no longer in circulation.
-            boolean isLegacy = obj.has(KEY_VERSION)
-                    && obj.has(KEY_PREFERENCES)
-                    && obj.optJSONObject(KEY_PREFERENCES) != null
-                    && obj.optJSONObject(KEY_PREFERENCES).has("preference_previous_version");
+            boolean isLegacy = hasVersion && legacyPreferences;
             if (!isLegacy) {
-                throw new Exception("The selected file is not a Clover backup.");
+                throw new Exception(NOT_A_BACKUP);
             }
         }
-        Set<String> availableKeys = new HashSet<>();
-        int version = obj.optInt(KEY_VERSION, BACKUP_VERSION_1);
-        
-        if (obj.has(KEY_PREFERENCES)) availableKeys.add(KEY_PREFERENCES);
-        if (obj.has(KEY_SITES)) availableKeys.add(KEY_SITES);
-        if (obj.has(KEY_COOKIES)) availableKeys.add(KEY_COOKIES);
-        if (obj.has(KEY_PINS)) availableKeys.add(KEY_PINS);
-        if (obj.has(KEY_SAVED_REPLIES)) availableKeys.add(KEY_SAVED_REPLIES);
-        if (version >= BACKUP_VERSION_FILTERS && obj.has(KEY_FILTERS)) availableKeys.add(KEY_FILTERS);
-        
+        if (version < BACKUP_VERSION_FILTERS) availableKeys.remove(KEY_FILTERS);
+
         return availableKeys;
     }
-    
+
     public static String getKeyDisplayName(String key) {
         switch (key) {
             case KEY_PREFERENCES: return "Preferences";
@@ -133,21 +207,22 @@ public final class SettingsBackupRestore {
         }
     }
 
-    /** Resolve backup siteClassId to current device's site id. Returns -1 if no site with that class exists. */
-    private static int resolveSiteClassIdToCurrentId(DatabaseManager databaseManager, int siteClassId) throws Exception {
+    /** Map the class id of every site on this device to its site id. */
+    private static Map<Integer, Integer> getCurrentSiteIds(DatabaseManager databaseManager) throws Exception {
+        Map<Integer, Integer> siteIds = new HashMap<>();
         List<SiteModel> all = databaseManager.runTask(databaseManager.getDatabaseSiteManager().getAll());
         for (SiteModel m : all) {
             SiteConfig config = m.loadConfigFields().first;
-            if (config.classId == siteClassId) return m.id;
+            if (!siteIds.containsKey(config.classId)) siteIds.put(config.classId, m.id);
         }
-        return -1;
+        return siteIds;
     }
 
     /** Get current device site id for a backup entry (pin or saved reply). Prefers siteClassId; falls back to legacy siteId if site exists. */
-    private static int resolveRestoreSiteId(DatabaseManager databaseManager, JSONObject o) throws Exception {
+    private static int resolveRestoreSiteId(Map<Integer, Integer> currentSiteIds, JSONObject o) throws Exception {
         if (o.has(KEY_SITE_CLASS_ID)) {
-            int currentId = resolveSiteClassIdToCurrentId(databaseManager, o.getInt(KEY_SITE_CLASS_ID));
-            if (currentId >= 0) return currentId;
+            Integer currentId = currentSiteIds.get(o.getInt(KEY_SITE_CLASS_ID));
+            if (currentId != null) return currentId;
         }
         int legacySiteId = o.optInt("siteId", -1);
         if (legacySiteId < 0) return -1;
@@ -159,123 +234,140 @@ public final class SettingsBackupRestore {
         }
     }
 
-    private static int getSiteClassId(DatabaseManager databaseManager, int siteId) {
-        try {
-            SiteModel m = databaseManager.runTask(databaseManager.getDatabaseSiteManager().byId(siteId));
-            return m != null ? m.loadConfigFields().first.classId : -1;
-        } catch (Exception e) {
-            return -1;
-        }
-    }
-
-    public static String exportFull(DatabaseManager databaseManager, SharedPreferences prefs) throws Exception {
+    /**
+     * Write the backup to the stream as it is read from the database, saved replies a page at a
+     * time. The stream is flushed but not closed.
+     */
+    @WorkerThread
+    public static void exportFull(DatabaseManager databaseManager, SharedPreferences prefs,
+                                  OutputStream out, @Nullable ProgressListener progress) throws Exception {
         List<Pin> pins = databaseManager.runTask(databaseManager.getDatabasePinManager().getPins());
-        List<SavedReply> savedReplies = databaseManager.runTask(
-                databaseManager.getDatabaseSavedReplyManager().getAllForBackup());
         List<SiteModel> sites = databaseManager.runTask(databaseManager.getDatabaseSiteManager().getAll());
         List<Filter> filters = databaseManager.runTask(databaseManager.getDatabaseFilterManager().getFilters());
 
-        JSONObject out = new JSONObject();
-        out.put(KEY_APP_MARKER, APP_MARKER_VALUE);
-        out.put(KEY_VERSION, BACKUP_VERSION_FILTERS);
+        Map<Integer, Integer> siteClassIds = new HashMap<>();
+        for (SiteModel site : sites) {
+            siteClassIds.put(site.id, site.loadConfigFields().first.classId);
+        }
+
+        JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+        writer.setIndent("  ");
+        writer.beginObject();
+        writer.name(KEY_APP_MARKER).value(APP_MARKER_VALUE);
+        writer.name(KEY_VERSION).value(BACKUP_VERSION_FILTERS);
 
-        JSONObject prefsObj = new JSONObject();
-        putPreferencesInto(prefsObj, prefs);
-        out.put(KEY_PREFERENCES, prefsObj);
+        writer.name(KEY_PREFERENCES);
+        writePreferences(writer, prefs);
 
-        JSONArray sitesArr = new JSONArray();
+        writer.name(KEY_SITES).beginArray();
         for (SiteModel site : sites) {
-            JSONObject s = new JSONObject();
-            s.put("configuration", site.configuration);
-            s.put("userSettings", site.userSettings);
-            s.put("order", site.order);
+            writer.beginObject();
+            writer.name("configuration").value(site.configuration);
+            writer.name("userSettings").value(site.userSettings);
+            writer.name("order").value(site.order);
 
             // Export saved boards for this site
+            List<Board> boards = null;
             try {
                 Site siteObj = SiteRepository.forId(site.id);
                 if (siteObj != null) {
-                    List<Board> boards = databaseManager.runTask(databaseManager.getDatabaseBoardManager().getSiteSavedBoards(siteObj));
-                    if (boards != null && boards.size() > 0) {
-                        JSONArray boardsArr = new JSONArray();
-                        for (Board b : boards) {
-                            JSONObject bo = new JSONObject();
-                            bo.put("code", b.code);
-                            bo.put("name", b.name);
-                            bo.put("saved", b.saved);
-                            bo.put("order", b.order);
-                            bo.put("workSafe", b.workSafe);
-                            boardsArr.put(bo);
-                        }
-                        s.put("boards", boardsArr);
-                    }
+                    boards = databaseManager.runTask(databaseManager.getDatabaseBoardManager().getSiteSavedBoards(siteObj));
                 }
             } catch (Exception ignored) {}
+            if (boards != null && boards.size() > 0) {
+                writer.name("boards").beginArray();
+                for (Board b : boards) {
+                    writer.beginObject();
+                    writer.name("code").value(b.code);
+                    writer.name("name").value(b.name);
+                    writer.name("saved").value(b.saved);
+                    writer.name("order").value(b.order);
+                    writer.name("workSafe").value(b.workSafe);
+                    writer.endObject();
+                }
+                writer.endArray();
+            }
 
-            sitesArr.put(s);
+            writer.endObject();
         }
-        out.put(KEY_SITES, sitesArr);
+        writer.endArray();
+        reportProgress(progress, KEY_SITES, sites.size());
 
-        putCookiesInto(out);
+        writeCookies(writer);
 
-        JSONArray pinsArr = new JSONArray();
+        writer.name(KEY_PINS).beginArray();
         for (Pin pin : pins) {
             if (pin.loadable == null || !pin.loadable.isThreadMode()) continue;
-            JSONObject o = new JSONObject();
-            int classId = getSiteClassId(databaseManager, pin.loadable.siteId);
-            if (classId >= 0) o.put(KEY_SITE_CLASS_ID, classId);
-            o.put("siteId", pin.loadable.siteId);
-            o.put("boardCode", pin.loadable.boardCode);
-            o.put("mode", pin.loadable.mode);
-            o.put("no", pin.loadable.no);
-            o.put("title", pin.loadable.title != null ? pin.loadable.title : "");
-            o.put("watching", pin.watching);
-            o.put("watchLastCount", pin.watchLastCount);
-            o.put("watchNewCount", pin.watchNewCount);
-            o.put("quoteLastCount", pin.quoteLastCount);
-            o.put("quoteNewCount", pin.quoteNewCount);
-            o.put("isError", pin.isError);
-            o.put("thumbnailUrl", pin.thumbnailUrl != null ? pin.thumbnailUrl : "");
-            o.put("order", pin.order);
-            o.put("archived", pin.archived);
-            pinsArr.put(o);
-        }
-        out.put(KEY_PINS, pinsArr);
-
-        JSONArray repliesArr = new JSONArray();
-        for (SavedReply r : savedReplies) {
-            JSONObject o = new JSONObject();
-            int classId = getSiteClassId(databaseManager, r.siteId);
-            if (classId >= 0) o.put(KEY_SITE_CLASS_ID, classId);
-            o.put("siteId", r.siteId);
-            o.put("board", r.board);
-            o.put("no", r.no);
-            o.put("password", r.password != null ? r.password : "");
-            repliesArr.put(o);
-        }
-        out.put(KEY_SAVED_REPLIES, repliesArr);
-
-        JSONArray filtersArr = new JSONArray();
+            writer.beginObject();
+            writeSiteIds(writer, siteClassIds, pin.loadable.siteId);
+            writer.name("boardCode").value(pin.loadable.boardCode);
+            writer.name("mode").value(pin.loadable.mode);
+            writer.name("no").value(pin.loadable.no);
+            writer.name("title").value(pin.loadable.title != null ? pin.loadable.title : "");
+            writer.name("watching").value(pin.watching);
+            writer.name("watchLastCount").value(pin.watchLastCount);
+            writer.name("watchNewCount").value(pin.watchNewCount);
+            writer.name("quoteLastCount").value(pin.quoteLastCount);
+            writer.name("quoteNewCount").value(pin.quoteNewCount);
+            writer.name("isError").value(pin.isError);
+            writer.name("thumbnailUrl").value(pin.thumbnailUrl != null ? pin.thumbnailUrl : "");
+            writer.name("order").value(pin.order);
+            writer.name("archived").value(pin.archived);
+            writer.endObject();
+        }
+        writer.endArray();
+        reportProgress(progress, KEY_PINS, pins.size());
+
+        writer.name(KEY_SAVED_REPLIES).beginArray();
+        int savedReplyCount = 0;
+        int lastId = 0;
+        List<SavedReply> page;
+        do {
+            page = databaseManager.runTask(
+                    databaseManager.getDatabaseSavedReplyManager().getForBackup(lastId, BATCH_SIZE));
+            for (SavedReply r : page) {
+                writer.beginObject();
+                writeSiteIds(writer, siteClassIds, r.siteId);
+                writer.name("board").value(r.board);
+                writer.name("no").value(r.no);
+                writer.name("password").value(r.password != null ? r.password : "");
+                writer.endObject();
+                lastId = r.id;
+            }
+            savedReplyCount += page.size();
+            reportProgress(progress, KEY_SAVED_REPLIES, savedReplyCount);
+        } while (page.size() == BATCH_SIZE);
+        writer.endArray();
+
+        writer.name(KEY_FILTERS).beginArray();
         for (Filter f : filters) {
-            JSONObject o = new JSONObject();
-            o.put("enabled", f.enabled);
-            o.put("type", f.type);
-            o.put("pattern", f.pattern);
-            o.put("allBoards", f.allBoards);
-            o.put("boards", f.boards);
-            o.put("action", f.action);
-            o.put("color", f.color);
-            o.put("order", f.order);
-            o.put("onlyOnOP", f.onlyOnOP);
-            filtersArr.put(o);
-        }
-        out.put(KEY_FILTERS, filtersArr);
-
-        return out.toString(2);
+            writer.beginObject();
+            writer.name("enabled").value(f.enabled);
+            writer.name("type").value(f.type);
+            writer.name("pattern").value(f.pattern);
+            writer.name("allBoards").value(f.allBoards);
+            writer.name("boards").value(f.boards);
+            writer.name("action").value(f.action);
+            writer.name("color").value(f.color);
+            writer.name("order").value(f.order);
+            writer.name("onlyOnOP").value(f.onlyOnOP);
+            writer.endObject();
+        }
+        writer.endArray();
+        reportProgress(progress, KEY_FILTERS, filters.size());
+
+        writer.endObject();
+        writer.flush();
+    }
+
+    private static void writeSiteIds(JsonWriter writer, Map<Integer, Integer> siteClassIds, int siteId) throws IOException {
+        Integer classId = siteClassIds.get(siteId);
+        if (classId != null && classId >= 0) writer.name(KEY_SITE_CLASS_ID).value(classId);
+        writer.name("siteId").value(siteId);
     }
 
-    private static void putCookiesInto(JSONObject out) throws Exception {
+    private static void writeCookies(JsonWriter writer) throws IOException {
         CookieManager cookieManager = CookieManager.getInstance();
-        JSONObject cookiesObj = new JSONObject();
         String[] domains = {
                 "https://www.4chan.org",
                 "https://boards.4chan.org",
@@ -287,169 +379,377 @@ public final class SettingsBackupRestore {
                 "https://8chan.st",
                 "https://sushigirl.cafe"
         };
+        writer.name(KEY_COOKIES).beginObject();
         for (String domain : domains) {
             String c = cookieManager.getCookie(domain);
             if (c != null && !c.isEmpty()) {
-                cookiesObj.put(domain, c);
+                writer.name(domain).value(c);
             }
         }
-        out.put(KEY_COOKIES, cookiesObj);
+        writer.endObject();
     }
 
-    private static void putPreferencesInto(JSONObject out, SharedPreferences prefs) throws Exception {
+    private static void writePreferences(JsonWriter writer, SharedPreferences prefs) throws IOException {
+        writer.beginObject();
         Map<String, ?> all = prefs.getAll();
         for (Map.Entry<String, ?> e : all.entrySet()) {
             String key = e.getKey();
             Object value = e.getValue();
             if (value == null) continue;
+            writer.name(key);
             if (value instanceof Set) {
                 @SuppressWarnings("unchecked")
                 Set<String> set = (Set<String>) value;
-                out.put(key, new JSONArray(set));
+                writer.beginArray();
+                for (String item : set) {
+                    writer.value(item);
+                }
+                writer.endArray();
+            } else if (value instanceof Boolean) {
+                writer.value((Boolean) value);
+            } else if (value instanceof Number) {
+                writer.value((Number) value);
             } else {
-                out.put(key, value);
+                writer.value(value.toString());
             }
         }
+        writer.endObject();
     }
 
-    public static void importFull(DatabaseManager databaseManager, SharedPreferences prefs, String json) throws Exception {
-        importFull(databaseManager, prefs, json, getAvailableRestoreKeys(json));
-    }
-
-    // Import selected keys from the backup JSON. If selectedKeys is null or empty, does nothing.
-    public static void importFull(DatabaseManager databaseManager, SharedPreferences prefs, String json, Set<String> selectedKeys) throws Exception {
+    /**
+     * Restore the selected keys while reading through the backup. Saved replies, pins and filters
+     * are inserted in batches of {@link #BATCH_SIZE}, each batch in one transaction. If selectedKeys
+     * is null or empty, does nothing.
+     */
+    @WorkerThread
+    public static void importFull(DatabaseManager databaseManager, SharedPreferences prefs, InputStream in,
+                                  Set<String> selectedKeys, @Nullable ProgressListener progress) throws Exception {
         if (selectedKeys == null || selectedKeys.isEmpty()) {
             return;
         }
-        JSONObject obj = new JSONObject(json);
-        int version = obj.optInt(KEY_VERSION, BACKUP_VERSION_1);
 
-        if (version >= BACKUP_VERSION_FULL) {
-            if (selectedKeys.contains(KEY_PREFERENCES) && obj.has(KEY_PREFERENCES)) {
-                applyPreferences(prefs, obj.getJSONObject(KEY_PREFERENCES));
-            }
-            if (selectedKeys.contains(KEY_SITES) && obj.has(KEY_SITES)) {
-                JSONArray arr = obj.getJSONArray(KEY_SITES);
-                for (int i = 0; i < arr.length(); i++) {
-                    JSONObject o = arr.getJSONObject(i);
-                    SiteModel site = new SiteModel();
-                    site.configuration = o.getString("configuration");
-                    site.userSettings = o.getString("userSettings");
-                    site.order = o.optInt("order", 0);
-
-                    // Check if site already exists by classId
-                    int classId = site.loadConfigFields().first.classId;
-                    if (resolveSiteClassIdToCurrentId(databaseManager, classId) < 0) {
-                        databaseManager.runTask(databaseManager.getDatabaseSiteManager().add(site));
+        JsonReader reader = createReader(in);
+        beginBackup(reader);
+
+        int version = BACKUP_VERSION_1;
+        Map<Integer, Integer> currentSiteIds = getCurrentSiteIds(databaseManager);
+        // Old backup format (v1) has the preferences in the root.
+        JSONObject root = new JSONObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            boolean selected = selectedKeys.contains(name);
+            switch (name) {
+                case KEY_VERSION:
+                    version = reader.nextInt();
+                    break;
+                case KEY_PREFERENCES:
+                    if (selected) {
+                        applyPreferences(prefs, readObject(reader));
+                    } else {
+                        reader.skipValue();
                     }
-                }
-                SiteRepository.refresh();
-
-                // Restore boards for each site
-                for (int i = 0; i < arr.length(); i++) {
-                    JSONObject o = arr.getJSONObject(i);
-                    if (o.has("boards")) {
-                        SiteModel temp = new SiteModel();
-                        temp.configuration = o.getString("configuration");
-                        int classId = temp.loadConfigFields().first.classId;
-                        int currentId = resolveSiteClassIdToCurrentId(databaseManager, classId);
-                        if (currentId >= 0) {
-                            Site siteObj = SiteRepository.forId(currentId);
-                            JSONArray boards = o.getJSONArray("boards");
-                            for (int j = 0; j < boards.length(); j++) {
-                                JSONObject bo = boards.getJSONObject(j);
-                                String code = bo.getString("code");
-                                // Use the site's createBoard/board logic to get/create the board object.
-                                // createBoard(name, code)
-                                String name = bo.optString("name", code);
-                                Board board = siteObj.board(code);
-                                if (board == null) {
-                                    board = siteObj.createBoard(name, code);
-                                } else {
-                                    board.name = name;
-                                }
-                                board.saved = bo.optBoolean("saved", true);
-                                board.order = bo.optInt("order", 0);
-                                board.workSafe = bo.optBoolean("workSafe", false);
-
-                                // Save the user-set fields to database.
-                                databaseManager.runTask(databaseManager.getDatabaseBoardManager().updateIncludingUserFields(board));
-                            }
+                    break;
+                case KEY_SITES:
+                    if (selected) {
+                        importSites(databaseManager, reader);
+                        currentSiteIds = getCurrentSiteIds(databaseManager);
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case KEY_COOKIES:
+                    if (selected) {
+                        applyCookies(readObject(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case KEY_SAVED_REPLIES:
+                    if (selected) {
+                        importSavedReplies(databaseManager, reader, currentSiteIds, progress);
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case KEY_PINS:
+                    if (selected) {
+                        importPins(databaseManager, reader, currentSiteIds, progress);
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case KEY_FILTERS:
+                    if (selected && version >= BACKUP_VERSION_FILTERS) {
+                        importFilters(databaseManager, reader, progress);
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                default:
+                    root.put(name, readValue(reader));
+                    break;
+            }
+        }
+        reader.endObject();
+
+        if (version < BACKUP_VERSION_FULL) {
+            // Old backup format (v1) - restore all preferences without selective import
+            applyPreferencesFromRoot(prefs, root);
+        }
+    }
+
+    private static void importSites(DatabaseManager databaseManager, JsonReader reader) throws Exception {
+        // Sites are few, they are kept to restore the boards after all sites are added.
+        JSONArray arr = readArray(reader);
+        for (int i = 0; i < arr.length(); i++) {
+            JSONObject o = arr.getJSONObject(i);
+            SiteModel site = new SiteModel();
+            site.configuration = o.getString("configuration");
+            site.userSettings = o.getString("userSettings");
+            site.order = o.optInt("order", 0);
+
+            // Check if site already exists by classId
+            int classId = site.loadConfigFields().first.classId;
+            if (!getCurrentSiteIds(databaseManager).containsKey(classId)) {
+                databaseManager.runTask(databaseManager.getDatabaseSiteManager().add(site));
+            }
+        }
+        SiteRepository.refresh();
+
+        // Restore boards for each site
+        Map<Integer, Integer> currentSiteIds = getCurrentSiteIds(databaseManager);
+        for (int i = 0; i < arr.length(); i++) {
+            JSONObject o = arr.getJSONObject(i);
+            if (o.has("boards")) {
+                SiteModel temp = new SiteModel();
+                temp.configuration = o.getString("configuration");
+                int classId = temp.loadConfigFields().first.classId;
+                Integer currentId = currentSiteIds.get(classId);
+                if (currentId != null) {
+                    Site siteObj = SiteRepository.forId(currentId);
+                    JSONArray boards = o.getJSONArray("boards");
+                    for (int j = 0; j < boards.length(); j++) {
+                        JSONObject bo = boards.getJSONObject(j);
+                        String code = bo.getString("code");
+                        // Use the site's createBoard/board logic to get/create the board object.
+                        // createBoard(name, code)
+                        String name = bo.optString("name", code);
+                        Board board = siteObj.board(code);
+                        if (board == null) {
+                            board = siteObj.createBoard(name, code);
+                        } else {
+                            board.name = name;
                         }
+                        board.saved = bo.optBoolean("saved", true);
+                        board.order = bo.optInt("order", 0);
+                        board.workSafe = bo.optBoolean("workSafe", false);
+
+                        // Save the user-set fields to database.
+                        databaseManager.runTask(databaseManager.getDatabaseBoardManager().updateIncludingUserFields(board));
                     }
                 }
             }
-            if (selectedKeys.contains(KEY_COOKIES) && obj.has(KEY_COOKIES)) {
-                applyCookies(obj.getJSONObject(KEY_COOKIES));
+        }
+    }
+
+    private static void importSavedReplies(DatabaseManager databaseManager, JsonReader reader,
+                                           Map<Integer, Integer> currentSiteIds,
+                                           @Nullable ProgressListener progress) throws Exception {
+        List<SavedReply> batch = new ArrayList<>();
+        int count = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            JSONObject o = readObject(reader);
+            int siteId = resolveRestoreSiteId(currentSiteIds, o);
+            if (siteId < 0) continue;
+            SavedReply r = new SavedReply();
+            r.siteId = siteId;
+            r.board = o.getString("board");
+            r.no = o.getInt("no");
+            r.password = o.optString("password", "");
+            batch.add(r);
+
+            if (batch.size() == BATCH_SIZE) {
+                databaseManager.runTask(databaseManager.getDatabaseSavedReplyManager().saveReplies(batch));
+                count += batch.size();
+                batch = new ArrayList<>();
+                reportProgress(progress, KEY_SAVED_REPLIES, count);
             }
-            if (selectedKeys.contains(KEY_SAVED_REPLIES) && obj.has(KEY_SAVED_REPLIES)) {
-                JSONArray arr = obj.getJSONArray(KEY_SAVED_REPLIES);
-                for (int i = 0; i < arr.length(); i++) {
-                    JSONObject o = arr.getJSONObject(i);
-                    int siteId = resolveRestoreSiteId(databaseManager, o);
-                    if (siteId < 0) continue;
-                    SavedReply r = new SavedReply();
-                    r.siteId = siteId;
-                    r.board = o.getString("board");
-                    r.no = o.getInt("no");
-                    r.password = o.optString("password", "");
-                    databaseManager.runTask(databaseManager.getDatabaseSavedReplyManager().saveReply(r));
-                }
+        }
+        reader.endArray();
+        if (!batch.isEmpty()) {
+            databaseManager.runTask(databaseManager.getDatabaseSavedReplyManager().saveReplies(batch));
+            reportProgress(progress, KEY_SAVED_REPLIES, count + batch.size());
+        }
+    }
+
+    private static void importPins(DatabaseManager databaseManager, JsonReader reader,
+                                   Map<Integer, Integer> currentSiteIds,
+                                   @Nullable ProgressListener progress) throws Exception {
+        List<JSONObject> batch = new ArrayList<>();
+        List<Integer> batchSiteIds = new ArrayList<>();
+        int count = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            JSONObject o = readObject(reader);
+            int siteId = resolveRestoreSiteId(currentSiteIds, o);
+            if (siteId >= 0) {
+                batch.add(o);
+                batchSiteIds.add(siteId);
             }
-            if (selectedKeys.contains(KEY_PINS) && obj.has(KEY_PINS)) {
-                JSONArray arr = obj.getJSONArray(KEY_PINS);
-                for (int i = 0; i < arr.length(); i++) {
-                    JSONObject o = arr.getJSONObject(i);
-                    int siteId = resolveRestoreSiteId(databaseManager, o);
-                    if (siteId < 0) continue;
-                    String boardCode = o.getString("boardCode");
-                    int no = o.getInt("no");
-                    String title = o.optString("title", "");
-                    Site site = SiteRepository.forId(siteId);
-                    // Query the DB directly so we get the properly-named board.
-                    Board board = databaseManager.runTask(
-                            databaseManager.getDatabaseBoardManager().getBoard(site, boardCode));
-                    if (board == null) {
-                        board = site.createBoard(boardCode, boardCode);
-                    }
-                    Loadable loadable = Loadable.forThread(site, board, no, title);
-                    loadable = databaseManager.runTask(
-                            databaseManager.getDatabaseLoadableManager().getOrCreate(loadable));
-                    Pin pin = new Pin();
-                    pin.loadable = loadable;
-                    pin.watching = o.optBoolean("watching", true);
-                    pin.watchLastCount = o.optInt("watchLastCount", -1);
-                    pin.watchNewCount = o.optInt("watchNewCount", -1);
-                    pin.quoteLastCount = o.optInt("quoteLastCount", -1);
-                    pin.quoteNewCount = o.optInt("quoteNewCount", -1);
-                    pin.isError = o.optBoolean("isError", false);
-                    pin.thumbnailUrl = o.optString("thumbnailUrl", "");
-                    if (pin.thumbnailUrl.isEmpty()) pin.thumbnailUrl = null;
-                    pin.order = o.optInt("order", -1);
-                    pin.archived = o.optBoolean("archived", false);
-                    databaseManager.runTask(databaseManager.getDatabasePinManager().createPin(pin));
-                }
+
+            if (batch.size() == BATCH_SIZE) {
+                databaseManager.runTask(createPins(databaseManager, batch, batchSiteIds));
+                count += batch.size();
+                batch = new ArrayList<>();
+                batchSiteIds = new ArrayList<>();
+                reportProgress(progress, KEY_PINS, count);
             }
-            if (version >= BACKUP_VERSION_FILTERS && selectedKeys.contains(KEY_FILTERS) && obj.has(KEY_FILTERS)) {
-                JSONArray arr = obj.getJSONArray(KEY_FILTERS);
-                for (int i = 0; i < arr.length(); i++) {
-                    JSONObject o = arr.getJSONObject(i);
-                    Filter f = new Filter();
-                    f.enabled = o.optBoolean("enabled", true);
-                    f.type = o.getInt("type");
-                    f.pattern = o.getString("pattern");
-                    f.allBoards = o.optBoolean("allBoards", true);
-                    f.boards = o.optString("boards", "");
-                    f.action = o.getInt("action");
-                    f.color = o.getInt("color");
-                    f.order = o.optInt("order", 0);
-                    f.onlyOnOP = o.optBoolean("onlyOnOP", false);
-                    databaseManager.runTask(databaseManager.getDatabaseFilterManager().createFilter(f));
+        }
+        reader.endArray();
+        if (!batch.isEmpty()) {
+            databaseManager.runTask(createPins(databaseManager, batch, batchSiteIds));
+            reportProgress(progress, KEY_PINS, count + batch.size());
+        }
+    }
+
+    private static Callable<Void> createPins(DatabaseManager databaseManager, List<JSONObject> pins, List<Integer> siteIds) {
+        return () -> {
+            for (int i = 0; i < pins.size(); i++) {
+                JSONObject o = pins.get(i);
+                String boardCode = o.getString("boardCode");
+                int no = o.getInt("no");
+                String title = o.optString("title", "");
+                Site site = SiteRepository.forId(siteIds.get(i));
+                // Query the DB directly so we get the properly-named board.
+                Board board = databaseManager.getDatabaseBoardManager().getBoard(site, boardCode).call();
+                if (board == null) {
+                    board = site.createBoard(boardCode, boardCode);
                 }
+                Loadable loadable = Loadable.forThread(site, board, no, title);
+                loadable = databaseManager.getDatabaseLoadableManager().getOrCreate(loadable).call();
+                Pin pin = new Pin();
+                pin.loadable = loadable;
+                pin.watching = o.optBoolean("watching", true);
+                pin.watchLastCount = o.optInt("watchLastCount", -1);
+                pin.watchNewCount = o.optInt("watchNewCount", -1);
+                pin.quoteLastCount = o.optInt("quoteLastCount", -1);
+                pin.quoteNewCount = o.optInt("quoteNewCount", -1);
+                pin.isError = o.optBoolean("isError", false);
+                pin.thumbnailUrl = o.optString("thumbnailUrl", "");
+                if (pin.thumbnailUrl.isEmpty()) pin.thumbnailUrl = null;
+                pin.order = o.optInt("order", -1);
+                pin.archived = o.optBoolean("archived", false);
+                databaseManager.getDatabasePinManager().createPin(pin).call();
             }
-        } else {
-            // Old backup format (v1) - restore all preferences without selective import
-            applyPreferencesFromRoot(prefs, obj);
+            return null;
+        };
+    }
+
+    private static void importFilters(DatabaseManager databaseManager, JsonReader reader,
+                                      @Nullable ProgressListener progress) throws Exception {
+        List<Filter> batch = new ArrayList<>();
+        int count = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            JSONObject o = readObject(reader);
+            Filter f = new Filter();
+            f.enabled = o.optBoolean("enabled", true);
+            f.type = o.getInt("type");
+            f.pattern = o.getString("pattern");
+            f.allBoards = o.optBoolean("allBoards", true);
+            f.boards = o.optString("boards", "");
+            f.action = o.getInt("action");
+            f.color = o.getInt("color");
+            f.order = o.optInt("order", 0);
+            f.onlyOnOP = o.optBoolean("onlyOnOP", false);
+            batch.add(f);
+
+            if (batch.size() == BATCH_SIZE) {
+                databaseManager.runTask(createFilters(databaseManager, batch));
+                count += batch.size();
+                batch = new ArrayList<>();
+                reportProgress(progress, KEY_FILTERS, count);
+            }
+        }
+        reader.endArray();
+        if (!batch.isEmpty()) {
+            databaseManager.runTask(createFilters(databaseManager, batch));
+            reportProgress(progress, KEY_FILTERS, count + batch.size());
+        }
+    }
+
+    private static Callable<Void> createFilters(DatabaseManager databaseManager, List<Filter> filters) {
+        return () -> {
+            for (Filter filter : filters) {
+                databaseManager.getDatabaseFilterManager().createFilter(filter).call();
+            }
+            return null;
+        };
+    }
+
+    private static JsonReader createReader(InputStream in) {
+        return new JsonReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+    }
+
+    private static void beginBackup(JsonReader reader) throws Exception {
+        try {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                throw new Exception(NOT_A_BACKUP);
+            }
+        } catch (IOException e) {
+            throw new Exception(NOT_A_BACKUP, e);
+        }
+        reader.beginObject();
+    }
+
+    /** Read one entry of the backup, to parse it like the JSON it is. */
+    private static JSONObject readObject(JsonReader reader) throws Exception {
+        JSONObject obj = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            obj.put(reader.nextName(), readValue(reader));
+        }
+        reader.endObject();
+        return obj;
+    }
+
+    private static JSONArray readArray(JsonReader reader) throws Exception {
+        JSONArray arr = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            arr.put(readValue(reader));
+        }
+        reader.endArray();
+        return arr;
+    }
+
+    private static Object readValue(JsonReader reader) throws Exception {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                return readArray(reader);
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER:
+                String number = reader.nextString();
+                try {
+                    return Long.parseLong(number);
+                } catch (NumberFormatException e) {
+                    return Double.parseDouble(number);
+                }
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                return reader.nextString();
+        }
+    }
+
+    private static void reportProgress(@Nullable ProgressListener progress, String key, int count) {
+        if (progress != null) {
+            progress.onProgress(getKeyDisplayName(key), count);
         }
     }
 
@@ -29,6 +29,7 @@ import android.text.TextUtils;
 import androidx.core.content.FileProvider;
 
 import org.otacoo.chan.BuildConfig;
+import org.otacoo.chan.core.cache.DownloadPriority;
 import org.otacoo.chan.core.cache.FileCache;
 import org.otacoo.chan.core.cache.FileCacheListener;
 import org.otacoo.chan.core.net.JsonReaderRequest;
@@ -187,7 +188,7 @@ public class UpdateManager {
             legacyFile.delete();
         }
 
-        fileCache.downloadFile(update.apkUrl.toString(), new FileCacheListener() {
+        fileCache.downloadFile(update.apkUrl.toString(), DownloadPriority.BACKGROUND, new FileCacheListener() {
             @Override
             public void onProgress(long downloaded, long total) {
                 callback.onUpdateDownloadProgress(downloaded, total);
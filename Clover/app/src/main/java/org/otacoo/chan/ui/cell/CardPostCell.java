@@ -213,6 +213,20 @@ public class CardPostCell extends CardView implements PostCellInterface, View.On
         return thumbnailView;
     }
 
+    /**
+     * @return the measured width of the thumbnail, the width it is bound with.
+     */
+    public int getThumbnailWidth() {
+        return thumbnailView.getWidth();
+    }
+
+    /**
+     * @return the measured height of the thumbnail, the height it is bound with.
+     */
+    public int getThumbnailHeight() {
+        return thumbnailView.getHeight();
+    }
+
     @Override
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
     public boolean hasOverlappingRendering() {
@@ -20,6 +20,7 @@ package org.otacoo.chan.ui.cell;
 import static android.text.TextUtils.isEmpty;
 import static org.otacoo.chan.utils.AndroidUtils.ROBOTO_CONDENSED_REGULAR;
 import static org.otacoo.chan.utils.AndroidUtils.dp;
+import static org.otacoo.chan.utils.AndroidUtils.getRes;
 import static org.otacoo.chan.utils.AndroidUtils.openIntent;
 import static org.otacoo.chan.utils.AndroidUtils.setRoundItemBackground;
 import static org.otacoo.chan.utils.AndroidUtils.sp;
@@ -415,9 +416,7 @@ public class PostCell extends LinearLayout implements PostCellInterface {
         if (ChanSettings.layoutTextBelowThumbnails.get()) {
             repliesLp.leftMargin = 0;
         } else if (!thumbnailViews.isEmpty()) {
-            int thumbSize = ChanSettings.thumbnailScale.get() * getResources()
-                    .getDimensionPixelSize(R.dimen.cell_post_thumbnail_size) / 100;
-            repliesLp.leftMargin = paddingPx + thumbSize;
+            repliesLp.leftMargin = paddingPx + getThumbnailSize();
         } else {
             repliesLp.leftMargin = 0;
         }
@@ -664,9 +663,16 @@ public class PostCell extends LinearLayout implements PostCellInterface {
         divider.setVisibility(showDivider ? VISIBLE : GONE);
     }
 
-    private void buildThumbnails() {
-        final int size = ChanSettings.thumbnailScale.get() * getResources()
+    /**
+     * @return the size of the thumbnails, scaled by the setting.
+     */
+    public static int getThumbnailSize() {
+        return ChanSettings.thumbnailScale.get() * getRes()
                 .getDimensionPixelSize(R.dimen.cell_post_thumbnail_size) / 100;
+    }
+
+    private void buildThumbnails() {
+        final int size = getThumbnailSize();
 
         int targetCount = (!post.images.isEmpty() || post.fileDeleted) && !ChanSettings.textOnly.get() ?
                 (post.images.isEmpty() ? 1 : post.images.size()) : 0;
@@ -14,23 +14,17 @@ import android.graphics.Typeface;
 import android.util.AttributeSet;
 import android.view.View;
 
-import androidx.annotation.NonNull;
-
 import org.otacoo.chan.R;
+import org.otacoo.chan.core.cache.IconCache;
+import org.otacoo.chan.core.cache.ImagePipeline;
 import org.otacoo.chan.core.model.PostHttpIcon;
 import org.otacoo.chan.ui.theme.Theme;
 import org.otacoo.chan.utils.AndroidUtils;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
-import okhttp3.Call;
-import okhttp3.Callback;
 import okhttp3.HttpUrl;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
 
 public class PostIcons extends View {
     private static final Bitmap stickyIcon;
@@ -201,11 +195,11 @@ public class PostIcons extends View {
         return width + spacing;
     }
 
-    private static class PostIconsHttpIcon implements Callback {
+    private static class PostIconsHttpIcon implements ImagePipeline.Listener {
         private final PostIcons postIcons;
         private final String name;
         private final HttpUrl url;
-        private Call call;
+        private ImagePipeline.ImageRequest request;
         private Bitmap bitmap;
 
         private PostIconsHttpIcon(PostIcons postIcons, String name, HttpUrl url) {
@@ -215,36 +209,26 @@ public class PostIcons extends View {
         }
 
         private void request() {
-            OkHttpClient client = injector().instance(OkHttpClient.class);
-            Request okRequest = new Request.Builder().url(url).build();
-            call = client.newCall(okRequest);
-            call.enqueue(this);
+            request = injector().instance(IconCache.class).request(url, this);
         }
 
         private void cancel() {
-            if (call != null) {
-                call.cancel();
-                call = null;
+            if (request != null) {
+                request.cancel();
+                request = null;
             }
         }
 
         @Override
-        public void onFailure(@NonNull Call call, @NonNull IOException e) {
+        public void onImage(Bitmap bitmap) {
+            request = null;
+            this.bitmap = bitmap;
+            postIcons.invalidate();
         }
 
         @Override
-        public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-            try {
-                if (response.isSuccessful() && response.body() != null) {
-                    byte[] data = response.body().bytes();
-                    bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-                    if (bitmap != null) {
-                        AndroidUtils.runOnUiThread(postIcons::invalidate);
-                    }
-                }
-            } finally {
-                response.close();
-            }
+        public void onFailure(int code) {
+            request = null;
         }
     }
 }
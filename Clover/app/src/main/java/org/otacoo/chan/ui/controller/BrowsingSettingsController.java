@@ -24,6 +24,7 @@ import android.content.Context;
 import org.otacoo.chan.R;
 import org.otacoo.chan.core.settings.ChanSettings;
 import org.otacoo.chan.ui.settings.BooleanSettingView;
+import org.otacoo.chan.ui.settings.IntegerSettingView;
 import org.otacoo.chan.ui.settings.ListSettingView;
 import org.otacoo.chan.ui.settings.SettingsController;
 import org.otacoo.chan.ui.settings.SettingsGroup;
@@ -163,6 +164,25 @@ public class BrowsingSettingsController extends SettingsController {
 
             groups.add(misc);
         }
+
+        // History group
+        {
+            SettingsGroup history = new SettingsGroup(R.string.settings_group_history);
+
+            history.add(new IntegerSettingView(this,
+                    ChanSettings.historyMaxAgeDays,
+                    R.string.setting_history_max_age, R.string.setting_history_max_age,
+                    R.string.setting_history_max_age_description,
+                    0, 3650));
+
+            history.add(new IntegerSettingView(this,
+                    ChanSettings.historyMaxCount,
+                    R.string.setting_history_max_count, R.string.setting_history_max_count,
+                    R.string.setting_history_max_count_description,
+                    0, 1000000));
+
+            groups.add(history);
+        }
     }
 
     private void setupHideFlagsSetting(SettingsGroup misc) {
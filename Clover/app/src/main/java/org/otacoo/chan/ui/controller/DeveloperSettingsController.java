@@ -122,24 +122,36 @@ public class DeveloperSettingsController extends Controller {
             AndroidUtils.showThemedSnackbar(view, "Running integrity check…", Snackbar.LENGTH_SHORT);
             databaseManager.runTaskAsync(databaseManager.checkIntegrity(), report -> {
                 checkDbButton.setEnabled(true);
-                TextView tv = new TextView(context);
-                int p = (int) (context.getResources().getDisplayMetrics().density * 12);
-                tv.setPadding(p, p, p, p);
-                tv.setText(report);
-                tv.setTextSize(12f);
-                tv.setTypeface(android.graphics.Typeface.MONOSPACE);
-                ScrollView sv = new ScrollView(context);
-                sv.addView(tv);
-                AlertDialog dialog = new AlertDialog.Builder(context)
-                        .setTitle("DB Integrity Report")
-                        .setView(sv)
-                        .setPositiveButton("Close", null)
-                        .show();
-                dialog.getWindow().getDecorView().setBackgroundColor(getAttrColor(context, R.attr.backcolor));
+                showReport("DB Integrity Report", report);
             });
         });
         wrapper.addView(checkDbButton);
 
+        Button queryPlanButton = new Button(context);
+        queryPlanButton.setText("Explain database query plans");
+        queryPlanButton.setOnClickListener(v -> {
+            queryPlanButton.setEnabled(false);
+            databaseManager.runReadAsync(databaseManager.explainQueryPlans(), report -> {
+                queryPlanButton.setEnabled(true);
+                showReport("DB Query Plans", report);
+            }, e -> {
+                queryPlanButton.setEnabled(true);
+                showReport("DB Query Plans", "Failed: " + e.getMessage());
+            });
+        });
+        wrapper.addView(queryPlanButton);
+
+        Button benchmarkButton = new Button(context);
+        benchmarkButton.setText("Benchmark database statements");
+        benchmarkButton.setOnClickListener(v -> {
+            benchmarkButton.setEnabled(false);
+            databaseManager.runTaskAsync(databaseManager.benchmarkStatements(), report -> {
+                benchmarkButton.setEnabled(true);
+                showReport("DB Statement Benchmark", report);
+            });
+        });
+        wrapper.addView(benchmarkButton);
+
         Button resetDbButton = new Button(context);
         resetDbButton.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -157,6 +169,23 @@ public class DeveloperSettingsController extends Controller {
         view.setBackgroundColor(getAttrColor(context, R.attr.backcolor));
     }
 
+    private void showReport(String title, String report) {
+        TextView tv = new TextView(context);
+        int p = (int) (context.getResources().getDisplayMetrics().density * 12);
+        tv.setPadding(p, p, p, p);
+        tv.setText(report);
+        tv.setTextSize(12f);
+        tv.setTypeface(android.graphics.Typeface.MONOSPACE);
+        ScrollView sv = new ScrollView(context);
+        sv.addView(tv);
+        AlertDialog dialog = new AlertDialog.Builder(context)
+                .setTitle(title)
+                .setView(sv)
+                .setPositiveButton("Close", null)
+                .show();
+        dialog.getWindow().getDecorView().setBackgroundColor(getAttrColor(context, R.attr.backcolor));
+    }
+
     private void setDbSummary() {
         String dbSummary = "";
         dbSummary += "Database summary:\n";
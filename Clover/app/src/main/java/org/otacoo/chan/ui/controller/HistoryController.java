@@ -53,7 +53,7 @@ import org.otacoo.chan.ui.view.ThumbnailView;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
+import java.util.concurrent.Callable;
 
 import javax.inject.Inject;
 
@@ -61,6 +61,9 @@ public class HistoryController extends Controller implements
         CompoundButton.OnCheckedChangeListener,
         ToolbarNavigationController.ToolbarSearchCallback {
     private static final int SEARCH_ID = 1;
+    private static final int PAGE_SIZE = 50;
+    // The next page is loaded when scrolled to within this many visits of the end.
+    private static final int LOAD_MORE_THRESHOLD = 10;
 
     @Inject
     DatabaseManager databaseManager;
@@ -105,7 +108,16 @@ public class HistoryController extends Controller implements
         crossfade = view.findViewById(R.id.crossfade);
         RecyclerView recyclerView = view.findViewById(R.id.recycler_view);
         recyclerView.setHasFixedSize(true);
-        recyclerView.setLayoutManager(new LinearLayoutManager(context));
+        LinearLayoutManager layoutManager = new LinearLayoutManager(context);
+        recyclerView.setLayoutManager(layoutManager);
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (layoutManager.findLastVisibleItemPosition() >= adapter.getItemCount() - LOAD_MORE_THRESHOLD) {
+                    adapter.loadMore();
+                }
+            }
+        });
 
         adapter = new HistoryAdapter();
         recyclerView.setAdapter(adapter);
@@ -125,8 +137,7 @@ public class HistoryController extends Controller implements
                 .setTitle(R.string.history_clear_confirm)
                 .setNegativeButton(R.string.cancel, null)
                 .setPositiveButton(R.string.history_clear_confirm_button, (dialog, which) -> {
-                    databaseManager.runTaskAsync(databaseHistoryManager.clearHistory());
-                    adapter.load();
+                    databaseManager.runTaskAsync(databaseHistoryManager.clearHistory(), result -> adapter.load());
                 })
                 .show();
     }
@@ -152,8 +163,8 @@ public class HistoryController extends Controller implements
     }
 
     private void deleteHistory(History history) {
-        databaseManager.runTask(databaseHistoryManager.removeHistory(history));
-        adapter.load();
+        databaseManager.runWriteAsync(databaseHistoryManager.removeHistory(history));
+        adapter.remove(history);
     }
 
     @Override
@@ -168,12 +179,14 @@ public class HistoryController extends Controller implements
         adapter.search(entered);
     }
 
-    private class HistoryAdapter extends RecyclerView.Adapter<HistoryCell> implements DatabaseManager.TaskResult<List<History>> {
-        private final List<History> sourceList = new ArrayList<>();
+    private class HistoryAdapter extends RecyclerView.Adapter<HistoryCell> {
         private final List<History> displayList = new ArrayList<>();
         private String searchQuery;
 
-        private boolean resultPending = false;
+        // Pages loaded for an earlier reload are dropped.
+        private int generation = 0;
+        private boolean loading = false;
+        private boolean endReached = false;
 
         public HistoryAdapter() {
             setHasStableIds(true);
@@ -207,39 +220,59 @@ public class HistoryController extends Controller implements
 
         public void search(String query) {
             this.searchQuery = query;
-            filter();
+            load();
         }
 
         private void load() {
-            if (!resultPending) {
-                resultPending = true;
-                databaseManager.runTaskAsync(databaseHistoryManager.getHistory(), this);
-            }
+            generation++;
+            loading = false;
+            endReached = false;
+            displayList.clear();
+            notifyDataSetChanged();
+            loadMore();
         }
 
-        @Override
-        public void onComplete(List<History> result) {
-            resultPending = false;
-            sourceList.clear();
-            sourceList.addAll(result);
-            crossfade.toggle(!sourceList.isEmpty(), true);
-            filter();
+        private void loadMore() {
+            if (loading || endReached) {
+                return;
+            }
+            loading = true;
+
+            int loadGeneration = generation;
+            History after = displayList.isEmpty() ? null : displayList.get(displayList.size() - 1);
+            Callable<List<History>> page = TextUtils.isEmpty(searchQuery)
+                    ? databaseHistoryManager.getHistory(after, PAGE_SIZE)
+                    : databaseHistoryManager.searchHistory(searchQuery, after, PAGE_SIZE);
+            // After the queued writes, so visited threads and deleted rows show up as they are.
+            databaseManager.runReadAfterWritesAsync(page, result -> {
+                if (loadGeneration != generation) {
+                    return;
+                }
+                loading = false;
+                endReached = result.size() < PAGE_SIZE;
+
+                int start = displayList.size();
+                displayList.addAll(result);
+                notifyItemRangeInserted(start, result.size());
+                if (start == 0 && TextUtils.isEmpty(searchQuery)) {
+                    crossfade.toggle(!displayList.isEmpty(), true);
+                }
+            }, e -> {
+                if (loadGeneration != generation) {
+                    return;
+                }
+                // Stop here instead of retrying on every scroll, a new load starts over.
+                loading = false;
+                endReached = true;
+            });
         }
 
-        private void filter() {
-            displayList.clear();
-            if (!TextUtils.isEmpty(searchQuery)) {
-                String query = searchQuery.toLowerCase(Locale.ENGLISH);
-                for (History history : sourceList) {
-                    if (history.loadable.title.toLowerCase(Locale.ENGLISH).contains(query)) {
-                        displayList.add(history);
-                    }
-                }
-            } else {
-                displayList.addAll(sourceList);
+        private void remove(History history) {
+            int position = displayList.indexOf(history);
+            if (position >= 0) {
+                displayList.remove(position);
+                notifyItemRemoved(position);
             }
-
-            notifyDataSetChanged();
         }
     }
 
@@ -60,7 +60,6 @@ import org.otacoo.chan.utils.Logger;
 
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashSet;
@@ -215,18 +214,32 @@ public class MainSettingsController extends SettingsController implements Settin
                 return;
             }
             Uri uri = result.getData();
-            try {
-                String json = SettingsBackupRestore.exportFull(databaseManager, AndroidUtils.getPreferences());
-                ContentResolver cr = context.getContentResolver();
-                try (OutputStream os = cr.openOutputStream(uri, "wt")) {
-                    if (os != null) {
-                        os.write(json.getBytes(StandardCharsets.UTF_8));
+            AlertDialog progressDialog = showProgressDialog(R.string.settings_backup_running);
+            SettingsBackupRestore.ProgressListener progress = progressListener(progressDialog, R.string.settings_backup_running);
+            new Thread(() -> {
+                boolean success;
+                try {
+                    ContentResolver cr = context.getContentResolver();
+                    try (OutputStream os = cr.openOutputStream(uri, "wt")) {
+                        if (os == null) {
+                            throw new Exception("Could not open file");
+                        }
+                        SettingsBackupRestore.exportFull(databaseManager, AndroidUtils.getPreferences(), os, progress);
                     }
+                    success = true;
+                } catch (Exception e) {
+                    Logger.e("MainSettingsController", "Backup failed", e);
+                    success = false;
                 }
-                AndroidUtils.showThemedSnackbar(view, R.string.settings_backup_success, Snackbar.LENGTH_SHORT);
-            } catch (Exception e) {
-                AndroidUtils.showThemedSnackbar(view, R.string.settings_backup_failed, Snackbar.LENGTH_SHORT);
-            }
+
+                final boolean succeeded = success;
+                AndroidUtils.runOnUiThread(() -> {
+                    progressDialog.dismiss();
+                    AndroidUtils.showThemedSnackbar(view,
+                            succeeded ? R.string.settings_backup_success : R.string.settings_backup_failed,
+                            Snackbar.LENGTH_SHORT);
+                });
+            }, "settings-backup").start();
         });
     }
 
@@ -258,34 +271,57 @@ public class MainSettingsController extends SettingsController implements Settin
                         }
                     }
                 }
+            } catch (Exception e) {
+                showRestoreFailed(e);
+                return;
+            }
 
-                StringBuilder sb = new StringBuilder();
-                try (InputStream is = cr.openInputStream(uri)) {
-                    if (is == null) {
-                        throw new Exception("Could not open file");
-                    }
-                    byte[] buf = new byte[8192];
-                    int n;
-                    while ((n = is.read(buf)) != -1) {
-                        sb.append(new String(buf, 0, n, StandardCharsets.UTF_8));
+            // The whole file is read to list what it contains, not on the main thread.
+            new Thread(() -> {
+                try {
+                    Set<String> availableKeys;
+                    try (InputStream is = context.getContentResolver().openInputStream(uri)) {
+                        if (is == null) {
+                            throw new Exception("Could not open file");
+                        }
+                        availableKeys = SettingsBackupRestore.getAvailableRestoreKeys(is);
                     }
+                    AndroidUtils.runOnUiThread(() -> showRestoreSelectionDialog(uri, availableKeys));
+                } catch (Exception e) {
+                    AndroidUtils.runOnUiThread(() -> showRestoreFailed(e));
                 }
-                String backupJson = sb.toString();
-                if (!backupJson.startsWith("{")) {
-                    throw new Exception("The selected file does not appear to be a valid Clover backup (expected a JSON file).");
-                }
-                Set<String> availableKeys = SettingsBackupRestore.getAvailableRestoreKeys(backupJson);
-                showRestoreSelectionDialog(backupJson, availableKeys);
-            } catch (Exception e) {
-                Logger.e("MainSettingsController", "Restore failed", e);
-                String msg = e.getMessage() != null ? e.getMessage() : context.getString(R.string.settings_restore_failed);
-                AndroidUtils.showThemedSnackbar(view, context.getString(R.string.settings_restore_failed) + ": " + msg, Snackbar.LENGTH_LONG);
+            }, "settings-restore-scan").start();
+        });
+    }
+
+    private void showRestoreFailed(Exception e) {
+        Logger.e("MainSettingsController", "Restore failed", e);
+        String msg = e.getMessage() != null ? e.getMessage() : context.getString(R.string.settings_restore_failed);
+        AndroidUtils.showThemedSnackbar(view, context.getString(R.string.settings_restore_failed) + ": " + msg, Snackbar.LENGTH_LONG);
+    }
+
+    private AlertDialog showProgressDialog(int messageRes) {
+        AlertDialog dialog = new AlertDialog.Builder(context)
+                .setMessage(messageRes)
+                .setCancelable(false)
+                .create();
+        dialog.setOnShowListener(d -> {
+            if (dialog.getWindow() != null) {
+                dialog.getWindow().getDecorView().setBackgroundColor(getAttrColor(context, R.attr.backcolor));
             }
         });
+        dialog.show();
+        return dialog;
+    }
+
+    private SettingsBackupRestore.ProgressListener progressListener(AlertDialog dialog, int messageRes) {
+        return (section, count) -> AndroidUtils.runOnUiThread(() -> dialog.setMessage(
+                context.getString(messageRes) + "\n"
+                        + context.getString(R.string.settings_backup_restore_progress, section, count)));
     }
 
     // Show a dialog to select which settings to restore.
-    private void showRestoreSelectionDialog(String backupJson, Set<String> availableKeys) {
+    private void showRestoreSelectionDialog(Uri uri, Set<String> availableKeys) {
         List<String> keyList = new ArrayList<>(availableKeys);
         List<String> displayNames = new ArrayList<>();
         boolean[] checkedItems = new boolean[keyList.size()];
@@ -309,7 +345,7 @@ public class MainSettingsController extends SettingsController implements Settin
                     selectedKeys.add(keyList.get(i));
                 }
             }
-            performRestore(backupJson, selectedKeys);
+            performRestore(uri, selectedKeys);
         });
         
         builder.setNegativeButton(android.R.string.cancel, null);
@@ -346,20 +382,33 @@ public class MainSettingsController extends SettingsController implements Settin
     }
     
     // Perform the actual restore with selected keys.
-    private void performRestore(String backupJson, Set<String> selectedKeys) {
-        try {
-            SettingsBackupRestore.importFull(databaseManager, AndroidUtils.getPreferences(), backupJson, selectedKeys);
-            ChanSettings.reloadProxy();
-            AndroidUtils.showThemedSnackbar(view, R.string.settings_restore_success, Snackbar.LENGTH_LONG);
-            StartActivity startActivity = getStartActivity(context);
-            if (startActivity != null) {
-                startActivity.restartApp();
+    private void performRestore(Uri uri, Set<String> selectedKeys) {
+        AlertDialog progressDialog = showProgressDialog(R.string.settings_restore_running);
+        SettingsBackupRestore.ProgressListener progress = progressListener(progressDialog, R.string.settings_restore_running);
+        new Thread(() -> {
+            try {
+                try (InputStream is = context.getContentResolver().openInputStream(uri)) {
+                    if (is == null) {
+                        throw new Exception("Could not open file");
+                    }
+                    SettingsBackupRestore.importFull(databaseManager, AndroidUtils.getPreferences(), is, selectedKeys, progress);
+                }
+                AndroidUtils.runOnUiThread(() -> {
+                    progressDialog.dismiss();
+                    ChanSettings.reloadProxy();
+                    AndroidUtils.showThemedSnackbar(view, R.string.settings_restore_success, Snackbar.LENGTH_LONG);
+                    StartActivity startActivity = getStartActivity(context);
+                    if (startActivity != null) {
+                        startActivity.restartApp();
+                    }
+                });
+            } catch (Exception e) {
+                AndroidUtils.runOnUiThread(() -> {
+                    progressDialog.dismiss();
+                    showRestoreFailed(e);
+                });
             }
-        } catch (Exception e) {
-            Logger.e("MainSettingsController", "Restore failed", e);
-            String msg = e.getMessage() != null ? e.getMessage() : context.getString(R.string.settings_restore_failed);
-            AndroidUtils.showThemedSnackbar(view, context.getString(R.string.settings_restore_failed) + ": " + msg, Snackbar.LENGTH_LONG);
-        }
+        }, "settings-restore").start();
     }
 
     // Unwraps context (e.g. ContextWrapper) to find StartActivity so restore can trigger restart.
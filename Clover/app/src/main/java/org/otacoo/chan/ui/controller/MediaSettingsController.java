@@ -29,6 +29,7 @@ import android.content.Intent;
 import com.google.android.material.snackbar.Snackbar;
 
 import org.otacoo.chan.R;
+import org.otacoo.chan.core.cache.FileCache;
 import org.otacoo.chan.core.presenter.StorageSetupPresenter;
 import org.otacoo.chan.core.settings.ChanSettings;
 import org.otacoo.chan.ui.activity.ImagePickDelegate;
@@ -53,6 +54,9 @@ public class MediaSettingsController extends SettingsController implements
     @Inject
     private StorageSetupPresenter presenter;
 
+    @Inject
+    private FileCache fileCache;
+
     // Special setting views
     private LinkSettingView saveLocation;
     private LinkSettingView attachmentPickerDefault;
@@ -259,6 +263,42 @@ public class MediaSettingsController extends SettingsController implements
 
             groups.add(loading);
         }
+
+        // Cache group
+        {
+            SettingsGroup cache = new SettingsGroup(R.string.settings_group_media_cache);
+
+            for (FileCache.Pool pool : FileCache.Pool.values()) {
+                int name = switch (pool) {
+                    case IMAGES -> R.string.setting_cache_pool_images;
+                    case ANIMATED -> R.string.setting_cache_pool_animated;
+                    case VIDEO -> R.string.setting_cache_pool_video;
+                    case OTHER -> R.string.setting_cache_pool_other;
+                };
+
+                LinkSettingView[] poolView = new LinkSettingView[1];
+                poolView[0] = (LinkSettingView) cache.add(new LinkSettingView(this,
+                        getString(name), getPoolUsageDescription(pool),
+                        v -> {
+                            fileCache.clearCache(pool);
+                            poolView[0].setDescription(getPoolUsageDescription(pool));
+                        }));
+            }
+
+            cache.add(new IntegerSettingView(this,
+                    ChanSettings.thumbnailCacheSize,
+                    R.string.setting_thumbnail_cache_size,
+                    R.string.setting_thumbnail_cache_size,
+                    R.string.setting_thumbnail_cache_size_description, 20, 1000));
+
+            groups.add(cache);
+        }
+    }
+
+    private String getPoolUsageDescription(FileCache.Pool pool) {
+        return context.getString(R.string.setting_cache_pool_usage,
+                AndroidUtils.getReadableFileSize(fileCache.getPoolUsage(pool)),
+                AndroidUtils.getReadableFileSize(fileCache.getPoolMaxSize(pool)));
     }
 
     private void setupMediaLoadTypesSetting(SettingsGroup loading) {
@@ -300,6 +340,22 @@ public class MediaSettingsController extends SettingsController implements
             R.string.setting_load_external_media_links,
             R.string.setting_load_external_media_links_description));
 
+        loading.add(new BooleanSettingView(this,
+                ChanSettings.segmentedDownloads,
+                R.string.setting_segmented_downloads,
+                R.string.setting_segmented_downloads_description));
+
+        loading.add(new IntegerSettingView(this,
+                ChanSettings.imagePreloadAhead,
+                R.string.setting_image_preload_ahead,
+                R.string.setting_image_preload_ahead,
+                R.string.setting_image_preload_ahead_description, 0, 10));
+
+        loading.add(new IntegerSettingView(this,
+                ChanSettings.imagePreloadBehind,
+                R.string.setting_image_preload_behind,
+                R.string.setting_image_preload_behind,
+                R.string.setting_image_preload_behind_description, 0, 10));
 
         updateVideoLoadModes();
         updateGestures();
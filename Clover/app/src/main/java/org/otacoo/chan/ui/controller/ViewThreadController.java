@@ -36,9 +36,11 @@ import org.otacoo.chan.R;
 import org.otacoo.chan.controller.Controller;
 import org.otacoo.chan.controller.NavigationController;
 import org.otacoo.chan.core.manager.WatchManager;
+import org.otacoo.chan.core.model.ChanThread;
 import org.otacoo.chan.core.model.orm.Loadable;
 import org.otacoo.chan.core.model.orm.Pin;
 import org.otacoo.chan.core.presenter.ThreadPresenter;
+import org.otacoo.chan.core.saver.ThreadArchiver;
 import org.otacoo.chan.core.settings.ChanSettings;
 import org.otacoo.chan.core.site.sites.chan4.Chan4;
 import org.otacoo.chan.ui.helper.HintPopup;
@@ -58,6 +60,9 @@ public class ViewThreadController extends ThreadController implements ThreadLayo
     @Inject
     WatchManager watchManager;
 
+    @Inject
+    ThreadArchiver threadArchiver;
+
     private boolean pinItemPinned = false;
     private Loadable loadable;
 
@@ -100,6 +105,7 @@ public class ViewThreadController extends ThreadController implements ThreadLayo
         menuOverflowBuilder
                 .withSubItem(R.string.thread_view_my_posts, this::showMyPosts)
                 .withSubItem(R.string.action_share, this::shareClicked)
+                .withSubItem(R.string.thread_archive, this::archiveClicked)
                 .withSubItem(R.string.action_scroll_to_top, this::upClicked)
                 .withSubItem(R.string.action_scroll_to_bottom, this::downClicked)
                 .build()
@@ -171,6 +177,15 @@ public class ViewThreadController extends ThreadController implements ThreadLayo
         AndroidUtils.shareLink(link);
     }
 
+    private void archiveClicked(ToolbarMenuSubItem item) {
+        ChanThread thread = threadLayout.getPresenter().getChanThread();
+        if (thread == null) {
+            AndroidUtils.showThemedSnackbar(view, R.string.thread_archive_not_loaded, Snackbar.LENGTH_SHORT);
+            return;
+        }
+        threadArchiver.archive(thread);
+    }
+
     private void upClicked(ToolbarMenuSubItem item) {
         threadLayout.getPresenter().scrollTo(0, false);
     }
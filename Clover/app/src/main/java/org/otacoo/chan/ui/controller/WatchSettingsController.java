@@ -28,6 +28,7 @@ import org.otacoo.chan.R;
 import org.otacoo.chan.core.settings.ChanSettings;
 import org.otacoo.chan.ui.notification.ThreadWatchNotifications;
 import org.otacoo.chan.ui.settings.BooleanSettingView;
+import org.otacoo.chan.ui.settings.IntegerSettingView;
 import org.otacoo.chan.ui.settings.LinkSettingView;
 import org.otacoo.chan.ui.settings.ListSettingView;
 import org.otacoo.chan.ui.settings.SettingView;
@@ -161,6 +162,28 @@ public class WatchSettingsController extends SettingsController {
 
         groups.add(threadWatcher);
 
+        SettingsGroup prefetch = new SettingsGroup(R.string.setting_watch_prefetch);
+
+        List<ListSettingView.Item<?>> prefetchModes = new ArrayList<>();
+        for (ChanSettings.WatchPrefetchMode mode : ChanSettings.WatchPrefetchMode.values()) {
+            int name = switch (mode) {
+                case NONE -> R.string.setting_watch_prefetch_none;
+                case THUMBNAILS -> R.string.setting_watch_prefetch_thumbnails;
+                case ALL -> R.string.setting_watch_prefetch_all;
+            };
+            prefetchModes.add(new ListSettingView.Item<>(getString(name), mode));
+        }
+        prefetch.add(new ListSettingView<>(this, ChanSettings.watchPrefetch, R.string.setting_watch_prefetch, prefetchModes));
+
+        prefetch.add(new BooleanSettingView(this, ChanSettings.watchPrefetchOnlyCharging,
+                R.string.setting_watch_prefetch_only_charging, R.string.setting_watch_prefetch_only_charging_description));
+
+        prefetch.add(new IntegerSettingView(this, ChanSettings.watchPrefetchBudget,
+                R.string.setting_watch_prefetch_budget, R.string.setting_watch_prefetch_budget,
+                R.string.setting_watch_prefetch_budget_description, 0, 1000));
+
+        groups.add(prefetch);
+
         SettingsGroup threads = new SettingsGroup(R.string.settings_group_threads);
 
         threads.add(new BooleanSettingView(this, ChanSettings.highlightOpenThread,
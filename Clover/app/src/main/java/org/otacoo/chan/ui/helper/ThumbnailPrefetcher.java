@@ -0,0 +1,233 @@
+/*
+ * Clover - 4chan browser https://github.com/Floens/Clover/
+ * Copyright (C) 2014  Floens
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.otacoo.chan.ui.helper;
+
+import static org.otacoo.chan.Chan.injector;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import androidx.annotation.MainThread;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import org.otacoo.chan.core.cache.DownloadPriority;
+import org.otacoo.chan.core.cache.FileCache;
+import org.otacoo.chan.core.cache.ImagePipeline;
+import org.otacoo.chan.core.model.PostImage;
+import org.otacoo.chan.ui.view.PostImageThumbnailView;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the thumbnails of the posts a list is scrolling towards, before their cells are bound.
+ * <p>
+ * The number of posts ahead follows the scroll speed: enough to cover about a second of
+ * scrolling, less when the network can't download that many thumbnails in that time. The
+ * thumbnails are loaded with {@link DownloadPriority#PRELOAD}, behind the thumbnails on screen,
+ * and loads for posts that are on screen, scrolled past or too far ahead are cancelled.
+ */
+@MainThread
+public class ThumbnailPrefetcher {
+    private static final long LOOKAHEAD_MS = 1000;
+    private static final int MIN_PREFETCH = 2;
+    private static final int MAX_PREFETCH = 30;
+    private static final long AVERAGE_THUMBNAIL_SIZE = 20 * 1024;
+    // Scroll events further apart than this start a new scroll.
+    private static final long SCROLL_GAP_MS = 200;
+
+    private final RecyclerView recyclerView;
+    private final Callback callback;
+    private final ImagePipeline imagePipeline;
+    private final FileCache fileCache;
+
+    private final Map<String, Prefetch> prefetches = new HashMap<>();
+
+    // Pixels per second, negative when scrolling up.
+    private float velocity;
+    private boolean scrollingUp;
+    private long lastScrollTime;
+
+    public ThumbnailPrefetcher(RecyclerView recyclerView, Callback callback) {
+        this.recyclerView = recyclerView;
+        this.callback = callback;
+        imagePipeline = injector().instance(ImagePipeline.class);
+        fileCache = injector().instance(FileCache.class);
+    }
+
+    public void onScrolled(int dy) {
+        if (dy == 0) {
+            return;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        long elapsed = now - lastScrollTime;
+        lastScrollTime = now;
+        if (elapsed > 0 && elapsed < SCROLL_GAP_MS) {
+            velocity = (velocity + dy * 1000f / elapsed) / 2f;
+        } else {
+            velocity = 0f;
+        }
+        scrollingUp = dy < 0;
+
+        update();
+    }
+
+    public void onScrollStateChanged(int newState) {
+        if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+            // Only keep the few posts next to the screen.
+            velocity = 0f;
+            update();
+        }
+    }
+
+    /**
+     * Cancel all prefetches, for when the posts in the list change.
+     */
+    public void clear() {
+        for (Prefetch prefetch : prefetches.values()) {
+            prefetch.cancel();
+        }
+        prefetches.clear();
+        velocity = 0f;
+    }
+
+    private void update() {
+        if (!(recyclerView.getLayoutManager() instanceof LinearLayoutManager layoutManager)) {
+            return;
+        }
+
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION || last == RecyclerView.NO_POSITION || recyclerView.getHeight() == 0) {
+            return;
+        }
+
+        int count = getPrefetchCount(last - first + 1);
+        int from;
+        int to;
+        if (scrollingUp) {
+            from = Math.max(0, first - count);
+            to = first - 1;
+        } else {
+            from = last + 1;
+            to = Math.min(last + count, recyclerView.getAdapter().getItemCount() - 1);
+        }
+
+        for (Iterator<Prefetch> iterator = prefetches.values().iterator(); iterator.hasNext(); ) {
+            Prefetch prefetch = iterator.next();
+            if (prefetch.position < from || prefetch.position > to) {
+                prefetch.cancel();
+                iterator.remove();
+            }
+        }
+
+        // The same size the cells bind with, so the prefetched bitmaps are found in memory.
+        int width = callback.getPrefetchImageWidth();
+        int height = callback.getPrefetchImageHeight();
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        // Nearest posts first, they are needed first.
+        for (int i = 0; i <= to - from; i++) {
+            int position = scrollingUp ? to - i : from + i;
+            for (PostImage image : callback.getPrefetchImages(position)) {
+                String url = PostImageThumbnailView.getUrl(image);
+                if (url != null && !prefetches.containsKey(url)) {
+                    prefetch(url, position, width, height);
+                }
+            }
+        }
+    }
+
+    private int getPrefetchCount(int visibleCount) {
+        // The posts passing by in the lookahead time, estimated from the posts on screen.
+        float postsPerPixel = visibleCount / (float) recyclerView.getHeight();
+        int count = Math.round(Math.abs(velocity) * postsPerPixel * LOOKAHEAD_MS / 1000f);
+
+        // On slow networks, only what can be downloaded in the lookahead time.
+        long throughput = fileCache.getThroughput();
+        if (throughput > 0) {
+            count = (int) Math.min(count, throughput * LOOKAHEAD_MS / 1000 / AVERAGE_THUMBNAIL_SIZE);
+        }
+
+        return Math.max(MIN_PREFETCH, Math.min(MAX_PREFETCH, count));
+    }
+
+    private void prefetch(String url, int position, int width, int height) {
+        Prefetch prefetch = new Prefetch(position);
+        prefetch.request = imagePipeline.request(url, width, height, false, DownloadPriority.PRELOAD,
+                new ImagePipeline.Listener() {
+                    @Override
+                    public void onImage(Bitmap bitmap) {
+                        prefetches.remove(url, prefetch);
+                    }
+
+                    @Override
+                    public void onFailure(int code) {
+                        prefetches.remove(url, prefetch);
+                    }
+
+                    @Override
+                    public boolean tracksBitmap() {
+                        // Only loaded into the memory cache, not used here.
+                        return true;
+                    }
+                });
+
+        // Null when it was in memory already.
+        if (prefetch.request != null) {
+            prefetches.put(url, prefetch);
+        }
+    }
+
+    private static class Prefetch {
+        private final int position;
+        private ImagePipeline.ImageRequest request;
+
+        private Prefetch(int position) {
+            this.position = position;
+        }
+
+        private void cancel() {
+            if (request != null) {
+                request.cancel();
+            }
+        }
+    }
+
+    public interface Callback {
+        /**
+         * @return the images shown as thumbnails at the adapter position.
+         */
+        List<PostImage> getPrefetchImages(int position);
+
+        /**
+         * @return the width the thumbnails are bound with, or 0 when not known yet.
+         */
+        int getPrefetchImageWidth();
+
+        /**
+         * @return the height the thumbnails are bound with, or 0 when not known yet.
+         */
+        int getPrefetchImageHeight();
+    }
+}
@@ -83,6 +83,7 @@ import org.otacoo.chan.ui.view.FloatingMenuItem;
 import org.otacoo.chan.ui.view.LoadView;
 import org.otacoo.chan.ui.view.SelectionListeningEditText;
 import org.otacoo.chan.utils.AndroidUtils;
+import org.otacoo.chan.utils.BackgroundUtils;
 import org.otacoo.chan.utils.ImageDecoder;
 
 import java.io.File;
@@ -160,6 +161,8 @@ public class ReplyLayout extends LoadView implements
     private View previewSpacerRight;
     private ImageView preview;
     private TextView previewMessage;
+    // Decodes of the previews shown, cancelled when they are replaced.
+    private final List<BackgroundUtils.Cancelable> previewDecodes = new ArrayList<>();
     private ImageView attach;
     private ImageView more;
     private ImageView submit;
@@ -432,6 +435,7 @@ public class ReplyLayout extends LoadView implements
     }
 
     public void cleanup() {
+        cancelPreviewDecodes();
         presenter.unbindLoadable();
         removeCallbacks(closeMessageRunnable);
     }
@@ -988,6 +992,7 @@ public class ReplyLayout extends LoadView implements
 
     @Override
     public void openPreview(boolean show, File previewFile) {
+        cancelPreviewDecodes();
         if (show) {
             theme().clearDrawable.apply(attach);
         } else {
@@ -1013,7 +1018,7 @@ public class ReplyLayout extends LoadView implements
             previewHolder.addView(preview);
             previewHolder.addView(previewSpacerRight);
             
-            ImageDecoder.decodeFileOnBackgroundThread(previewFile, dp(400), dp(300), this);
+            decodeImageAsync(previewFile, dp(400), dp(300), this);
         } else {
             // Restore preview view to its original container if it was moved
             if (previewHolder.getParent() != null && previewHolder.getParent() != previewScroll) {
@@ -1044,6 +1049,7 @@ public class ReplyLayout extends LoadView implements
 
     @Override
     public void openFileAttachments(List<Reply.FileAttachment> attachments, int currentCount, int maxCount) {
+        cancelPreviewDecodes();
         currentAttachments = new ArrayList<>(attachments);
         currentAttachmentMaxCount = maxCount;
 
@@ -1299,7 +1305,14 @@ public class ReplyLayout extends LoadView implements
      */
     private void decodeImageAsync(File file, int reqWidth, int reqHeight,
                                   ImageDecoder.ImageDecoderCallback callback) {
-        ImageDecoder.decodeFileOnBackgroundThread(file, reqWidth, reqHeight, callback);
+        previewDecodes.add(ImageDecoder.decodeFileOnBackgroundThread(file, reqWidth, reqHeight, callback));
+    }
+
+    private void cancelPreviewDecodes() {
+        for (BackgroundUtils.Cancelable decode : previewDecodes) {
+            decode.cancel();
+        }
+        previewDecodes.clear();
     }
 
     @Override
@@ -807,7 +807,7 @@ public class ThreadLayout extends CoordinatorLayout implements
     @Override
     public void hidePost(Post post) {
         final ThreadHide threadHide = ThreadHide.fromPost(post);
-        databaseManager.runTaskAsync(
+        databaseManager.runWriteAsync(
                 databaseManager.getDatabaseHideManager().addThreadHide(threadHide));
 
         presenter.refreshUI();
@@ -815,7 +815,7 @@ public class ThreadLayout extends CoordinatorLayout implements
         String message = getString(post.isOP ? R.string.thread_hidden : R.string.post_hidden);
         Snackbar snackbar = Snackbar.make(this, message, Snackbar.LENGTH_LONG);
         snackbar.setAction(R.string.undo, v -> {
-            databaseManager.runTaskAsync(
+            databaseManager.runWriteAsync(
                     databaseManager.getDatabaseHideManager().removeThreadHide(threadHide));
             presenter.refreshUI();
         });
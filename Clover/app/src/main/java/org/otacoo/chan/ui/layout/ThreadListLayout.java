@@ -56,10 +56,12 @@ import org.otacoo.chan.core.site.http.Reply;
 import org.otacoo.chan.core.site.sites.chan4.Chan4;
 import org.otacoo.chan.ui.adapter.PostAdapter;
 import org.otacoo.chan.ui.adapter.PostsFilter;
+import org.otacoo.chan.ui.cell.CardPostCell;
 import org.otacoo.chan.ui.cell.PostCell;
 import org.otacoo.chan.ui.cell.PostCellInterface;
 import org.otacoo.chan.ui.cell.PostStubCell;
 import org.otacoo.chan.ui.cell.ThreadStatusCell;
+import org.otacoo.chan.ui.helper.ThumbnailPrefetcher;
 import org.otacoo.chan.ui.toolbar.Toolbar;
 import org.otacoo.chan.ui.view.FastScroller;
 import org.otacoo.chan.ui.view.FastScrollerHelper;
@@ -68,13 +70,14 @@ import org.otacoo.chan.utils.AndroidUtils;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
 /**
  * A layout that wraps around a {@link RecyclerView} and a {@link ReplyLayout} to manage showing and replying to posts.
  */
-public class ThreadListLayout extends FrameLayout implements ReplyLayout.ReplyLayoutCallback {
+public class ThreadListLayout extends FrameLayout implements ReplyLayout.ReplyLayoutCallback, ThumbnailPrefetcher.Callback {
     public static final int MAX_SMOOTH_SCROLL_DISTANCE = 20;
     private static final long SCROLL_SAVE_DELAY = 250;
 
@@ -84,6 +87,7 @@ public class ThreadListLayout extends FrameLayout implements ReplyLayout.ReplyLa
     private RecyclerView.LayoutManager layoutManager;
     private FastScroller fastScroller;
     private PostAdapter postAdapter;
+    private ThumbnailPrefetcher thumbnailPrefetcher;
     private ChanThread showingThread;
     private ThreadListLayoutPresenterCallback callback;
     private ThreadListLayoutCallback threadListLayoutCallback;
@@ -128,6 +132,13 @@ public class ThreadListLayout extends FrameLayout implements ReplyLayout.ReplyLa
         public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
             onRecyclerViewScrolled(dy);
         }
+
+        @Override
+        public void onScrollStateChanged(@NonNull RecyclerView recyclerView, int newState) {
+            if (showingThread != null) {
+                thumbnailPrefetcher.onScrollStateChanged(newState);
+            }
+        }
     };
 
     public ThreadListLayout(Context context, AttributeSet attrs) {
@@ -158,6 +169,7 @@ public class ThreadListLayout extends FrameLayout implements ReplyLayout.ReplyLa
 
         postAdapter = new PostAdapter(recyclerView, postAdapterCallback, postCellCallback, statusCellCallback);
         recyclerView.setAdapter(postAdapter);
+        thumbnailPrefetcher = new ThumbnailPrefetcher(recyclerView, this);
         recyclerView.addOnScrollListener(scrollListener);
         reply.addOnLayoutChangeListener((v, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) -> {
             if (replyOpen && bottom - top != oldBottom - oldTop) {
@@ -206,6 +218,8 @@ public class ThreadListLayout extends FrameLayout implements ReplyLayout.ReplyLa
                 }
             }
 
+            thumbnailPrefetcher.onScrolled(dy);
+
             threadListLayoutCallback.onScrolling(dy);
         }
     }
@@ -335,6 +349,8 @@ public class ThreadListLayout extends FrameLayout implements ReplyLayout.ReplyLa
 
         final boolean wasAtBottom = !initial && !threadChanged && scrolledToBottom();
 
+        // The positions of the prefetched posts may change.
+        thumbnailPrefetcher.clear();
         postAdapter.setThread(thread, filter, threadLastViewed);
 
         recyclerView.getViewTreeObserver().addOnPreDrawListener(new android.view.ViewTreeObserver.OnPreDrawListener() {
@@ -577,6 +593,7 @@ public class ThreadListLayout extends FrameLayout implements ReplyLayout.ReplyLa
     }
 
     public void cleanup() {
+        thumbnailPrefetcher.clear();
         postAdapter.cleanup();
         reply.cleanup();
         openReply(false);
@@ -587,6 +604,54 @@ public class ThreadListLayout extends FrameLayout implements ReplyLayout.ReplyLa
         noParty();
     }
 
+    @Override
+    public List<PostImage> getPrefetchImages(int position) {
+        List<Post> posts = postAdapter.getDisplayList();
+        int postPosition = postAdapter.getPostPosition(position);
+        if (ChanSettings.textOnly.get() || postPosition < 0 || postPosition >= posts.size()) {
+            return Collections.emptyList();
+        }
+
+        Post post = posts.get(postPosition);
+        if (post.images.isEmpty() || post.fileDeleted || post.deleted.get()) {
+            return Collections.emptyList();
+        }
+        // Cards only show the first image.
+        return postViewMode == ChanSettings.PostViewMode.CARD ? Collections.singletonList(post.image()) : post.images;
+    }
+
+    @Override
+    public int getPrefetchImageWidth() {
+        if (postViewMode == ChanSettings.PostViewMode.CARD) {
+            CardPostCell card = findLaidOutCard();
+            return card == null ? 0 : card.getThumbnailWidth();
+        }
+        return PostCell.getThumbnailSize();
+    }
+
+    @Override
+    public int getPrefetchImageHeight() {
+        if (postViewMode == ChanSettings.PostViewMode.CARD) {
+            CardPostCell card = findLaidOutCard();
+            return card == null ? 0 : card.getThumbnailHeight();
+        }
+        return PostCell.getThumbnailSize();
+    }
+
+    /**
+     * All cards have the same width and thumbnail ratio, so the thumbnail of any card on screen
+     * has the size the next cards bind their thumbnails with.
+     */
+    private CardPostCell findLaidOutCard() {
+        for (int i = 0; i < recyclerView.getChildCount(); i++) {
+            View child = recyclerView.getChildAt(i);
+            if (child instanceof CardPostCell card && card.getThumbnailWidth() > 0) {
+                return card;
+            }
+        }
+        return null;
+    }
+
     public List<Post> getDisplayingPosts() {
         return postAdapter.getDisplayList();
     }
@@ -39,6 +39,7 @@ import org.otacoo.chan.core.settings.Setting;
 public class IntegerSettingView extends SettingView implements View.OnClickListener {
     private final Setting<Integer> setting;
     private final String dialogTitle;
+    private final String description;
     private final int minValue;
     private final int maxValue;
 
@@ -54,10 +55,19 @@ public class IntegerSettingView extends SettingView implements View.OnClickListe
         this(settingsController, setting, getString(name), getString(dialogTitle), minValue, maxValue);
     }
 
+    public IntegerSettingView(SettingsController settingsController, Setting<Integer> setting, int name, int dialogTitle, int description, int minValue, int maxValue) {
+        this(settingsController, setting, getString(name), getString(dialogTitle), getString(description), minValue, maxValue);
+    }
+
     public IntegerSettingView(SettingsController settingsController, Setting<Integer> setting, String name, String dialogTitle, int minValue, int maxValue) {
+        this(settingsController, setting, name, dialogTitle, null, minValue, maxValue);
+    }
+
+    public IntegerSettingView(SettingsController settingsController, Setting<Integer> setting, String name, String dialogTitle, String description, int minValue, int maxValue) {
         super(settingsController, name);
         this.setting = setting;
         this.dialogTitle = dialogTitle;
+        this.description = description;
         this.minValue = minValue;
         this.maxValue = maxValue;
     }
@@ -70,7 +80,11 @@ public class IntegerSettingView extends SettingView implements View.OnClickListe
 
     @Override
     public String getBottomDescription() {
-        return setting.get() != null ? setting.get().toString() : null;
+        String value = setting.get() != null ? setting.get().toString() : null;
+        if (description == null) {
+            return value;
+        }
+        return value != null ? description + ": " + value : description;
     }
 
     @Override
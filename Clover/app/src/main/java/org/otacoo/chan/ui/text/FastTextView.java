@@ -36,6 +36,7 @@ import android.view.MotionEvent;
 import android.view.View;
 
 import org.otacoo.chan.R;
+import org.otacoo.chan.core.cache.MemoryPolicy;
 import org.otacoo.chan.utils.Logger;
 
 /**
@@ -44,7 +45,7 @@ import org.otacoo.chan.utils.Logger;
  */
 public class FastTextView extends View {
     private static final String TAG = "FastTextView";
-    private static LruCache<FastTextViewItem, StaticLayout> textCache = new LruCache<>(250);
+    private static LruCache<FastTextViewItem, StaticLayout> textCache = new LruCache<>(MemoryPolicy.getTextCacheSize());
 
     private TextPaint paint;
     private boolean singleLine;
@@ -56,6 +57,15 @@ public class FastTextView extends View {
     private int width;
     private FastTextViewMovementMethod movementMethod;
 
+    /**
+     * Drop cached layouts, see {@link MemoryPolicy#getRetainedFraction(int)}.
+     */
+    public static void trimMemory(float retained) {
+        if (retained < 1f) {
+            textCache.trimToSize((int) (textCache.maxSize() * retained));
+        }
+    }
+
     public FastTextView(Context context) {
         this(context, null);
     }
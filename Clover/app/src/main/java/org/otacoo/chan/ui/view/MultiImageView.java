@@ -25,7 +25,6 @@ import android.content.Context;
 import android.content.ContextWrapper;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.BlendMode;
 import android.graphics.BlendModeColorFilter;
 import android.graphics.Canvas;
@@ -69,16 +68,23 @@ import androidx.media3.exoplayer.SeekParameters;
 import androidx.media3.exoplayer.mediacodec.MediaCodecInfo;
 import androidx.media3.exoplayer.mediacodec.MediaCodecSelector;
 import androidx.media3.exoplayer.source.DefaultMediaSourceFactory;
+import androidx.media3.exoplayer.source.MediaSource;
+import androidx.media3.exoplayer.source.ProgressiveMediaSource;
 import androidx.media3.extractor.DefaultExtractorsFactory;
+import androidx.media3.extractor.mkv.MatroskaExtractor;
 import androidx.media3.ui.PlayerView;
 
 import com.google.android.material.snackbar.Snackbar;
 
+import org.otacoo.chan.Chan;
 import org.otacoo.chan.R;
 import org.otacoo.chan.core.cache.FileCache;
+import org.otacoo.chan.core.cache.FileCacheDataSource;
 import org.otacoo.chan.core.cache.FileCacheDownloader;
 import org.otacoo.chan.core.cache.FileCacheListener;
 import org.otacoo.chan.core.cache.FileCacheProvider;
+import org.otacoo.chan.core.cache.ImagePipeline;
+import org.otacoo.chan.core.cache.MemoryPolicy;
 import org.otacoo.chan.core.model.PostImage;
 import org.otacoo.chan.core.settings.ChanSettings;
 import org.otacoo.chan.utils.AndroidUtils;
@@ -95,14 +101,10 @@ import java.util.Locale;
 
 import javax.inject.Inject;
 
-import okhttp3.Call;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
-import okhttp3.ResponseBody;
 import com.github.penfeizhou.animation.apng.APNGDrawable;
 import com.github.penfeizhou.animation.loader.FileLoader;
 
+import de.greenrobot.event.EventBus;
 import pl.droidsonroids.gif.GifDrawable;
 import pl.droidsonroids.gif.GifImageView;
 
@@ -127,10 +129,15 @@ public class MultiImageView extends FrameLayout implements View.OnClickListener,
     private Mode mode = Mode.UNLOADED;
 
     private boolean hasContent = false;
-    private Call thumbnailCall;
+    // The gif was released to free memory while the ui was hidden, load it again when shown.
+    private boolean gifReleased = false;
+    private ImagePipeline.ImageRequest thumbnailRequest;
     private FileCacheDownloader bigImageRequest;
     private FileCacheDownloader gifRequest;
     private FileCacheDownloader videoRequest;
+    // The download the player is reading from while it is still in progress.
+    private FileCacheDownloader streamingVideo;
+    private boolean pendingWebViewFallback = false;
 
     private PlayerView exoPlayerView;
     private View playerRoot;
@@ -293,7 +300,7 @@ public class MultiImageView extends FrameLayout implements View.OnClickListener,
             this.mode = newMode;
 
             if (newMode == Mode.MOVIE) {
-                setVideo(postImage.imageUrl.toString());
+                setVideo(postImage);
             } else if (newMode == Mode.OTHER) {
                 setOther(postImage.imageUrl.toString());
             } else {
@@ -314,10 +321,10 @@ public class MultiImageView extends FrameLayout implements View.OnClickListener,
                             setThumbnail(url, center);
                             break;
                         case BIGIMAGE:
-                            setBigImage(postImage.imageUrl.toString());
+                            setBigImage(postImage);
                             break;
                         case GIF:
-                            setGif(postImage.imageUrl.toString());
+                            setGif(postImage);
                             break;
                     }
                     return true;
@@ -374,6 +381,16 @@ public class MultiImageView extends FrameLayout implements View.OnClickListener,
         return null;
     }
 
+    @Override
+    public void onStart(@NonNull LifecycleOwner owner) {
+        if (gifReleased) {
+            gifReleased = false;
+            if (mode == Mode.GIF) {
+                setGif(postImage);
+            }
+        }
+    }
+
     @Override
     public void onPause(@NonNull LifecycleOwner owner) {
         if (exoPlayer != null) {
@@ -493,6 +510,9 @@ public class MultiImageView extends FrameLayout implements View.OnClickListener,
         if (attachedLifecycleOwner != null) {
             attachedLifecycleOwner.getLifecycle().addObserver(this);
         }
+        if (!EventBus.getDefault().isRegistered(this)) {
+            EventBus.getDefault().register(this);
+        }
     }
 
     @Override
@@ -502,9 +522,27 @@ public class MultiImageView extends FrameLayout implements View.OnClickListener,
             attachedLifecycleOwner.getLifecycle().removeObserver(this);
             attachedLifecycleOwner = null;
         }
+        if (EventBus.getDefault().isRegistered(this)) {
+            EventBus.getDefault().unregister(this);
+        }
         cleanup();
     }
 
+    public void onEventMainThread(Chan.TrimMemoryMessage message) {
+        if (mode != Mode.GIF || !MemoryPolicy.shouldReleaseHiddenImages(message.level)) {
+            return;
+        }
+
+        // Gif frames are uncompressed and can be large, the file is still on disk.
+        GifImageView gif = findGifImageView();
+        if (gif != null && gif.getDrawable() instanceof GifDrawable drawable) {
+            Logger.i(TAG, "Releasing gif while the ui is hidden");
+            removeView(gif);
+            drawable.recycle();
+            gifReleased = true;
+        }
+    }
+
     private void setThumbnail(String thumbnailUrl, boolean center) {
         if (thumbnailUrl == null) {
             AndroidUtils.runOnUiThread(() -> {
@@ -532,54 +570,33 @@ public class MultiImageView extends FrameLayout implements View.OnClickListener,
             return;
         }
 
-        if (thumbnailCall != null) {
+        if (thumbnailRequest != null) {
             return;
         }
 
-        OkHttpClient client = injector().instance(OkHttpClient.class);
-        Request request = new Request.Builder().url(thumbnailUrl).build();
-        thumbnailCall = client.newCall(request);
-        thumbnailCall.enqueue(new okhttp3.Callback() {
-            @Override
-            public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                thumbnailCall = null;
-                if (center) {
-                    AndroidUtils.runOnUiThread(() -> {
-                        if (isAttachedToWindow()) {
-                            onError(e);
+        thumbnailRequest = injector().instance(ImagePipeline.class).request(thumbnailUrl, 0, 0, false,
+                new ImagePipeline.Listener() {
+                    @Override
+                    public void onImage(Bitmap bitmap) {
+                        thumbnailRequest = null;
+                        if ((!hasContent || mode == Mode.LOWRES) && isAttachedToWindow()) {
+                            ImageView thumbnail = new ImageView(getContext());
+                            thumbnail.setImageBitmap(bitmap);
+                            onModeLoaded(Mode.LOWRES, thumbnail);
                         }
-                    });
-                }
-            }
+                    }
 
-            @Override
-            public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                try (response) {
-                    if (response.isSuccessful()) {
-                        try (ResponseBody body = response.body()) {
-                            Bitmap bitmap;
-                            try (java.io.InputStream stream = body.byteStream()) {
-                                bitmap = BitmapFactory.decodeStream(stream);
-                            }
-                            if (bitmap != null && (!hasContent || mode == Mode.LOWRES)) {
-                                AndroidUtils.runOnUiThread(() -> {
-                                    if (isAttachedToWindow()) {
-                                        ImageView thumbnail = new ImageView(getContext());
-                                        thumbnail.setImageBitmap(bitmap);
-                                        onModeLoaded(Mode.LOWRES, thumbnail);
-                                    }
-                                });
-                            }
+                    @Override
+                    public void onFailure(int code) {
+                        thumbnailRequest = null;
+                        if (center && code == ImagePipeline.FAILURE_NETWORK && isAttachedToWindow()) {
+                            onError(new IOException("thumbnail could not be loaded"));
                         }
                     }
-                } finally {
-                    thumbnailCall = null;
-                }
-            }
-        });
+                });
     }
 
-    private void setBigImage(String imageUrl) {
+    private void setBigImage(PostImage image) {
         if (getWidth() == 0 || getHeight() == 0) {
             Logger.e(TAG, "getWidth() or getHeight() returned 0, not loading big image");
             return;
@@ -590,7 +607,7 @@ public class MultiImageView extends FrameLayout implements View.OnClickListener,
         }
 
         callback.showProgress(this, true);
-        bigImageRequest = fileCache.downloadFile(imageUrl, new FileCacheListener() {
+        bigImageRequest = fileCache.downloadFile(image, new FileCacheListener() {
             @Override
             public void onProgress(long downloaded, long total) {
                 callback.onProgress(MultiImageView.this, downloaded, total);
@@ -627,7 +644,7 @@ public class MultiImageView extends FrameLayout implements View.OnClickListener,
         setBitImageFileInternal(file, true, Mode.BIGIMAGE);
     }
 
-    private void setGif(String gifUrl) {
+    private void setGif(PostImage image) {
         if (getWidth() == 0 || getHeight() == 0) {
             Logger.e(TAG, "getWidth() or getHeight() returned 0, not loading");
             return;
@@ -638,7 +655,7 @@ public class MultiImageView extends FrameLayout implements View.OnClickListener,
         }
 
         callback.showProgress(this, true);
-        gifRequest = fileCache.downloadFile(gifUrl, new FileCacheListener() {
+        gifRequest = fileCache.downloadFile(image, new FileCacheListener() {
             @Override
             public void onProgress(long downloaded, long total) {
                 callback.onProgress(MultiImageView.this, downloaded, total);
@@ -744,13 +761,13 @@ public class MultiImageView extends FrameLayout implements View.OnClickListener,
         }, "gif-decode").start();
     }
 
-    private void setVideo(String videoUrl) {
+    private void setVideo(PostImage image) {
         if (videoRequest != null) {
             return;
         }
 
         callback.showProgress(this, true);
-        videoRequest = fileCache.downloadFile(videoUrl, new FileCacheListener() {
+        videoRequest = fileCache.downloadFile(image, new FileCacheListener() {
             @Override
             public void onProgress(long downloaded, long total) {
                 callback.onProgress(MultiImageView.this, downloaded, total);
@@ -758,13 +775,21 @@ public class MultiImageView extends FrameLayout implements View.OnClickListener,
 
             @Override
             public void onSuccess(File file) {
-                if (!hasContent || mode == Mode.MOVIE) {
+                if (streamingVideo != null) {
+                    onStreamingVideoCached(file);
+                } else if (!hasContent || mode == Mode.MOVIE) {
                     setVideoFile(file);
                 }
             }
 
             @Override
             public void onFail(boolean notFound) {
+                if (streamingVideo != null) {
+                    streamingVideo = null;
+                    pendingWebViewFallback = false;
+                    cleanupExo();
+                }
+
                 if (notFound) {
                     onNotFoundError();
                 } else {
@@ -782,6 +807,26 @@ public class MultiImageView extends FrameLayout implements View.OnClickListener,
                 callback.showProgress(MultiImageView.this, false);
             }
         });
+
+        // Not cached yet, start playing while the rest downloads.
+        if (videoRequest != null && !ChanSettings.videoOpenExternal.get() &&
+                (!hasContent || mode == Mode.MOVIE)) {
+            streamingVideo = videoRequest;
+            setVideoFile(videoRequest.getOutput());
+        }
+    }
+
+    private void onStreamingVideoCached(File file) {
+        streamingVideo = null;
+
+        if (pendingWebViewFallback) {
+            pendingWebViewFallback = false;
+            startWebViewPlayer(file);
+        } else if (exoPlayer != null && !exoPlayer.isCurrentMediaItemSeekable()) {
+            // Reload from the complete file, so that seeking works.
+            exoPlayer.setMediaItem(MediaItem.fromUri(Uri.fromFile(file)), exoPlayer.getCurrentPosition());
+            exoPlayer.prepare();
+        }
     }
 
     private void setOther(String fileUrl) {
@@ -872,6 +917,18 @@ public class MultiImageView extends FrameLayout implements View.OnClickListener,
         DefaultExtractorsFactory extractorsFactory = new DefaultExtractorsFactory();
         DefaultMediaSourceFactory mediaSourceFactory = new DefaultMediaSourceFactory(getContext(), extractorsFactory);
 
+        MediaSource streamingSource = null;
+        if (streamingVideo != null) {
+            // Seeking to cues at the end of a webm would wait for the whole download,
+            // play it unseekable instead until onStreamingVideoCached reloads it.
+            DefaultExtractorsFactory streamingExtractorsFactory = new DefaultExtractorsFactory()
+                    .setMatroskaExtractorFlags(MatroskaExtractor.FLAG_DISABLE_SEEK_FOR_CUES);
+            FileCacheDownloader downloader = streamingVideo;
+            streamingSource = new ProgressiveMediaSource.Factory(
+                    () -> new FileCacheDataSource(downloader), streamingExtractorsFactory)
+                    .createMediaSource(MediaItem.fromUri(Uri.fromFile(file)));
+        }
+
         DefaultLoadControl loadControl = new DefaultLoadControl.Builder()
                 .build();
 
@@ -881,7 +938,11 @@ public class MultiImageView extends FrameLayout implements View.OnClickListener,
                 .build();
 
         exoPlayerView.setPlayer(exoPlayer);
-        exoPlayer.setMediaItem(MediaItem.fromUri(Uri.fromFile(file)));
+        if (streamingSource != null) {
+            exoPlayer.setMediaSource(streamingSource);
+        } else {
+            exoPlayer.setMediaItem(MediaItem.fromUri(Uri.fromFile(file)));
+        }
 
         exoPlayer.addListener(new Player.Listener() {
             @Override
@@ -928,6 +989,12 @@ public class MultiImageView extends FrameLayout implements View.OnClickListener,
 
             @Override
             public void onPlayerError(@NonNull PlaybackException error) {
+                if (streamingVideo != null && error.errorCode >= PlaybackException.ERROR_CODE_IO_UNSPECIFIED
+                        && error.errorCode < PlaybackException.ERROR_CODE_PARSING_CONTAINER_MALFORMED) {
+                    // The download failed, the file cache listener reports it.
+                    return;
+                }
+
                 if (error.errorCode == PlaybackException.ERROR_CODE_DECODING_FAILED
                         || error.errorCode == PlaybackException.ERROR_CODE_DECODER_INIT_FAILED
                         || error.errorCode == PlaybackException.ERROR_CODE_DECODING_FORMAT_EXCEEDS_CAPABILITIES
@@ -955,7 +1022,12 @@ public class MultiImageView extends FrameLayout implements View.OnClickListener,
                             exoPlayer.release();
                             exoPlayer = null;
                         }
-                        startWebViewPlayer(file);
+                        if (streamingVideo != null) {
+                            // The WebView needs the complete file.
+                            pendingWebViewFallback = true;
+                        } else {
+                            startWebViewPlayer(file);
+                        }
                         return;
                     }
                 }
@@ -1394,9 +1466,10 @@ public class MultiImageView extends FrameLayout implements View.OnClickListener,
     }
 
     public void cleanup() {
-        if (thumbnailCall != null) {
-            thumbnailCall.cancel();
-            thumbnailCall = null;
+        gifReleased = false;
+        if (thumbnailRequest != null) {
+            thumbnailRequest.cancel();
+            thumbnailRequest = null;
         }
         if (bigImageRequest != null) {
             bigImageRequest.cancel();
@@ -1410,6 +1483,8 @@ public class MultiImageView extends FrameLayout implements View.OnClickListener,
             videoRequest.cancel();
             videoRequest = null;
         }
+        streamingVideo = null;
+        pendingWebViewFallback = false;
 
         // Stop all active view content
         for (int i = 0; i < getChildCount(); i++) {
@@ -30,6 +30,7 @@ import android.util.AttributeSet;
 import android.view.View;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
 
 import com.google.android.material.snackbar.Snackbar;
@@ -74,22 +75,25 @@ public class PostImageThumbnailView extends ThumbnailView implements View.OnLong
         if (this.postImage != postImage) {
             this.postImage = postImage;
 
-            if (postImage != null) {
-                boolean useFullSize = ChanSettings.loadFullSizeThumbnails.get().shouldLoad()
-                        && postImage.imageUrl != null
-                        && postImage.type != PostImage.Type.MOVIE
-                        && postImage.type != PostImage.Type.SWF;
-                String url;
-                if (useFullSize) {
-                    url = postImage.imageUrl.toString();
-                } else {
-                    okhttp3.HttpUrl thumbUrl = postImage.getThumbnailUrl();
-                    url = thumbUrl != null ? thumbUrl.toString() : null;
-                }
-                setUrl(url, width, height, cacheOnly);
-            } else {
-                setUrl(null, width, height, cacheOnly);
-            }
+            setUrl(postImage != null ? getUrl(postImage) : null, width, height, cacheOnly);
+        }
+    }
+
+    /**
+     * @return the url this view loads for the image, the thumbnail or the full image depending
+     * on the settings.
+     */
+    @Nullable
+    public static String getUrl(PostImage postImage) {
+        boolean useFullSize = ChanSettings.loadFullSizeThumbnails.get().shouldLoad()
+                && postImage.imageUrl != null
+                && postImage.type != PostImage.Type.MOVIE
+                && postImage.type != PostImage.Type.SWF;
+        if (useFullSize) {
+            return postImage.imageUrl.toString();
+        } else {
+            okhttp3.HttpUrl thumbUrl = postImage.getThumbnailUrl();
+            return thumbUrl != null ? thumbUrl.toString() : null;
         }
     }
 
@@ -138,7 +142,7 @@ public class PostImageThumbnailView extends ThumbnailView implements View.OnLong
         if (!ChanSettings.shareUrl.get() && isImage) {
             AndroidUtils.showThemedSnackbar(this, "Downloading image\u2026", Snackbar.LENGTH_SHORT);
             FileCache fileCache = injector().instance(FileCache.class);
-            fileCache.downloadFile(postImage.imageUrl.toString(), new FileCacheListener() {
+            fileCache.downloadFile(postImage, new FileCacheListener() {
                 @Override
                 public void onSuccess(File file) {
                     AndroidUtils.runOnUiThread(() -> {
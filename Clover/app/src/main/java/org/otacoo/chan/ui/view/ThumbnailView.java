@@ -23,7 +23,6 @@ import static org.otacoo.chan.utils.AndroidUtils.sp;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
@@ -34,7 +33,6 @@ import android.graphics.Shader;
 import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
 import android.util.AttributeSet;
-import android.util.LruCache;
 import android.view.View;
 
 import androidx.annotation.NonNull;
@@ -42,72 +40,19 @@ import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
 
 import org.otacoo.chan.R;
-import org.otacoo.chan.core.site.sites.chan8.Chan8RateLimit;
+import org.otacoo.chan.core.cache.ImagePipeline;
 import org.otacoo.chan.utils.AndroidUtils;
 
-import java.io.IOException;
-
-import okhttp3.Call;
-import okhttp3.Callback;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
-import okhttp3.ResponseBody;
-
 public class ThumbnailView extends View {
     private static final String TAG = "ThumbnailView";
-    private static final LruCache<String, Bitmap> sMemoryCache;
-
-    /**
-     * Separate OkHttpClient for 8chan /.media/ thumbnail requests.
-     * Its dispatcher is capped at 2 concurrent requests per host so that scrolling
-     * through image-heavy threads does not fire 20+ simultaneous hits and trigger 429s.
-     * All interceptors (including Chan8PowInterceptor) are inherited from the base client.
-     */
-    @Nullable
-    private static volatile OkHttpClient sChan8MediaClient = null;
-
-    private static OkHttpClient getChan8MediaClient() {
-        if (sChan8MediaClient == null) {
-            synchronized (ThumbnailView.class) {
-                if (sChan8MediaClient == null) {
-                    OkHttpClient base = injector().instance(OkHttpClient.class);
-                    okhttp3.Dispatcher dispatcher = new okhttp3.Dispatcher();
-                    // Allow at most 2 simultaneous 8chan media downloads.
-                    // OkHttp queues the rest automatically.
-                    dispatcher.setMaxRequestsPerHost(2);
-                    sChan8MediaClient = base.newBuilder()
-                            .dispatcher(dispatcher)
-                            .build();
-                }
-            }
-        }
-        return sChan8MediaClient;
-    }
-
-    static {
-        final int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
-        final int cacheSize = maxMemory / 8;
-        sMemoryCache = new LruCache<>(cacheSize) {
-            @Override
-            protected int sizeOf(String key, Bitmap bitmap) {
-                return bitmap.getByteCount() / 1024;
-            }
-        };
-    }
 
     @Nullable
     public static Bitmap getCachedBitmap(String url) {
-        if (TextUtils.isEmpty(url)) return null;
-        return sMemoryCache.get(url);
+        return injector().instance(ImagePipeline.class).getCachedBitmap(url);
     }
 
-    public static void putBitmap(String url, Bitmap bitmap) {
-        if (TextUtils.isEmpty(url) || bitmap == null) return;
-        sMemoryCache.put(url, bitmap);
-    }
-
-    private Call currentCall;
+    private ImagePipeline imagePipeline;
+    private ImagePipeline.ImageRequest currentRequest;
     private String currentUrl;
     private int currentWidth;
     private int currentHeight;
@@ -164,6 +109,7 @@ public class ThumbnailView extends View {
     }
 
     private void init() {
+        imagePipeline = injector().instance(ImagePipeline.class);
         textPaint.setColor(0xff000000);
         textPaint.setTextSize(sp(14));
         textPaint.setTextAlign(Paint.Align.CENTER);
@@ -173,7 +119,7 @@ public class ThumbnailView extends View {
     @Override
     protected void onAttachedToWindow() {
         super.onAttachedToWindow();
-        if (currentUrl != null && currentCall == null && bitmap == null && !error) {
+        if (currentUrl != null && currentRequest == null && bitmap == null && !error) {
             setUrl(currentUrl, currentWidth, currentHeight, currentCacheOnly);
         }
     }
@@ -182,6 +128,11 @@ public class ThumbnailView extends View {
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
         cancelRequest();
+        // Let go of a bitmap the memory cache dropped, so it can be reused. It is loaded again
+        // from the disk cache when this view is attached again.
+        if (bitmap != null && !imagePipeline.isCached(currentUrl, currentWidth, currentHeight, bitmap)) {
+            setImageBitmap(null);
+        }
     }
 
     private Drawable fallbackDrawable;
@@ -207,15 +158,7 @@ public class ThumbnailView extends View {
             if (bitmap != null) {
                 return; // Already displaying the correct bitmap.
             }
-            Bitmap cachedNow = getCachedBitmap(url);
-            if (cachedNow != null) {
-                cancelRequest();
-                error = false;
-                setImageBitmap(cachedNow);
-                onImageSet();
-                return;
-            }
-            if (currentCall != null) {
+            if (currentRequest != null) {
                 return; // In-flight request will complete; let it finish.
             }
             error = false;
@@ -230,109 +173,40 @@ public class ThumbnailView extends View {
             return;
         }
 
-        Bitmap cached = sMemoryCache.get(url);
-        if (cached != null) {
-            setImageBitmap(cached);
-            onImageSet();
-            return;
-        }
-
-        // Use a concurrency-limited client for 8chan media to avoid rate-limit bursts.
-        OkHttpClient client = Chan8RateLimit.isMedia(url)
-                ? getChan8MediaClient()
-                : injector().instance(OkHttpClient.class);
-        Request.Builder rb = new Request.Builder().url(url);
-        if (cacheOnly) {
-            rb.cacheControl(okhttp3.CacheControl.FORCE_CACHE);
-        }
-        Request request = rb.build();
-
-        currentCall = client.newCall(request);
-        currentCall.enqueue(new Callback() {
-            @Override
-            public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                if (call.isCanceled()) return;
-                AndroidUtils.runOnUiThread(() -> {
-                    error = true;
-                    errorText = getString(R.string.thumbnail_load_failed_network);
-                    onImageSet();
-                });
-            }
-
-            @Override
-            public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                if (call.isCanceled()) {
-                    response.close();
-                    return;
-                }
+        // Stays null when the image was in memory and is already set.
+        currentRequest = imagePipeline.request(url, width, height, cacheOnly,
+                new ImagePipeline.Listener() {
+                    @Override
+                    public void onImage(Bitmap image) {
+                        currentRequest = null;
+                        setImageBitmap(image);
+                        onImageSet();
+                    }
 
-                if (!response.isSuccessful()) {
-                    final int code = response.code();
-                    AndroidUtils.runOnUiThread(() -> {
+                    @Override
+                    public void onFailure(int code) {
+                        currentRequest = null;
                         error = true;
-                        errorText = getString(R.string.thumbnail_load_failed_server);
+                        errorText = getString(code == ImagePipeline.FAILURE_NETWORK ?
+                                R.string.thumbnail_load_failed_network :
+                                R.string.thumbnail_load_failed_server);
                         onImageSet();
-                        if (onNetworkErrorListener != null) {
+                        if (code > 0 && onNetworkErrorListener != null) {
                             onNetworkErrorListener.onNetworkError(code);
                         }
-                    });
-                    response.close();
-                    return;
-                }
-
-                try (ResponseBody body = response.body()) {
-                    if (body == null) throw new IOException("Empty body");
-
-                    okio.BufferedSource source = body.source();
-                    BitmapFactory.Options opts = new BitmapFactory.Options();
-                    opts.inJustDecodeBounds = true;
-                    // peek() reads ahead without consuming the underlying stream
-                    try (java.io.InputStream boundsStream = source.peek().inputStream()) {
-                        BitmapFactory.decodeStream(boundsStream, null, opts);
                     }
-                    opts.inJustDecodeBounds = false;
-                    opts.inSampleSize = calcSampleSize(opts.outWidth, opts.outHeight, width, height);
 
-                    Bitmap bitmap;
-                    try (java.io.InputStream stream = source.inputStream()) {
-                        bitmap = BitmapFactory.decodeStream(stream, null, opts);
+                    @Override
+                    public boolean tracksBitmap() {
+                        return true;
                     }
-
-                    if (bitmap != null) {
-                        sMemoryCache.put(url, bitmap);
-                        AndroidUtils.runOnUiThread(() -> {
-                            setImageBitmap(bitmap);
-                            onImageSet();
-                        });
-                    } else {
-                        AndroidUtils.runOnUiThread(() -> {
-                            error = true;
-                            errorText = getString(R.string.thumbnail_load_failed_server);
-                            onImageSet();
-                        });
-                    }
-                } catch (Exception e) {
-                    AndroidUtils.runOnUiThread(() -> {
-                        error = true;
-                        errorText = getString(R.string.thumbnail_load_failed_network);
-                        onImageSet();
-                    });
-                }
-            }
-        });
-    }
-
-    private static int calcSampleSize(int srcW, int srcH, int dstW, int dstH) {
-        if (srcW <= 0 || srcH <= 0 || dstW <= 0 || dstH <= 0) return 1;
-        int s = 1;
-        while ((srcW / (s * 2)) >= dstW && (srcH / (s * 2)) >= dstH) s *= 2;
-        return s;
+                });
     }
 
     private void cancelRequest() {
-        if (currentCall != null) {
-            currentCall.cancel();
-            currentCall = null;
+        if (currentRequest != null) {
+            currentRequest.cancel();
+            currentRequest = null;
         }
     }
 
@@ -373,6 +247,7 @@ public class ThumbnailView extends View {
     }
 
     public Bitmap getBitmap() {
+        imagePipeline.escape(bitmap);
         return bitmap;
     }
 
@@ -571,6 +446,10 @@ public class ThumbnailView extends View {
         bitmapShader = null;
         bitmapPaint.setShader(null);
 
+        if (bitmap != this.bitmap) {
+            imagePipeline.retain(bitmap);
+            imagePipeline.release(this.bitmap);
+        }
         this.bitmap = bitmap;
         if (bitmap != null) {
             calculate = true;
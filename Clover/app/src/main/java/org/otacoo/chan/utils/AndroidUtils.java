@@ -706,6 +706,10 @@ public class AndroidUtils {
         return connectivityManager;
     }
 
+    public static ActivityManager getActivityManager() {
+        return activityManager;
+    }
+
     public static boolean isConnected(int type) {
         Network network = connectivityManager.getActiveNetwork();
         if (network == null) return false;
@@ -20,91 +20,179 @@ package org.otacoo.chan.utils;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.media.MediaMetadataRetriever;
+import android.os.Build;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Simple ImageDecoder. Taken from Volley ImageRequest.
+ * <p>
+ * Files are sniffed by their first bytes to decode either the image or the first frame of the
+ * video. Images are decoded from the file descriptor or a stream, never copied in memory first.
+ * Decoding in the background shares a few threads, and can be cancelled while queued.
  */
 public class ImageDecoder {
+    private static final String TAG = "ImageDecoder";
+    private static final int DECODE_THREADS = 2;
+    private static final int HEADER_SIZE = 12;
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(DECODE_THREADS);
+
+    private enum FileType {
+        IMAGE, VIDEO, UNKNOWN
+    }
+
+    /**
+     * Decode the file on a background thread, the callback is called on the main thread unless
+     * the decode is cancelled.
+     */
+    @MainThread
+    public static BackgroundUtils.Cancelable decodeFileOnBackgroundThread(final File file, final int maxWidth, final int maxHeight, ImageDecoderCallback callback) {
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        Future<?> future = executor.submit(() -> {
+            if (cancelled.get()) {
+                return;
+            }
 
-    public static void decodeFileOnBackgroundThread(final File file, final int maxWidth, final int maxHeight, ImageDecoderCallback callback) {
-        Thread thread = new Thread(() -> {
             final Bitmap bitmap = decodeFile(file, maxWidth, maxHeight);
 
             AndroidUtils.runOnUiThread(() -> {
-                callback.onImageBitmap(file, bitmap);
+                if (!cancelled.get()) {
+                    callback.onImageBitmap(file, bitmap);
+                }
             });
         });
-        thread.start();
+
+        return () -> {
+            cancelled.set(true);
+            future.cancel(false);
+        };
     }
 
     public interface ImageDecoderCallback {
         void onImageBitmap(File file, Bitmap bitmap);
     }
 
+    @WorkerThread
     public static Bitmap decodeFile(File file, int maxWidth, int maxHeight) {
         if (!file.exists())
             return null;
 
-        try {            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-            retriever.setDataSource(file.getAbsolutePath());
-            Bitmap frame = retriever.getFrameAtTime();
-            retriever.release();
-            if (frame != null) {
-                int desiredWidth = getResizedDimension(maxWidth, maxHeight, frame.getWidth(), frame.getHeight());
-                int desiredHeight = getResizedDimension(maxHeight, maxWidth, frame.getHeight(), frame.getWidth());
-                if (frame.getWidth() > desiredWidth || frame.getHeight() > desiredHeight) {
-                    Bitmap scaled = Bitmap.createScaledBitmap(frame, desiredWidth, desiredHeight, true);
-                    frame.recycle();
-                    return scaled;
-                }
-                return frame;
-            }
-        } catch (Exception | OutOfMemoryError e) {
-            // Not a video or error decoding frame, fallback to regular image decoding
+        FileType type = sniff(file);
+        if (type == FileType.VIDEO) {
+            return decodeVideoFrame(file, maxWidth, maxHeight);
         }
 
-        try {            InputStream fis = new FileInputStream(file);
-            return decodeFile(fis, maxWidth, maxHeight);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            return null;
+        Bitmap bitmap = decodeImageFile(file, maxWidth, maxHeight);
+        if (bitmap == null && type == FileType.UNKNOWN) {
+            bitmap = decodeVideoFrame(file, maxWidth, maxHeight);
         }
+        return bitmap;
     }
 
-    public static Bitmap decodeFile(InputStream is, int maxWidth, int maxHeight) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    /**
+     * Decode an image from a stream, that is opened twice: to read the size of the image and to
+     * decode it.
+     */
+    @WorkerThread
+    public static Bitmap decodeStream(StreamOpener opener, int maxWidth, int maxHeight) {
+        try {
+            return decode(options -> {
+                try (InputStream is = opener.open()) {
+                    return BitmapFactory.decodeStream(is, null, options);
+                }
+            }, maxWidth, maxHeight);
+        } catch (IOException | OutOfMemoryError e) {
+            Logger.e(TAG, "Error decoding stream", e);
+            return null;
+        }
+    }
 
-        Bitmap bitmap = null;
+    public interface StreamOpener {
+        InputStream open() throws IOException;
+    }
 
+    public static Bitmap decode(byte[] data, int maxWidth, int maxHeight) {
         try {
-            IOUtils.copy(is, baos);
-            bitmap = decode(baos.toByteArray(), maxWidth, maxHeight);
+            return decode(options -> BitmapFactory.decodeByteArray(data, 0, data.length, options), maxWidth, maxHeight);
+        } catch (IOException e) {
+            // Not thrown for a byte array.
+            return null;
+        }
+    }
+
+    @Nullable
+    private static Bitmap decodeImageFile(File file, int maxWidth, int maxHeight) {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            // Decoding from the descriptor leaves its position alone, it can be decoded twice.
+            FileDescriptor fd = fis.getFD();
+            return decode(options -> BitmapFactory.decodeFileDescriptor(fd, null, options), maxWidth, maxHeight);
         } catch (IOException | OutOfMemoryError e) {
-            e.printStackTrace();
-        } finally {
-            IOUtils.closeQuietly(is);
-            IOUtils.closeQuietly(baos);
+            Logger.e(TAG, "Error decoding image file", e);
+            return null;
         }
+    }
 
-        return bitmap;
+    @Nullable
+    private static Bitmap decodeVideoFrame(File file, int maxWidth, int maxHeight) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(file.getAbsolutePath());
+            Bitmap frame;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1 && maxWidth > 0 && maxHeight > 0) {
+                // Scaled by the decoder, without a full size frame in between.
+                frame = retriever.getScaledFrameAtTime(-1, MediaMetadataRetriever.OPTION_CLOSEST_SYNC, maxWidth, maxHeight);
+            } else {
+                frame = retriever.getFrameAtTime();
+            }
+            if (frame == null) {
+                return null;
+            }
+
+            int desiredWidth = getResizedDimension(maxWidth, maxHeight, frame.getWidth(), frame.getHeight());
+            int desiredHeight = getResizedDimension(maxHeight, maxWidth, frame.getHeight(), frame.getWidth());
+            if (frame.getWidth() > desiredWidth || frame.getHeight() > desiredHeight) {
+                Bitmap scaled = Bitmap.createScaledBitmap(frame, desiredWidth, desiredHeight, true);
+                frame.recycle();
+                return scaled;
+            }
+            return frame;
+        } catch (Exception | OutOfMemoryError e) {
+            Logger.e(TAG, "Error decoding video frame", e);
+            return null;
+        } finally {
+            try {
+                retriever.release();
+            } catch (IOException ignored) {
+            }
+        }
     }
 
-    public static Bitmap decode(byte[] data, int maxWidth, int maxHeight) {
+    private static Bitmap decode(BitmapSource source, int maxWidth, int maxHeight) throws IOException {
         BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
         Bitmap bitmap;
 
         // If we have to resize this image, first get the natural bounds.
         decodeOptions.inJustDecodeBounds = true;
-        BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
+        source.decode(decodeOptions);
         int actualWidth = decodeOptions.outWidth;
         int actualHeight = decodeOptions.outHeight;
+        if (actualWidth <= 0 || actualHeight <= 0) {
+            return null;
+        }
 
         // Then compute the dimensions we would ideally like to decode to.
         int desiredWidth = getResizedDimension(maxWidth, maxHeight, actualWidth, actualHeight);
@@ -115,7 +203,7 @@ public class ImageDecoder {
 
         // decodeOptions.inPreferQualityOverSpeed = PREFER_QUALITY_OVER_SPEED;
         decodeOptions.inSampleSize = findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
-        Bitmap tempBitmap = BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
+        Bitmap tempBitmap = source.decode(decodeOptions);
 
         // If necessary, scale down to the maximal acceptable size.
         if (tempBitmap != null && (tempBitmap.getWidth() > desiredWidth || tempBitmap.getHeight() > desiredHeight)) {
@@ -128,6 +216,59 @@ public class ImageDecoder {
         return bitmap;
     }
 
+    private interface BitmapSource {
+        Bitmap decode(BitmapFactory.Options options) throws IOException;
+    }
+
+    private static FileType sniff(File file) {
+        byte[] header = new byte[HEADER_SIZE];
+        int read;
+        try (FileInputStream fis = new FileInputStream(file)) {
+            read = fis.read(header);
+        } catch (IOException e) {
+            return FileType.UNKNOWN;
+        }
+
+        if (matches(header, read, 0, 0xff, 0xd8, 0xff) // jpeg
+                || matches(header, read, 0, 0x89, 'P', 'N', 'G') // png
+                || matches(header, read, 0, 'G', 'I', 'F', '8') // gif
+                || (matches(header, read, 0, 'R', 'I', 'F', 'F') && matches(header, read, 8, 'W', 'E', 'B', 'P'))) {
+            return FileType.IMAGE;
+        }
+
+        if (matches(header, read, 0, 0x1a, 0x45, 0xdf, 0xa3)) { // webm and matroska
+            return FileType.VIDEO;
+        }
+
+        if (matches(header, read, 4, 'f', 't', 'y', 'p')) {
+            // The iso media container holds both mp4 videos and heif or avif images.
+            String brand = new String(header, 8, Math.max(0, Math.min(4, read - 8)), StandardCharsets.US_ASCII);
+            switch (brand) {
+                case "heic":
+                case "heix":
+                case "mif1":
+                case "avif":
+                    return FileType.IMAGE;
+                default:
+                    return FileType.VIDEO;
+            }
+        }
+
+        return FileType.UNKNOWN;
+    }
+
+    private static boolean matches(byte[] header, int length, int offset, int... magic) {
+        if (length < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((header[offset + i] & 0xff) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private static int getResizedDimension(int maxPrimary, int maxSecondary, int actualPrimary, int actualSecondary) {
         // If no dominant value at all, just return the actual.
         if (maxPrimary == 0 && maxSecondary == 0) {